@@ -0,0 +1,233 @@
+package com.markiantorno.charcoal.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a CharcoalBinding for every class with Charcoal annotated fields, so that CharcoalBinder can bind
+ * them without reflection, ie MainActivity gets a MainActivity_CharcoalBinding in the same package. The
+ * binding holds a CharcoalSpec per field, built from its annotation values.
+ * <p>
+ * The generated binding writes the fields directly, so classes with private, or static, annotated fields
+ * are left to the reflective binder instead, with a warning. Annotations are read by name, so the processor
+ * does not depend on the android library.
+ */
+@SupportedAnnotationTypes(CharcoalProcessor.CHARCOAL_ANNOTATION)
+public class CharcoalProcessor extends AbstractProcessor {
+
+    static final String CHARCOAL_ANNOTATION = "com.markiantorno.charcoal.annotation.Charcoal";
+    static final String CHARCOAL_TEXT_VIEW = "com.markiantorno.charcoal.view.CharcoalTextView";
+    static final String CHARCOAL_BINDER = "com.markiantorno.charcoal.CharcoalBinder";
+    static final String CHARCOAL_BINDING = "com.markiantorno.charcoal.CharcoalBinding";
+    static final String CHARCOAL_SPEC = "com.markiantorno.charcoal.view.CharcoalSpec";
+
+    /**
+     * Must match CharcoalBinding.SUFFIX.
+     */
+    static final String BINDING_SUFFIX = "_CharcoalBinding";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement charcoal = processingEnv.getElementUtils().getTypeElement(CHARCOAL_ANNOTATION);
+        TypeElement textView = processingEnv.getElementUtils().getTypeElement(CHARCOAL_TEXT_VIEW);
+        if ((charcoal == null) || (textView == null)) {
+            return false;
+        }
+
+        Map<TypeElement, List<VariableElement>> fieldsByClass = new LinkedHashMap<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(charcoal)) {
+            if (element.getKind() == ElementKind.FIELD) {
+                TypeElement type = (TypeElement) element.getEnclosingElement();
+                List<VariableElement> fields = fieldsByClass.get(type);
+                if (fields == null) {
+                    fields = new ArrayList<>();
+                    fieldsByClass.put(type, fields);
+                }
+                fields.add((VariableElement) element);
+            }
+        }
+
+        for (Map.Entry<TypeElement, List<VariableElement>> entry : fieldsByClass.entrySet()) {
+            TypeElement type = entry.getKey();
+            List<VariableElement> fields = bindableFields(type, entry.getValue(), textView.asType());
+            if (fields != null) {
+                try {
+                    writeBinding(type, fields, charcoal, textView.asType());
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                            "Cannot write Charcoal binding for " + type + ": " + e.getMessage(), type);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the fields the generated binding can write, or null, if the class must be bound reflectively.
+     * Fields that are not a {@link #CHARCOAL_TEXT_VIEW}, or one of its super types, are ignored, as the
+     * reflective binder ignores them.
+     */
+    private List<VariableElement> bindableFields(TypeElement type, List<VariableElement> fields, TypeMirror textView) {
+        for (Element enclosing = type; enclosing instanceof TypeElement; enclosing = enclosing.getEnclosingElement()) {
+            NestingKind nesting = ((TypeElement) enclosing).getNestingKind();
+            if (enclosing.getModifiers().contains(Modifier.PRIVATE)
+                    || (nesting == NestingKind.LOCAL) || (nesting == NestingKind.ANONYMOUS)) {
+                warn(type, type + " is not accessible from its package, its Charcoal fields are bound reflectively.");
+                return null;
+            }
+        }
+
+        List<VariableElement> bindable = new ArrayList<>();
+        for (VariableElement field : fields) {
+            if (field.getModifiers().contains(Modifier.PRIVATE) || field.getModifiers().contains(Modifier.STATIC)) {
+                warn(field, "Charcoal field " + field.getSimpleName() + " is private or static, the fields of "
+                        + type + " are bound reflectively.");
+                return null;
+            }
+            if (processingEnv.getTypeUtils().isAssignable(textView, field.asType())) {
+                bindable.add(field);
+            } else {
+                warn(field, "Charcoal field " + field.getSimpleName() + " cannot hold a CharcoalTextView, and is not bound.");
+            }
+        }
+        return bindable;
+    }
+
+    private void writeBinding(TypeElement type, List<VariableElement> fields, TypeElement charcoal,
+                              TypeMirror textView) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String className = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1))
+                + BINDING_SUFFIX;
+        String targetType = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+
+        StringBuilder source = new StringBuilder();
+        source.append("// Generated by CharcoalProcessor from ").append(targetType).append(". Do not edit.\n");
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("public final class ").append(className)
+                .append(" implements ").append(CHARCOAL_BINDING).append('<').append(targetType).append("> {\n\n");
+        for (VariableElement field : fields) {
+            Map<String, Object> values = annotationValues(field, charcoal);
+            source.append("    private final ").append(CHARCOAL_SPEC).append(' ').append(specName(field))
+                    .append(" = ").append(CHARCOAL_SPEC).append(".of(\n")
+                    .append("            ").append(javaString((String) values.get("property")))
+                    .append(", ").append(javaString((String) values.get("defaultUnit")))
+                    .append(", ").append(values.get("accuracy"))
+                    .append(", java.math.RoundingMode.").append(values.get("rounding"))
+                    .append(", ").append(javaString((String) values.get("format"))).append(");\n\n");
+        }
+        source.append("    @Override\n");
+        source.append("    public void bind(").append(targetType).append(" target, android.view.View source, String essenceFileName) {\n");
+        for (VariableElement field : fields) {
+            String view = "target." + field.getSimpleName();
+            if (!processingEnv.getTypeUtils().isSameType(textView, field.asType())) {
+                view = "(" + CHARCOAL_TEXT_VIEW + ") " + view;
+            }
+            source.append("        ").append(CHARCOAL_BINDER).append(".bindView(").append(view)
+                    .append(", essenceFileName, ").append(specName(field)).append(");\n");
+        }
+        source.append("    }\n");
+        source.append("}\n");
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                packageName.isEmpty() ? className : (packageName + "." + className), type);
+        Writer writer = file.openWriter();
+        try {
+            writer.write(source.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads the Charcoal annotation of the passed in field, including defaults. Enum constants are returned
+     * by name.
+     */
+    private Map<String, Object> annotationValues(VariableElement field, TypeElement charcoal) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (AnnotationMirror mirror : field.getAnnotationMirrors()) {
+            if (mirror.getAnnotationType().asElement().equals(charcoal)) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value
+                        : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+                    Object constant = value.getValue().getValue();
+                    if (constant instanceof VariableElement) {
+                        constant = ((VariableElement) constant).getSimpleName().toString();
+                    }
+                    values.put(value.getKey().getSimpleName().toString(), constant);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Name of the field holding the spec of the passed in annotated field. Each binding creates the spec of
+     * a field once, and every view bound from that field shares it.
+     */
+    private static String specName(VariableElement field) {
+        return field.getSimpleName() + "Spec";
+    }
+
+    private void warn(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, message, element);
+    }
+
+    static String javaString(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    literal.append("\\\"");
+                    break;
+                case '\\':
+                    literal.append("\\\\");
+                    break;
+                case '\n':
+                    literal.append("\\n");
+                    break;
+                case '\r':
+                    literal.append("\\r");
+                    break;
+                case '\t':
+                    literal.append("\\t");
+                    break;
+                default:
+                    if ((c < 0x20) || (c > 0x7e)) {
+                        literal.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        literal.append(c);
+                    }
+            }
+        }
+        return literal.append('"').toString();
+    }
+}
@@ -0,0 +1,229 @@
+package com.markiantorno.charcoal.compiler;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.math.RoundingMode;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Runs the processor over small sources, against stand-ins for the library and android classes the generated
+ * bindings use, and checks the bindings it generates. The bindings are compiled along with the stand-ins, and
+ * run, with the stand-ins recording what they are bound with.
+ */
+public class CharcoalProcessorTest {
+
+    private static final String CHARCOAL = "package com.markiantorno.charcoal.annotation;\n" +
+            "public @interface Charcoal {\n" +
+            "    String property();\n" +
+            "    String defaultUnit() default \"\";\n" +
+            "    int accuracy() default -1;\n" +
+            "    java.math.RoundingMode rounding() default java.math.RoundingMode.DOWN;\n" +
+            "    String format() default \"%1$s %2$s\";\n" +
+            "}\n";
+
+    private static final String TEXT_VIEW = "package com.markiantorno.charcoal.view;\n" +
+            "public class CharcoalTextView {\n" +
+            "}\n";
+
+    private static final String BINDING = "package com.markiantorno.charcoal;\n" +
+            "public interface CharcoalBinding<T> {\n" +
+            "    void bind(T target, android.view.View source, String essenceFileName);\n" +
+            "}\n";
+
+    private static final String BINDER = "package com.markiantorno.charcoal;\n" +
+            "public class CharcoalBinder {\n" +
+            "    public static final java.util.List<Object[]> BOUND = new java.util.ArrayList<>();\n" +
+            "    public static void bindView(com.markiantorno.charcoal.view.CharcoalTextView textView,\n" +
+            "            String assetFileName, com.markiantorno.charcoal.view.CharcoalSpec spec) {\n" +
+            "        BOUND.add(new Object[]{textView, assetFileName, spec});\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final String SPEC = "package com.markiantorno.charcoal.view;\n" +
+            "public final class CharcoalSpec {\n" +
+            "    public final java.util.List<Object> arguments;\n" +
+            "    private CharcoalSpec(Object... arguments) {\n" +
+            "        this.arguments = java.util.Arrays.asList(arguments);\n" +
+            "    }\n" +
+            "    public static CharcoalSpec of(String property, String unitString, int accuracy,\n" +
+            "            java.math.RoundingMode roundingMode, String format) {\n" +
+            "        return new CharcoalSpec(property, unitString, accuracy, roundingMode, format);\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final String VIEW = "package android.view;\n" +
+            "public class View {\n" +
+            "}\n";
+
+    @Rule
+    public TemporaryFolder myFolder = new TemporaryFolder();
+
+    private DiagnosticCollector<JavaFileObject> myDiagnostics;
+    private File mySources;
+    private File myClasses;
+
+    @Before
+    public void setUp() throws Exception {
+        myDiagnostics = new DiagnosticCollector<>();
+        mySources = myFolder.newFolder("sources");
+        myClasses = myFolder.newFolder("classes");
+    }
+
+    @Test
+    public void generatesBindingForAnnotatedFields() throws Exception {
+        process("com.example.ReadingActivity", "package com.example;\n" +
+                "import com.markiantorno.charcoal.annotation.Charcoal;\n" +
+                "import com.markiantorno.charcoal.view.CharcoalTextView;\n" +
+                "public class ReadingActivity {\n" +
+                "    @Charcoal(property = \"weight\", defaultUnit = \"[lb_av]\", accuracy = 1,\n" +
+                "            rounding = java.math.RoundingMode.HALF_UP)\n" +
+                "    protected CharcoalTextView mWeight;\n" +
+                "    public class Holder {\n" +
+                "        @Charcoal(property = \"glucose\", defaultUnit = \"mg/dL\", format = \"%1$s \\\"%2$s\\\"\")\n" +
+                "        Object mGlucose;\n" +
+                "    }\n" +
+                "}\n");
+
+        String binding = readGenerated("com/example/ReadingActivity_CharcoalBinding.java");
+        Assert.assertTrue(binding.contains("implements com.markiantorno.charcoal.CharcoalBinding<com.example.ReadingActivity>"));
+        Assert.assertTrue(binding.contains("CharcoalSpec mWeightSpec = com.markiantorno.charcoal.view.CharcoalSpec.of(\n" +
+                "            \"weight\", \"[lb_av]\", 1, java.math.RoundingMode.HALF_UP, \"%1$s %2$s\");"));
+        Assert.assertTrue(binding.contains("bindView(target.mWeight, essenceFileName, mWeightSpec);"));
+
+        String nestedBinding = readGenerated("com/example/ReadingActivity$Holder_CharcoalBinding.java");
+        Assert.assertTrue(nestedBinding.contains("CharcoalBinding<com.example.ReadingActivity.Holder>"));
+        Assert.assertTrue(nestedBinding.contains("CharcoalSpec.of(\n" +
+                "            \"glucose\", \"mg/dL\", -1, java.math.RoundingMode.DOWN, \"%1$s \\\"%2$s\\\"\");"));
+        Assert.assertTrue(nestedBinding.contains("bindView((com.markiantorno.charcoal.view.CharcoalTextView) target.mGlucose, " +
+                "essenceFileName, mGlucoseSpec);"));
+    }
+
+    @Test
+    public void generatedBindingBindsFields() throws Exception {
+        process("com.example.ReadingActivity", "package com.example;\n" +
+                "import com.markiantorno.charcoal.annotation.Charcoal;\n" +
+                "import com.markiantorno.charcoal.view.CharcoalTextView;\n" +
+                "public class ReadingActivity {\n" +
+                "    @Charcoal(property = \"weight\", defaultUnit = \"[lb_av]\", accuracy = 1,\n" +
+                "            rounding = java.math.RoundingMode.HALF_UP)\n" +
+                "    protected CharcoalTextView mWeight = new CharcoalTextView();\n" +
+                "    @Charcoal(property = \"glucose\", format = \"%1$s \\\"%2$s\\\"\")\n" +
+                "    Object mGlucose = new CharcoalTextView();\n" +
+                "}\n");
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{myClasses.toURI().toURL()})) {
+            Object target = loader.loadClass("com.example.ReadingActivity").newInstance();
+            Object binding = loader.loadClass("com.example.ReadingActivity_CharcoalBinding").newInstance();
+            Class<?> bindingType = loader.loadClass("com.markiantorno.charcoal.CharcoalBinding");
+            bindingType.getMethod("bind", Object.class, loader.loadClass("android.view.View"), String.class)
+                    .invoke(binding, target, null, "essence.xml");
+
+            List<?> bound = (List<?>) loader.loadClass("com.markiantorno.charcoal.CharcoalBinder").getField("BOUND").get(null);
+            Assert.assertEquals(2, bound.size());
+            assertBound((Object[]) bound.get(0), readField(target, "mWeight"),
+                    "weight", "[lb_av]", 1, RoundingMode.HALF_UP, "%1$s %2$s");
+            assertBound((Object[]) bound.get(1), readField(target, "mGlucose"),
+                    "glucose", "", -1, RoundingMode.DOWN, "%1$s \"%2$s\"");
+        }
+    }
+
+    @Test
+    public void privateFieldsAreLeftToReflection() throws Exception {
+        process("com.example.PrivateActivity", "package com.example;\n" +
+                "import com.markiantorno.charcoal.annotation.Charcoal;\n" +
+                "import com.markiantorno.charcoal.view.CharcoalTextView;\n" +
+                "public class PrivateActivity {\n" +
+                "    @Charcoal(property = \"weight\")\n" +
+                "    CharcoalTextView mWeight;\n" +
+                "    @Charcoal(property = \"height\")\n" +
+                "    private CharcoalTextView mHeight;\n" +
+                "}\n");
+
+        Assert.assertFalse(new File(mySources, "com/example/PrivateActivity_CharcoalBinding.java").exists());
+        Assert.assertTrue(hasWarning("mHeight"));
+    }
+
+    /**
+     * Compiles the passed in source along with the stand-ins, running the processor, and compiling what it
+     * generates.
+     */
+    private void process(String className, String source) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        List<JavaFileObject> sources = new ArrayList<>(Arrays.asList(
+                new Source("com.markiantorno.charcoal.annotation.Charcoal", CHARCOAL),
+                new Source("com.markiantorno.charcoal.view.CharcoalTextView", TEXT_VIEW),
+                new Source("com.markiantorno.charcoal.CharcoalBinding", BINDING),
+                new Source("com.markiantorno.charcoal.CharcoalBinder", BINDER),
+                new Source("com.markiantorno.charcoal.view.CharcoalSpec", SPEC),
+                new Source("android.view.View", VIEW),
+                new Source(className, source)));
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, myDiagnostics,
+                Arrays.asList("-s", mySources.getPath(), "-d", myClasses.getPath()), null, sources);
+        task.setProcessors(Collections.singletonList(new CharcoalProcessor()));
+        Assert.assertTrue(myDiagnostics.getDiagnostics().toString(), task.call());
+    }
+
+    private String readGenerated(String path) throws IOException {
+        File file = new File(mySources, path);
+        Assert.assertTrue(path + " was not generated", file.exists());
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static Object readField(Object target, String name) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+
+    private static void assertBound(Object[] bound, Object textView, Object... specArguments) throws Exception {
+        Assert.assertSame(textView, bound[0]);
+        Assert.assertEquals("essence.xml", bound[1]);
+        Assert.assertEquals(Arrays.asList(specArguments), bound[2].getClass().getField("arguments").get(bound[2]));
+    }
+
+    private boolean hasWarning(String text) {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : myDiagnostics.getDiagnostics()) {
+            if ((diagnostic.getKind() == Diagnostic.Kind.WARNING) && diagnostic.getMessage(null).contains(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+
+        private final String mSource;
+
+        Source(String className, String source) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            mSource = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return mSource;
+        }
+    }
+}
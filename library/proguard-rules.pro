@@ -19,3 +19,21 @@
 # If you keep the line number information, uncomment this to
 # hide the original source file name.
 #-renamesourcefileattribute SourceFile
+
+# Essence tables generated by charcoal-essence.gradle are only looked up by name.
+-keep class com.markiantorno.charcoal.essence.** implements com.markiantorno.charcoal.controller.EssenceTable {
+    public <init>();
+}
+
+# Bindings generated by the charcoal compiler are only looked up by name.
+-keep class * implements com.markiantorno.charcoal.CharcoalBinding {
+    public <init>();
+}
+
+# Essence snapshots and precompiled essence tables copy private fields of the UCUM library.
+-keepclassmembers class org.fhir.ucum.Decimal {
+    <fields>;
+}
+-keepclassmembers class org.fhir.ucum.UcumEssenceService {
+    *** model;
+}
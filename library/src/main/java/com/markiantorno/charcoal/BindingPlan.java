@@ -0,0 +1,130 @@
+package com.markiantorno.charcoal;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.View;
+
+import com.markiantorno.charcoal.annotation.Charcoal;
+import com.markiantorno.charcoal.annotation.Essence;
+import com.markiantorno.charcoal.view.CharcoalSpec;
+import com.markiantorno.charcoal.view.CharcoalTextView;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything {@link CharcoalBinder} needs to bind one target class, resolved once, ie its {@link Essence}
+ * asset, and a {@link CharcoalBinding} for each class in its hierarchy. Classes without a generated binding
+ * get one per annotated field, holding the accessible {@link Field} and the {@link CharcoalSpec} parsed from
+ * its {@link Charcoal} values.
+ * <p>
+ * Binding a target with a plan only writes the fields, no annotations are read.
+ */
+final class BindingPlan {
+
+    public static final String TAG = BindingPlan.class.getSimpleName();
+
+    private final String mEssenceFileName;
+    private final List<CharcoalBinding<Object>> mBindings;
+
+    private BindingPlan(@Nullable String essenceFileName, @NonNull List<CharcoalBinding<Object>> bindings) {
+        mEssenceFileName = essenceFileName;
+        mBindings = Collections.unmodifiableList(bindings);
+    }
+
+    /**
+     * Resolves the plan for the passed in class. Framework classes never declare {@link Charcoal} fields, so
+     * the hierarchy is only walked up to the first one.
+     *
+     * @param cls Runtime class of the targets to bind.
+     * @return {@link BindingPlan}
+     */
+    static BindingPlan create(@NonNull Class<?> cls) {
+        Essence essence = cls.getAnnotation(Essence.class);
+        List<CharcoalBinding<Object>> bindings = new ArrayList<>();
+        int reflectiveFields = 0;
+
+        for (Class<?> c = cls; (c != null) && !isFrameworkClass(c); c = c.getSuperclass()) {
+            CharcoalBinding<Object> binding = CharcoalBinder.getBinding(c);
+            if (binding != null) {
+                bindings.add(binding);
+                continue;
+            }
+            for (Field field : c.getDeclaredFields()) {
+                Charcoal writer = field.getAnnotation(Charcoal.class);
+                if ((writer != null) && (field.getType().isAssignableFrom(CharcoalTextView.class))) {
+                    try {
+                        field.setAccessible(true); // To enable access to private/protected fields
+                        bindings.add(new FieldBinding(field, writer));
+                        reflectiveFields++;
+                    } catch (SecurityException e) {
+                        Log.e(TAG, "Cannot access Charcoal field " + field.getName() + " of " + c.getName(), e);
+                    }
+                }
+            }
+        }
+
+        Log.d(TAG, "Binding plan for " + cls.getName() + " -> " + (bindings.size() - reflectiveFields) +
+                " generated bindings, " + reflectiveFields + " reflective fields.");
+        return new BindingPlan((essence != null) ? essence.asset() : null, bindings);
+    }
+
+    /**
+     * @return {@link String} asset name from the target class's {@link Essence} annotation, or null.
+     */
+    @Nullable
+    String getEssenceFileName() {
+        return mEssenceFileName;
+    }
+
+    /**
+     * @return Number of bindings, ie generated bindings, plus reflectively bound fields.
+     */
+    int size() {
+        return mBindings.size();
+    }
+
+    /**
+     * Initializes every {@link Charcoal} field of the passed in target.
+     *
+     * @param target Target class for view binding, an instance of the class this plan was created for.
+     * @param source View root on which IDs will be looked up.
+     */
+    void bind(@NonNull Object target, @NonNull View source) {
+        for (CharcoalBinding<Object> binding : mBindings) {
+            binding.bind(target, source, mEssenceFileName);
+        }
+    }
+
+    private static boolean isFrameworkClass(@NonNull Class<?> cls) {
+        String name = cls.getName();
+        return name.startsWith("android.") || name.startsWith("java.") || name.startsWith("javax.");
+    }
+
+    /**
+     * Reflective binding of a single field, for classes without a generated {@link CharcoalBinding}.
+     */
+    private static final class FieldBinding implements CharcoalBinding<Object> {
+
+        private final Field mField;
+        private final CharcoalSpec mSpec;
+
+        FieldBinding(@NonNull Field field, @NonNull Charcoal writer) {
+            mField = field;
+            mSpec = CharcoalSpec.of(writer.property(), writer.defaultUnit(), writer.accuracy(), writer.rounding(),
+                    writer.format());
+        }
+
+        @Override
+        public void bind(@NonNull Object target, @NonNull View source, @Nullable String essenceFileName) {
+            try {
+                CharcoalBinder.bindView((CharcoalTextView) mField.get(target), essenceFileName, mSpec);
+            } catch (IllegalAccessException | ClassCastException e) {
+                Log.e(TAG, "Could not bind field " + mField.getName() + " of " + target.getClass().getName(), e);
+            }
+        }
+    }
+}
@@ -3,19 +3,25 @@ package com.markiantorno.charcoal;
 import android.app.Activity;
 import android.app.Dialog;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.View;
 
 import com.markiantorno.charcoal.annotation.Charcoal;
 import com.markiantorno.charcoal.annotation.Essence;
 import com.markiantorno.charcoal.controller.EssenceController;
-import com.markiantorno.charcoal.controller.PreferenceController;
+import com.markiantorno.charcoal.view.CharcoalSpec;
 import com.markiantorno.charcoal.view.CharcoalTextView;
 
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class processes the values set in the annotaions {@link Essence} and {@link Charcoal}.
@@ -26,6 +32,16 @@ public class CharcoalBinder {
 
     public static final String TAG = CharcoalBinder.class.getSimpleName();
 
+    /**
+     * Resolved {@link BindingPlan}s, keyed weakly by target class, so classes can still be unloaded. Plans hold
+     * fields of their class, which reference it, so they are only held softly, or the key could never clear.
+     * <p>
+     * The map is never modified once published, so {@link #burn(Activity)} reads it without locking. Resolving a
+     * new plan copies the map under {@link #mPlansLock}, which only happens once per class.
+     */
+    private static volatile Map<ClassKey, SoftReference<BindingPlan>> mPlans = Collections.emptyMap();
+    private static final Object mPlansLock = new Object();
+
     /**
      * Initializes defaults for all {@link Essence} and {@link Charcoal} annotations.
      *
@@ -93,59 +109,106 @@ public class CharcoalBinder {
 
     /**
      * Internal class method for detecting, and parsing the arguments passed in through the
-     * {@link Essence} and {@link Charcoal} annotations.
+     * {@link Essence} and {@link Charcoal} annotations. The annotations are only read the first time a class
+     * is bound, see {@link #getBindingPlan(Class)}.
      *
      * @param target Target class for view binding.
      * @param source Dialog on which IDs will be looked up.
      */
     private static void process(@NonNull Object target, @NonNull View source) {
 
-        Essence classAnnotation = target.getClass().getAnnotation(Essence.class);
+        BindingPlan plan = getBindingPlan(target.getClass());
+        String assetFileName = plan.getEssenceFileName();
 
-        if (classAnnotation != null) {
-            String assetFileName = classAnnotation.asset();
-            EssenceController.setEssenceFile(assetFileName, source.getContext());
+        if (assetFileName != null) {
+            EssenceController.setEssenceFileAsync(assetFileName, source.getContext());
             Log.i(TAG, "Binding UCUM definitions file from asset file -> " + assetFileName);
         }
 
-        List<Field> fields = getAllFields(target.getClass());
-
-        for (Field field : fields) {
-            field.setAccessible(true); // To enable access to private/protected fields
-            Charcoal writer = field.getAnnotation(Charcoal.class);
-            if ((writer != null) && (field.getType().isAssignableFrom(CharcoalTextView.class))) {
-                try {
-                    CharcoalTextView textView = (CharcoalTextView) field.get(target);
-                    String property = writer.property();
-                    textView.setProperty(property);
-
-                    String defaultUnit = writer.defaultUnit();
-                    textView.setUnitString(defaultUnit);
-
-                    int defaultAccuracy = writer.accuracy();
-                    if ((defaultAccuracy == Charcoal.NO_ACCURACY_SET) && (PreferenceController.accuracySetForUnit(source.getContext(), defaultUnit))) {
-                        Log.d(TAG, "No default accuracy passed into annotation, however, accuracy for unit set it preferences -> " +
-                                PreferenceController.getAccuracyForUnit(source.getContext(), defaultUnit));
-                        defaultAccuracy = PreferenceController.getAccuracyForUnit(source.getContext(), defaultUnit);
-                    } else if ((defaultAccuracy == Charcoal.NO_ACCURACY_SET) && (!PreferenceController.accuracySetForUnit(source.getContext(), defaultUnit))) {
-                        Log.d(TAG, "No default accuracy passed into annotation, and no accuracy for unit set it preferences.");
-                        defaultAccuracy = 0;
+        plan.bind(target, source);
+    }
+
+    /**
+     * Returns the {@link BindingPlan} for the passed in class, resolving it the first time the class is
+     * bound. Each class in its hierarchy is bound by its generated {@link CharcoalBinding}, if it has one,
+     * and by its annotated fields, set accessible once, otherwise.
+     *
+     * @param cls Runtime class of the target.
+     * @return {@link BindingPlan}
+     */
+    @NonNull
+    static BindingPlan getBindingPlan(@NonNull Class<?> cls) {
+        ClassKey key = new ClassKey(cls);
+        BindingPlan plan = getPlan(mPlans, key);
+        if (plan != null) {
+            return plan;
+        }
+
+        synchronized (mPlansLock) {
+            Map<ClassKey, SoftReference<BindingPlan>> plans = mPlans;
+            plan = getPlan(plans, key);
+            if (plan == null) {
+                plan = BindingPlan.create(cls);
+                // Entries of unloaded classes, or of plans cleared by the garbage collector, are dropped.
+                Map<ClassKey, SoftReference<BindingPlan>> copy = new HashMap<>(plans.size() + 1);
+                for (Map.Entry<ClassKey, SoftReference<BindingPlan>> entry : plans.entrySet()) {
+                    if ((entry.getKey().get() != null) && (entry.getValue().get() != null)) {
+                        copy.put(entry.getKey(), entry.getValue());
                     }
-                    textView.setAccuracy(defaultAccuracy);
-
-                    String format = writer.format();
-                    textView.setFormat(format);
-
-                    Log.d(TAG, "Charcoal text view initialized -> " +
-                            "\nproperty :: " + property +
-                            "\ndefault unit :: " + defaultUnit +
-                            "\ndefault accuracy :: " + defaultAccuracy +
-                            "\nformat :: " + format);
-                } catch (Exception e) {
-                    e.printStackTrace();
                 }
+                copy.put(key, new SoftReference<>(plan));
+                mPlans = copy;
             }
         }
+        return plan;
+    }
+
+    @Nullable
+    private static BindingPlan getPlan(@NonNull Map<ClassKey, SoftReference<BindingPlan>> plans, @NonNull ClassKey key) {
+        SoftReference<BindingPlan> reference = plans.get(key);
+        return (reference != null) ? reference.get() : null;
+    }
+
+    /**
+     * Initializes a single {@link CharcoalTextView} with the {@link CharcoalSpec} of its annotated field.
+     * Called by the generated {@link CharcoalBinding}s, as well as the reflective fallback, which each create
+     * the spec once per field, so every view bound from that field shares it.
+     *
+     * @param textView      {@link CharcoalTextView} to initialize.
+     * @param assetFileName {@link String} name of the essence file the target was bound with, or null.
+     * @param spec          {@link CharcoalSpec} of the annotated field.
+     */
+    public static void bindView(CharcoalTextView textView, @Nullable String assetFileName, @NonNull CharcoalSpec spec) {
+        if (textView == null) {
+            Log.e(TAG, "Charcoal cannot bind property " + spec.getProperty() + ", the annotated view is null.");
+            return;
+        }
+        if (assetFileName != null) {
+            textView.setEssenceFileName(assetFileName);
+        }
+        textView.setSpec(spec);
+    }
+
+    /**
+     * Returns a new instance of the generated {@link CharcoalBinding} for the passed in class. Only called
+     * when resolving a {@link BindingPlan}, which keeps the instance.
+     *
+     * @param cls Class to get the binding for.
+     * @return {@link CharcoalBinding}, or null if the class has none.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    static CharcoalBinding<Object> getBinding(@NonNull Class<?> cls) {
+        try {
+            Class<?> bindingClass = Class.forName(cls.getName() + CharcoalBinding.SUFFIX, true, cls.getClassLoader());
+            Log.d(TAG, "Using generated binding for " + cls.getName());
+            return (CharcoalBinding<Object>) bindingClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            Log.d(TAG, "No generated binding for " + cls.getName() + ", binding fields reflectively.");
+        } catch (InstantiationException | IllegalAccessException | ClassCastException e) {
+            Log.e(TAG, "Cannot use generated binding for " + cls.getName() + ", binding fields reflectively.", e);
+        }
+        return null;
     }
 
     /**
@@ -161,4 +224,34 @@ public class CharcoalBinder {
         }
         return fields;
     }
+
+    /**
+     * Weak key for a class, equal to every other key for the same class while it is loaded.
+     */
+    private static final class ClassKey extends WeakReference<Class<?>> {
+
+        private final int mHash;
+
+        ClassKey(@NonNull Class<?> cls) {
+            super(cls);
+            mHash = System.identityHashCode(cls);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ClassKey)) {
+                return false;
+            }
+            Class<?> cls = get();
+            return (cls != null) && (cls == ((ClassKey) o).get());
+        }
+    }
 }
@@ -0,0 +1,34 @@
+package com.markiantorno.charcoal;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.view.View;
+
+import com.markiantorno.charcoal.annotation.Charcoal;
+
+/**
+ * Binds the {@link Charcoal} fields declared in a single class, without reflection.
+ * <p>
+ * Implementations are generated at compile time by the charcoal compiler, and named after the class they
+ * bind, ie MainActivity_CharcoalBinding. {@link CharcoalBinder} looks them up by name, and falls back to
+ * reading the annotations reflectively for classes that have none.
+ *
+ * @param <T> Class whose fields are bound.
+ */
+public interface CharcoalBinding<T> {
+
+    /**
+     * Suffix appended to the binary name of the bound class, to get the name of its binding.
+     */
+    String SUFFIX = "_CharcoalBinding";
+
+    /**
+     * Initializes the {@link Charcoal} fields declared in the target's class. Fields of super classes are
+     * bound by their own bindings.
+     *
+     * @param target          Target class for view binding.
+     * @param source          View root the target was bound with.
+     * @param essenceFileName {@link String} name of the essence file the target was bound with, or null.
+     */
+    void bind(@NonNull T target, @NonNull View source, @Nullable String essenceFileName);
+}
@@ -7,6 +7,7 @@ import java.lang.annotation.Inherited;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.math.RoundingMode;
 
 import com.markiantorno.charcoal.view.CharcoalTextView;
 /**
@@ -39,6 +40,12 @@ public @interface Charcoal {
      */
     int accuracy() default NO_ACCURACY_SET;
 
+    /**
+     * How digits beyond the {@link #accuracy()} are dropped. Supports {@link RoundingMode#DOWN}, which
+     * truncates, {@link RoundingMode#HALF_UP} and {@link RoundingMode#HALF_EVEN}.
+     */
+    RoundingMode rounding() default RoundingMode.DOWN;
+
     /**
      * String format for displaying the {@link Observation} value, and unit.
      */
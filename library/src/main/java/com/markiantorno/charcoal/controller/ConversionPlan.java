@@ -0,0 +1,168 @@
+package com.markiantorno.charcoal.controller;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.fhir.ucum.Decimal;
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.UcumException;
+
+/**
+ * A resolved conversion between a source and a target UCUM unit.
+ * <p>
+ * Most UCUM conversions are linear, so a plan reduces them to {@code target = (source * factor) + offset}
+ * once, and every following conversion skips the UCUM parser and model entirely. Pairs that cannot be
+ * converted remember the original error, and the rare non-linear pairs are still delegated to the
+ * {@link UcumEssenceService}.
+ */
+public class ConversionPlan {
+
+    private final String mSourceUnit;
+    private final String mTargetUnit;
+
+    /**
+     * Linear factor and offset, or null if this plan is not linear.
+     */
+    private final Decimal mFactor;
+    private final Decimal mOffset;
+
+    /**
+     * Primitive copies of the linear factor and offset, for the double precision fast path.
+     */
+    private final double mDoubleFactor;
+    private final double mDoubleOffset;
+
+    /**
+     * Message of the {@link UcumException} raised when resolving this pair, or null if convertible.
+     */
+    private final String mError;
+
+    private ConversionPlan(@NonNull String sourceUnit, @NonNull String targetUnit,
+                           @Nullable Decimal factor, @Nullable Decimal offset, @Nullable String error) {
+        mSourceUnit = sourceUnit;
+        mTargetUnit = targetUnit;
+        mFactor = factor;
+        mOffset = offset;
+        mError = error;
+        mDoubleFactor = (factor != null) ? Double.parseDouble(factor.asDecimal()) : Double.NaN;
+        mDoubleOffset = (offset != null) ? Double.parseDouble(offset.asDecimal()) : Double.NaN;
+    }
+
+    static ConversionPlan linear(@NonNull String sourceUnit, @NonNull String targetUnit,
+                                 @NonNull Decimal factor, @NonNull Decimal offset) {
+        return new ConversionPlan(sourceUnit, targetUnit, factor, offset, null);
+    }
+
+    static ConversionPlan nonLinear(@NonNull String sourceUnit, @NonNull String targetUnit) {
+        return new ConversionPlan(sourceUnit, targetUnit, null, null, null);
+    }
+
+    static ConversionPlan unconvertible(@NonNull String sourceUnit, @NonNull String targetUnit, String error) {
+        return new ConversionPlan(sourceUnit, targetUnit, null, null,
+                (error != null) ? error : "Unable to convert between units " + sourceUnit + " and " + targetUnit);
+    }
+
+    public String getSourceUnit() {
+        return mSourceUnit;
+    }
+
+    public String getTargetUnit() {
+        return mTargetUnit;
+    }
+
+    /**
+     * @return {@link Boolean#TRUE} if values can be converted between the two units at all.
+     */
+    public boolean isConvertible() {
+        return (mError == null);
+    }
+
+    /**
+     * @return {@link Boolean#TRUE} if this plan is resolved to a precomputed factor and offset.
+     */
+    public boolean isLinear() {
+        return (mFactor != null);
+    }
+
+    /**
+     * Returns true if this plan can convert primitive doubles. Requires a linear plan, with a factor
+     * and offset that are representable as finite doubles.
+     *
+     * @return {@link Boolean#TRUE} if {@link #convert(double)} can be used.
+     */
+    public boolean isDoubleSafe() {
+        return isLinear() && isFinite(mDoubleFactor) && isFinite(mDoubleOffset);
+    }
+
+    /**
+     * @return The linear factor, or null if this plan is not linear.
+     */
+    public Decimal getFactor() {
+        return mFactor;
+    }
+
+    /**
+     * @return The linear offset, or null if this plan is not linear.
+     */
+    public Decimal getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Converts the passed in value from the source unit to the target unit of this plan.
+     *
+     * @param value       {@link Decimal} value in the source unit.
+     * @param ucumService {@link UcumEssenceService} to use when this plan is not linear.
+     * @return {@link Decimal} value in the target unit.
+     * @throws UcumException If the units of this plan cannot be converted.
+     */
+    public Decimal convert(@NonNull Decimal value, @NonNull UcumEssenceService ucumService) throws UcumException {
+        if (mError != null) {
+            throw new UcumException(mError);
+        } else if (mFactor == null) {
+            return ucumService.convert(value, mSourceUnit, mTargetUnit);
+        }
+
+        Decimal result = mFactor.isOne() ? value : value.multiply(mFactor);
+        return mOffset.isZero() ? result : result.add(mOffset);
+    }
+
+    /**
+     * Converts the passed in primitive value from the source unit to the target unit of this plan.
+     * Only valid if {@link #isDoubleSafe()}.
+     *
+     * @param value Value in the source unit.
+     * @return Value in the target unit.
+     */
+    public double convert(double value) {
+        return (value * mDoubleFactor) + mDoubleOffset;
+    }
+
+    /**
+     * Converts a range of primitive values from the source unit to the target unit of this plan.
+     * Only valid if {@link #isDoubleSafe()}.
+     *
+     * @param values Values in the source unit.
+     * @param out    Array to write the values in the target unit to, at the same indices.
+     * @param start  First index to convert, inclusive.
+     * @param end    Last index to convert, exclusive.
+     */
+    public void convert(@NonNull double[] values, @NonNull double[] out, int start, int end) {
+        final double factor = mDoubleFactor;
+        final double offset = mDoubleOffset;
+        for (int i = start; i < end; i++) {
+            out[i] = (values[i] * factor) + offset;
+        }
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    @Override
+    public String toString() {
+        return "ConversionPlan{" + mSourceUnit + " -> " + mTargetUnit +
+                (isLinear() ? ", factor=" + mFactor + ", offset=" + mOffset : "") +
+                (isConvertible() ? "" : ", error=" + mError) + "}";
+    }
+}
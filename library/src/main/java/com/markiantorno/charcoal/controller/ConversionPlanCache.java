@@ -0,0 +1,137 @@
+package com.markiantorno.charcoal.controller;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.fhir.ucum.Decimal;
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.UcumException;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of {@link ConversionPlan}s for a single loaded {@link UcumEssenceService}.
+ * <p>
+ * Each (source unit, target unit) pair is resolved against UCUM once. The cache is bound to the
+ * service it was created with, so loading a new essence file means creating a new cache.
+ */
+public class ConversionPlanCache {
+
+    public static final String TAG = ConversionPlanCache.class.getSimpleName();
+
+    /**
+     * Value used to verify that a resolved factor and offset describe the conversion.
+     */
+    private static final String LINEARITY_PROBE = "10";
+
+    /**
+     * Relative difference tolerated between UCUM and the plan when verifying the probe value.
+     */
+    private static final double LINEARITY_TOLERANCE = 1e-9;
+
+    private final UcumEssenceService mUcumService;
+
+    /**
+     * Plans keyed by source unit, then target unit, so that lookups don't allocate a combined key.
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, ConversionPlan>> mPlans = new ConcurrentHashMap<>();
+
+    public ConversionPlanCache(@NonNull UcumEssenceService ucumService) {
+        mUcumService = ucumService;
+    }
+
+    public UcumEssenceService getUcumService() {
+        return mUcumService;
+    }
+
+    /**
+     * Returns the {@link ConversionPlan} for the given pair of units, resolving it on first use.
+     *
+     * @param sourceUnit UCUM {@link String} unit to convert from.
+     * @param targetUnit UCUM {@link String} unit to convert to.
+     * @return {@link ConversionPlan}
+     */
+    public ConversionPlan getPlan(@NonNull String sourceUnit, @NonNull String targetUnit) {
+        ConcurrentHashMap<String, ConversionPlan> targets = mPlans.get(sourceUnit);
+        if (targets == null) {
+            ConcurrentHashMap<String, ConversionPlan> created = new ConcurrentHashMap<>();
+            targets = mPlans.putIfAbsent(sourceUnit, created);
+            if (targets == null) {
+                targets = created;
+            }
+        }
+
+        ConversionPlan plan = targets.get(targetUnit);
+        if (plan == null) {
+            // Racing threads may both resolve the same pair, which is harmless, as the result is identical.
+            plan = resolve(sourceUnit, targetUnit);
+            ConversionPlan existing = targets.putIfAbsent(targetUnit, plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the {@link ConversionPlan} for the given pair of units, if it was resolved before.
+     *
+     * @param sourceUnit UCUM {@link String} unit to convert from.
+     * @param targetUnit UCUM {@link String} unit to convert to.
+     * @return {@link ConversionPlan}, or null.
+     */
+    @Nullable
+    public ConversionPlan peekPlan(@NonNull String sourceUnit, @NonNull String targetUnit) {
+        ConcurrentHashMap<String, ConversionPlan> targets = mPlans.get(sourceUnit);
+        return (targets != null) ? targets.get(targetUnit) : null;
+    }
+
+    /**
+     * Removes all resolved plans.
+     */
+    public void clear() {
+        mPlans.clear();
+    }
+
+    /**
+     * @return Number of resolved plans.
+     */
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<String, ConversionPlan> targets : mPlans.values()) {
+            size += targets.size();
+        }
+        return size;
+    }
+
+    /**
+     * Resolves the conversion between the two units through UCUM, by converting zero and one to get
+     * the offset and factor, and verifying the result against a third value.
+     */
+    protected ConversionPlan resolve(@NonNull String sourceUnit, @NonNull String targetUnit) {
+        Log.d(TAG, "Resolving conversion plan for " + sourceUnit + " -> " + targetUnit);
+        try {
+            Decimal offset = mUcumService.convert(Decimal.zero(), sourceUnit, targetUnit);
+            Decimal factor = mUcumService.convert(Decimal.one(), sourceUnit, targetUnit).subtract(offset);
+
+            Decimal probe = new Decimal(LINEARITY_PROBE);
+            double expected = Double.parseDouble(probe.multiply(factor).add(offset).asDecimal());
+            double actual = Double.parseDouble(mUcumService.convert(probe, sourceUnit, targetUnit).asDecimal());
+
+            if (Math.abs(expected - actual) <= LINEARITY_TOLERANCE * Math.max(1d, Math.abs(actual))) {
+                return ConversionPlan.linear(sourceUnit, targetUnit, factor, offset);
+            } else {
+                Log.d(TAG, "Conversion " + sourceUnit + " -> " + targetUnit + " is not linear, delegating to UCUM.");
+                return ConversionPlan.nonLinear(sourceUnit, targetUnit);
+            }
+        } catch (UcumException e) {
+            Log.d(TAG, "No conversion possible for " + sourceUnit + " -> " + targetUnit + ", " + e.getMessage());
+            return ConversionPlan.unconvertible(sourceUnit, targetUnit, e.getMessage());
+        } catch (RuntimeException e) {
+            // UCUM fails with runtime exceptions for some special units, ie 'Cel'.
+            Log.e(TAG, "UCUM failed to convert " + sourceUnit + " -> " + targetUnit + ", " + e.getMessage());
+            return ConversionPlan.unconvertible(sourceUnit, targetUnit, e.getMessage());
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package com.markiantorno.charcoal.controller;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import org.fhir.ucum.Decimal;
 import org.fhir.ucum.UcumEssenceService;
 import org.fhir.ucum.UcumException;
 
+import com.markiantorno.charcoal.loader.CustomThreadPoolManager;
+
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Controller for loading and accessing the {@link EssenceController} and {@link org.fhir.ucum.UcumModel}
@@ -20,34 +30,256 @@ public class EssenceController {
     public static final String TAG = EssenceController.class.getSimpleName();
 
     /**
-     * Name of the UCUM xml definition file within the projects assets folder.
+     * The loaded {@link EssenceModel}, or null. Published snapshots are never modified, so readers take
+     * one, and use it throughout, while new ones are swapped in.
+     */
+    private static final AtomicReference<EssenceModel> mModel = new AtomicReference<>();
+
+    /**
+     * Models loaded so far, kept resident within a memory budget, so that binding another essence file
+     * and back does not parse it again.
+     */
+    private static final EssenceRegistry mRegistry = new EssenceRegistry(EssenceRegistry.DEFAULT_MEMORY_BUDGET);
+
+    /**
+     * Configured unit aliases, kept across loaded models.
+     */
+    private static final ConcurrentHashMap<String, String> mUnitAliases = new ConcurrentHashMap<>();
+
+    /**
+     * Latest background load started through {@link #setEssenceFileAsync(String, Context)}.
+     */
+    private static volatile EssenceLoadTask mLoadTask;
+
+    /**
+     * Guards starting background loads, separately from the locks held while a model loads.
+     */
+    private static final Object mLoadLock = new Object();
+
+    /**
+     * Incremented by {@link #clearModel()}, so loads started before it are dropped. Read without locking,
+     * and checked again under {@link #mPublishLock} before a loaded model is published.
+     */
+    private static final AtomicInteger mModelGeneration = new AtomicInteger();
+
+    /**
+     * Locks held while an essence file is parsed, one per file name, see {@link #getLoadLock(String)}.
+     */
+    private static final ConcurrentHashMap<String, Object> mFileLoadLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Guards publishing a loaded model against {@link #clearModel()}. Only held briefly, never while a
+     * model is parsed.
      */
-    private static String mEssenceFileName;
+    private static final Object mPublishLock = new Object();
 
     /**
-     * Singleton reference to the loaded {@link UcumEssenceService}
+     * Whether conversions may use primitive doubles instead of arbitrary precision {@link Decimal}s.
      */
-    private static UcumEssenceService mUcumService;
+    private static volatile boolean mFastConversionEnabled = false;
 
     /**
-     * Loads the essence file provided.
+     * Callback for when a model loaded through {@link #setEssenceFileAsync(String, Context)} is ready.
+     */
+    public interface OnEssenceLoadedListener {
+
+        /**
+         * Called on the main thread once loading completes.
+         *
+         * @param ucumService The loaded {@link UcumEssenceService}, or null if loading failed.
+         */
+        void onEssenceLoaded(@Nullable UcumEssenceService ucumService);
+    }
+
+    /**
+     * Loads the essence file provided, on the calling thread. Apps that precompile their essence files get
+     * the model from the generated {@link EssenceTable}, without reading the asset at all. Otherwise, after
+     * the first launch, the model is read from an {@link EssenceSnapshot} in the app's files directory,
+     * instead of parsing the xml again.
      *
      * @param fileName {@link String} name of UCUM xml definition file in the project assets directory to load.
      * @param ctx      {@link Context} used to load assets.
      * @return {@link UcumEssenceService}
      */
     public static UcumEssenceService setEssenceFile(@NonNull String fileName, @NonNull Context ctx) {
-        if (shouldLoadModel(fileName)) {
+        EssenceModel model = loadModel(fileName, ctx);
+        return (model != null) ? model.getUcumService() : getUcumService();
+    }
+
+    /**
+     * Loads the essence file provided on a background thread. Use the returned {@link Future}, or
+     * {@link #addOnEssenceLoadedListener(OnEssenceLoadedListener)}, to find out when the model is ready.
+     * Requests for a file that is already loading return the pending load.
+     *
+     * @param fileName {@link String} name of UCUM xml definition file in the project assets directory to load.
+     * @param ctx      {@link Context} used to load assets.
+     * @return {@link Future} of the loaded {@link UcumEssenceService}, which is null if loading failed.
+     */
+    public static Future<UcumEssenceService> setEssenceFileAsync(@NonNull final String fileName, @NonNull Context ctx) {
+        // Loads can outlive the activity that started them.
+        final Context appContext = (ctx.getApplicationContext() != null) ? ctx.getApplicationContext() : ctx;
+        synchronized (mLoadLock) {
+            EssenceLoadTask loadTask = mLoadTask;
+            if ((loadTask != null) && loadTask.getFileName().equals(fileName)
+                    && (!loadTask.isDone() || !shouldLoadModel(fileName))) {
+                return loadTask;
+            }
+            final int generation = mModelGeneration.get();
+            loadTask = new EssenceLoadTask(fileName, () -> {
+                EssenceModel model = loadModel(fileName, appContext, generation);
+                return (model != null) ? model.getUcumService() : null;
+            });
+            mLoadTask = loadTask;
+            CustomThreadPoolManager.getsInstance().execute(loadTask);
+            return loadTask;
+        }
+    }
+
+    /**
+     * @return {@link Boolean#TRUE} if a model is loaded.
+     */
+    public static boolean isEssenceLoaded() {
+        return (mModel.get() != null);
+    }
+
+    /**
+     * @return {@link Boolean#TRUE} if a background load started through
+     * {@link #setEssenceFileAsync(String, Context)} has not completed yet.
+     */
+    public static boolean isEssenceLoading() {
+        return isEssenceLoading(null);
+    }
+
+    /**
+     * @param fileName {@link String} name of the essence file, or null for any file.
+     * @return {@link Boolean#TRUE} if a background load of the given file, started through
+     * {@link #setEssenceFileAsync(String, Context)}, has not completed yet.
+     */
+    public static boolean isEssenceLoading(@Nullable String fileName) {
+        EssenceLoadTask loadTask = mLoadTask;
+        return (loadTask != null) && !loadTask.isDone()
+                && ((fileName == null) || loadTask.getFileName().equals(fileName));
+    }
+
+    /**
+     * Notifies the passed in listener on the main thread once the pending background load completes, or
+     * as soon as possible with the current model, if nothing is loading.
+     *
+     * @param listener {@link OnEssenceLoadedListener} to notify.
+     */
+    public static void addOnEssenceLoadedListener(@NonNull final OnEssenceLoadedListener listener) {
+        EssenceLoadTask loadTask = mLoadTask;
+        if (loadTask != null) {
+            loadTask.addListener(listener);
+        } else {
+            new Handler(Looper.getMainLooper()).post(() -> {
+                EssenceModel model = mModel.get();
+                listener.onEssenceLoaded((model != null) ? model.getUcumService() : null);
+            });
+        }
+    }
+
+    /**
+     * Swaps in the model for the given file as the current model, loading it first, unless it is resident.
+     * Conversions running against the previous model are unaffected.
+     *
+     * @return The loaded {@link EssenceModel}, or null if the file cannot be loaded.
+     */
+    private static EssenceModel loadModel(@NonNull String fileName, @NonNull Context ctx) {
+        return loadModel(fileName, ctx, mModelGeneration.get());
+    }
+
+    /**
+     * Swaps in the model for the given file, see {@link #loadModel(String, Context)}, unless the model was
+     * cleared since the load was requested.
+     *
+     * @param generation Model generation the load was requested in.
+     * @return The loaded {@link EssenceModel}, or null if the file cannot be loaded, or the load was dropped.
+     */
+    private static EssenceModel loadModel(@NonNull String fileName, @NonNull Context ctx, int generation) {
+        if (generation != mModelGeneration.get()) {
+            Log.d(TAG, "Model cleared since loading " + fileName + " was requested, dropping load.");
+            return null;
+        }
+        if (!shouldLoadModel(fileName)) {
+            return mModel.get();
+        }
+        EssenceModel model = loadResidentModel(fileName, ctx, generation);
+        if (model == null) {
+            return null;
+        }
+        synchronized (mPublishLock) {
+            if (generation != mModelGeneration.get()) {
+                Log.d(TAG, "Model cleared while loading " + fileName + ", dropping load.");
+                return null;
+            }
+            mModel.set(model);
+        }
+        // Aliases added while the model was being loaded.
+        updateUnitAliases();
+        return mModel.get();
+    }
+
+    /**
+     * Returns the resident model for the given file, loading it into the registry, if it is not resident,
+     * without changing the current model. The model is built without holding any shared lock, so files
+     * load in parallel, and only the lock of the file itself is held, so a file requested from several
+     * threads is only parsed once.
+     *
+     * @param generation Model generation the load was requested in.
+     * @return The {@link EssenceModel}, or null if the file cannot be loaded, or the model was cleared since.
+     */
+    private static EssenceModel loadResidentModel(@NonNull String fileName, @NonNull Context ctx, int generation) {
+        EssenceModel model = getModel(fileName);
+        if (model != null) {
+            return model;
+        }
+        synchronized (getLoadLock(fileName)) {
+            // Loaded by another thread while this one waited.
+            model = getModel(fileName);
+            if (model != null) {
+                return model;
+            }
             try {
-                mUcumService = new UcumEssenceService(ctx.getAssets().open(fileName));
-                mEssenceFileName = fileName;
+                UcumEssenceService ucumService = PrecompiledEssence.load(fileName);
+                if (ucumService == null) {
+                    ucumService = EssenceSnapshot.load(ctx, fileName);
+                }
+                model = new EssenceModel(fileName, ucumService, mUnitAliases);
             } catch (UcumException e) {
                 Log.e(TAG, "Cannot load your provided UCUM xml definitions file, " + e.getMessage());
+                return null;
             } catch (IOException e) {
                 Log.e(TAG, "Cannot load your provided UCUM xml definitions file, " + e.getMessage());
+                return null;
+            }
+            synchronized (mPublishLock) {
+                if (generation != mModelGeneration.get()) {
+                    Log.d(TAG, "Model cleared while loading " + fileName + ", dropping load.");
+                    return null;
+                }
+                mRegistry.put(model);
+            }
+            return model;
+        }
+    }
+
+    /**
+     * Returns the lock held while the given essence file is parsed.
+     *
+     * @param fileName {@link String} name of the essence file.
+     * @return Lock {@link Object}, the same for every call with the same file name.
+     */
+    static Object getLoadLock(@NonNull String fileName) {
+        Object lock = mFileLoadLocks.get(fileName);
+        if (lock == null) {
+            Object created = new Object();
+            lock = mFileLoadLocks.putIfAbsent(fileName, created);
+            if (lock == null) {
+                lock = created;
             }
         }
-        return getUcumService();
+        return lock;
     }
 
     /**
@@ -58,17 +290,114 @@ public class EssenceController {
      * @return {@link Boolean#TRUE} if the file should be loaded.
      */
     protected static boolean shouldLoadModel(String fileName) {
-        return ((mEssenceFileName == null) ||
-                (!mEssenceFileName.equals(fileName)) ||
-                (mUcumService == null));
+        EssenceModel model = mModel.get();
+        return ((model == null) || (!model.getFileName().equals(fileName)));
     }
 
     /**
-     * Clears the currently loaded UCUM data.
+     * Clears the currently loaded UCUM data. A pending background load is cancelled, and should it already
+     * be running, its model is dropped rather than swapped in.
      */
     public static void clearModel() {
-        mEssenceFileName = null;
-        mUcumService = null;
+        EssenceLoadTask loadTask;
+        synchronized (mLoadLock) {
+            loadTask = mLoadTask;
+            mLoadTask = null;
+        }
+        if (loadTask != null) {
+            loadTask.cancel(true);
+        }
+        synchronized (mPublishLock) {
+            mModelGeneration.incrementAndGet();
+            mModel.set(null);
+            mRegistry.clear();
+        }
+    }
+
+    /**
+     * Sets how much memory loaded models may hold on to, see {@link EssenceRegistry}. The current model is
+     * kept, regardless of the budget.
+     *
+     * @param memoryBudget Maximum estimated size, in bytes, of all resident models.
+     */
+    public static void setModelMemoryBudget(long memoryBudget) {
+        mRegistry.setMemoryBudget(memoryBudget);
+    }
+
+    /**
+     * @return Maximum estimated size, in bytes, of all resident models.
+     */
+    public static long getModelMemoryBudget() {
+        return mRegistry.getMemoryBudget();
+    }
+
+    /**
+     * Enables or disables the primitive double conversion mode. When enabled, values are converted and
+     * rounded as doubles end to end, and only conversions that need more precision than a double can
+     * hold fall back to {@link Decimal}. Values are displayed without trailing zeros, ie 2.2 rather than
+     * 2.20, see {@link com.markiantorno.charcoal.format.PrecisionFormatter}. Disabled by default.
+     *
+     * @param enabled {@link Boolean#TRUE} to enable primitive conversions.
+     */
+    public static void setFastConversionEnabled(boolean enabled) {
+        mFastConversionEnabled = enabled;
+    }
+
+    /**
+     * @return {@link Boolean#TRUE} if the primitive double conversion mode is enabled.
+     */
+    public static boolean isFastConversionEnabled() {
+        return mFastConversionEnabled;
+    }
+
+    /**
+     * Gets the current {@link EssenceModel}, or null, if no model is loaded. Use the returned snapshot for
+     * work that needs to see the same model throughout.
+     *
+     * @return {@link EssenceModel}
+     */
+    @Nullable
+    public static EssenceModel getModel() {
+        return mModel.get();
+    }
+
+    /**
+     * Gets the resident {@link EssenceModel} for the given essence file.
+     *
+     * @param fileName {@link String} name of the essence file, or null for the current model.
+     * @return {@link EssenceModel}, or null, if the file is not loaded.
+     */
+    @Nullable
+    public static EssenceModel getModel(@Nullable String fileName) {
+        EssenceModel current = mModel.get();
+        if ((fileName == null) || ((current != null) && current.getFileName().equals(fileName))) {
+            return current;
+        }
+        EssenceModel model = mRegistry.get(fileName);
+        if ((model != null) && !model.getUnitAliases().equals(mUnitAliases)) {
+            EssenceModel updated = model.withUnitAliases(mUnitAliases);
+            mRegistry.replace(model, updated);
+            model = updated;
+        }
+        return model;
+    }
+
+    /**
+     * Gets the {@link EssenceModel} for the given essence file, loading it on the calling thread, if it is
+     * not resident, ie after it was evicted. Does not change the current model. Call from a worker thread.
+     *
+     * @param fileName {@link String} name of the essence file, or null for the current model.
+     * @param ctx      {@link Context} used to load assets.
+     * @return {@link EssenceModel}, or the current model, if the file cannot be loaded.
+     */
+    @Nullable
+    public static EssenceModel getModel(@Nullable String fileName, @NonNull Context ctx) {
+        EssenceModel model = getModel(fileName);
+        if ((model == null) && (fileName != null)) {
+            model = loadResidentModel(fileName, ctx.getApplicationContext() != null ? ctx.getApplicationContext() : ctx,
+                    mModelGeneration.get());
+        }
+        return (model != null) ? model : mModel.get();
     }
 
     /**
@@ -77,8 +406,9 @@ public class EssenceController {
      * @return {@link UcumEssenceService}
      */
     public static UcumEssenceService getUcumService() {
-        if (mUcumService != null) {
-            return mUcumService;
+        EssenceModel model = mModel.get();
+        if (model != null) {
+            return model.getUcumService();
         } else {
             Log.e(TAG, "No UCUM model loaded.");
             return null;
@@ -86,19 +416,71 @@ public class EssenceController {
     }
 
     /**
-     * Returns the UCUM code for the given code.
+     * Returns the UCUM code for the given code. Case insensitive codes, ie 'MMOL/L', and configured
+     * aliases resolve to the canonical UCUM code, ie 'mmol/L'.
      *
      * @param humanReadableString {@link String} of unit to get the code for.
      */
     public static String getUnitCode(String humanReadableString) {
-        if (getUcumService() == null) {
+        EssenceModel model = mModel.get();
+        String code = ((model != null) && (humanReadableString != null)) ? model.getUnitCode(humanReadableString) : null;
+        if (model == null) {
             Log.e(TAG, "getUnitPrintSymbol -> No UCUMEssenceService could be found. Returning blank unit String...");
             return "";
-        } else if (getUcumService().getModel().getUnit(humanReadableString) == null) {
+        } else if (code == null) {
             Log.e(TAG, "getUnitPrintSymbol -> .getUnitCode(" + humanReadableString + ") returns null. Returning blank unit String...");
             return "";
         } else {
-            return getUcumService().getModel().getUnit(humanReadableString).getCode();
+            return code;
+        }
+    }
+
+    /**
+     * Adds an alias for a UCUM code, for unit codes sent by devices or servers that are not valid UCUM,
+     * ie 'm[mol]/l' for 'mmol/L'. Aliases are kept when a new essence file is loaded.
+     *
+     * @param alias {@link String} code to accept.
+     * @param code  UCUM {@link String} code the alias stands for.
+     */
+    public static void addUnitAlias(@NonNull String alias, @NonNull String code) {
+        mUnitAliases.put(alias, code);
+        updateUnitAliases();
+    }
+
+    /**
+     * Removes an alias added through {@link #addUnitAlias(String, String)}.
+     *
+     * @param alias {@link String} code to no longer accept.
+     */
+    public static void removeUnitAlias(@NonNull String alias) {
+        if (mUnitAliases.remove(alias) != null) {
+            updateUnitAliases();
+        }
+    }
+
+    /**
+     * Removes all aliases added through {@link #addUnitAlias(String, String)}.
+     */
+    public static void clearUnitAliases() {
+        mUnitAliases.clear();
+        updateUnitAliases();
+    }
+
+    /**
+     * Swaps in a snapshot of the current model with the configured aliases, unless it already has them.
+     * Retries if another model is swapped in meanwhile, so that no alias is lost to a concurrent load.
+     */
+    private static void updateUnitAliases() {
+        while (true) {
+            EssenceModel model = mModel.get();
+            if ((model == null) || model.getUnitAliases().equals(mUnitAliases)) {
+                return;
+            }
+            EssenceModel updated = model.withUnitAliases(mUnitAliases);
+            if (mModel.compareAndSet(model, updated)) {
+                mRegistry.replace(model, updated);
+                return;
+            }
         }
     }
 
@@ -109,14 +491,84 @@ public class EssenceController {
      * @return {@link String} Human readable String for display.
      */
     public static String getHumanReadableUnitString(@NonNull String unit) {
-        String humanReadableUnitString;
+        EssenceModel model = mModel.get();
+        if (model == null) {
+            Log.e(TAG, "getHumanReadableUnitString -> No UCUM model loaded. Returning unit code...");
+            return unit;
+        }
+        return model.getHumanReadableUnitString(unit);
+    }
 
-        if ((getUcumService().getModel() != null) && (getUcumService().getModel().getUnit(unit) != null)) {
-            humanReadableUnitString = getUcumService().getModel().getUnit(unit).getPrintSymbol();
-        } else {
-            humanReadableUnitString = getUcumService().getCommonDisplay(unit);
+    /**
+     * Returns the interned representative of the passed in unit expression, so that units can be compared
+     * by reference. Expressions for the same unit, ie 'mmol/L' and 'mmol/l', return the same instance.
+     * Representatives are only shared within one {@link EssenceModel}.
+     *
+     * @param unit UCUM {@link String} unit expression.
+     * @return Interned UCUM {@link String} unit, or the passed in unit, if no model is loaded.
+     */
+    public static String internUnitCode(@NonNull String unit) {
+        EssenceModel model = mModel.get();
+        if (model == null) {
+            return unit;
         }
+        return model.internUnitCode(unit);
+    }
+
+    /**
+     * Returns the {@link ConversionPlan} for the given pair of units, or null, if no model is loaded.
+     *
+     * @param sourceUnit UCUM {@link String} unit to convert from.
+     * @param targetUnit UCUM {@link String} unit to convert to.
+     * @return {@link ConversionPlan}
+     */
+    public static ConversionPlan getConversionPlan(@NonNull String sourceUnit, @NonNull String targetUnit) {
+        EssenceModel model = mModel.get();
+        if (model == null) {
+            Log.e(TAG, "getConversionPlan -> No UCUM model loaded.");
+            return null;
+        }
+        return model.getConversionPlan(sourceUnit, targetUnit);
+    }
 
-        return humanReadableUnitString;
+    /**
+     * Converts the passed in value between the given units, using the cached {@link ConversionPlan}
+     * for the pair.
+     *
+     * @param value      {@link Decimal} value to convert.
+     * @param sourceUnit UCUM {@link String} unit to convert from.
+     * @param targetUnit UCUM {@link String} unit to convert to.
+     * @return The converted {@link Decimal} value.
+     * @throws UcumException If no model is loaded, or the units cannot be converted.
+     */
+    public static Decimal convert(@NonNull Decimal value, @NonNull String sourceUnit, @NonNull String targetUnit) throws UcumException {
+        EssenceModel model = mModel.get();
+        if (model == null) {
+            throw new UcumException("No UCUM model loaded.");
+        }
+        return model.convert(value, sourceUnit, targetUnit);
+    }
+
+    /**
+     * Converts an array of values between the given units. The unit pair is resolved once, after which
+     * linear conversions run as a tight loop over primitives, split across the available cores for
+     * large arrays.
+     * <p>
+     * Example: convert(glucoseReadings, "mg/dL", "g/L", convertedReadings);
+     * </p>
+     *
+     * @param values     Values to convert.
+     * @param sourceUnit UCUM {@link String} unit to convert from.
+     * @param targetUnit UCUM {@link String} unit to convert to.
+     * @param out        Array to write the converted values to, at least as long as values. May be values itself.
+     * @throws UcumException If no model is loaded, or the units cannot be converted.
+     */
+    public static void convert(@NonNull double[] values, @NonNull String sourceUnit, @NonNull String targetUnit,
+                               @NonNull double[] out) throws UcumException {
+        EssenceModel model = mModel.get();
+        if (model == null) {
+            throw new UcumException("No UCUM model loaded.");
+        }
+        model.convert(values, sourceUnit, targetUnit, out);
     }
 }
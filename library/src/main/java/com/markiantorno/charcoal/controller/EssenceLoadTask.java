@@ -0,0 +1,93 @@
+package com.markiantorno.charcoal.controller;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.fhir.ucum.UcumEssenceService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Background load of an essence file. Doubles as the readiness future handed out by
+ * {@link EssenceController#setEssenceFileAsync(String, android.content.Context)}, and notifies registered
+ * {@link EssenceController.OnEssenceLoadedListener}s on the main thread once the load completes.
+ */
+class EssenceLoadTask extends FutureTask<UcumEssenceService> {
+
+    public static final String TAG = EssenceLoadTask.class.getSimpleName();
+
+    private final String mFileName;
+
+    /**
+     * Listeners waiting for the load, or null once they have been notified.
+     */
+    private List<EssenceController.OnEssenceLoadedListener> mListeners = new ArrayList<>();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    EssenceLoadTask(@NonNull String fileName, @NonNull Callable<UcumEssenceService> load) {
+        super(load);
+        mFileName = fileName;
+    }
+
+    String getFileName() {
+        return mFileName;
+    }
+
+    /**
+     * Notifies the passed in listener on the main thread once the load completes, or straight away, if
+     * it already has.
+     *
+     * @param listener {@link EssenceController.OnEssenceLoadedListener} to notify.
+     */
+    void addListener(@NonNull EssenceController.OnEssenceLoadedListener listener) {
+        synchronized (this) {
+            if (mListeners != null) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    @Override
+    protected void done() {
+        List<EssenceController.OnEssenceLoadedListener> listeners;
+        synchronized (this) {
+            listeners = mListeners;
+            mListeners = null;
+        }
+        Log.d(TAG, "Finished loading " + mFileName + ", notifying " + listeners.size() + " listeners.");
+        for (EssenceController.OnEssenceLoadedListener listener : listeners) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(@NonNull final EssenceController.OnEssenceLoadedListener listener) {
+        mMainHandler.post(() -> listener.onEssenceLoaded(getResult()));
+    }
+
+    /**
+     * @return The loaded {@link UcumEssenceService}, or null if loading failed.
+     */
+    private UcumEssenceService getResult() {
+        if (isCancelled()) {
+            return null;
+        }
+        try {
+            return get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Cannot load " + mFileName + ", " + e.getCause());
+            return null;
+        }
+    }
+}
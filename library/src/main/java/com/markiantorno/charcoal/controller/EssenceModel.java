@@ -0,0 +1,261 @@
+package com.markiantorno.charcoal.controller;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.fhir.ucum.BaseUnit;
+import org.fhir.ucum.Concept;
+import org.fhir.ucum.Decimal;
+import org.fhir.ucum.DefinedUnit;
+import org.fhir.ucum.Prefix;
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.UcumException;
+import org.fhir.ucum.UcumModel;
+import org.fhir.ucum.Value;
+
+import com.markiantorno.charcoal.loader.BatchConverter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of a loaded essence file, ie the {@link UcumEssenceService}, together with the index
+ * and caches built for it.
+ * <p>
+ * {@link EssenceController} publishes a new snapshot whenever an essence file is loaded, or an alias is
+ * added, and never changes a published one. A conversion that reads the snapshot once, and uses it
+ * throughout, always sees a consistent model, even if another is swapped in halfway through.
+ */
+public final class EssenceModel {
+
+    public static final String TAG = EssenceModel.class.getSimpleName();
+
+    private final String mFileName;
+    private final UcumEssenceService mUcumService;
+    private final Map<String, String> mUnitAliases;
+    private final ConversionPlanCache mConversionPlans;
+    private final UnitIndex mUnitIndex;
+    private final UnitDisplayCache mUnitDisplays;
+    private final UnitExpressionCache mUnitExpressions;
+    private final long mEstimatedSize;
+
+    /**
+     * Rough per object costs, in bytes, used to estimate the memory held by a model. Only meant to compare
+     * models against a budget, not to be exact.
+     */
+    private static final int OBJECT_OVERHEAD = 16;
+    private static final int STRING_OVERHEAD = 40;
+    private static final int CONCEPT_OVERHEAD = 96;
+    private static final int INDEX_ENTRY_OVERHEAD = 48;
+
+    EssenceModel(@NonNull String fileName, @NonNull UcumEssenceService ucumService, @NonNull Map<String, String> unitAliases) {
+        this(fileName, ucumService, unitAliases, new ConversionPlanCache(ucumService));
+    }
+
+    private EssenceModel(@NonNull String fileName, @NonNull UcumEssenceService ucumService,
+                         @NonNull Map<String, String> unitAliases, @NonNull ConversionPlanCache conversionPlans) {
+        mFileName = fileName;
+        mUcumService = ucumService;
+        mUnitAliases = Collections.unmodifiableMap(new HashMap<>(unitAliases));
+        mConversionPlans = conversionPlans;
+        mUnitIndex = new UnitIndex(ucumService.getModel(), mUnitAliases);
+        mUnitDisplays = new UnitDisplayCache(ucumService, mUnitIndex);
+        mUnitExpressions = new UnitExpressionCache(ucumService, mUnitIndex);
+        mEstimatedSize = estimateSize(ucumService.getModel(), mUnitIndex);
+    }
+
+    /**
+     * Creates a snapshot of the same model with the given aliases. Conversion plans are keyed by UCUM
+     * code, so they are shared, while expressions and displays resolved before the aliases existed are
+     * rebuilt.
+     *
+     * @param unitAliases Aliases for the new snapshot.
+     * @return {@link EssenceModel}
+     */
+    EssenceModel withUnitAliases(@NonNull Map<String, String> unitAliases) {
+        return new EssenceModel(mFileName, mUcumService, unitAliases, mConversionPlans);
+    }
+
+    /**
+     * @return {@link String} name of the essence file this model was loaded from.
+     */
+    public String getFileName() {
+        return mFileName;
+    }
+
+    public UcumEssenceService getUcumService() {
+        return mUcumService;
+    }
+
+    /**
+     * @return Unmodifiable {@link Map} of the aliases this snapshot was built with.
+     */
+    public Map<String, String> getUnitAliases() {
+        return mUnitAliases;
+    }
+
+    /**
+     * @return Rough estimate, in bytes, of the memory held by this model, ie its units, prefixes and index.
+     * Caches filled by conversions are not included.
+     */
+    public long getEstimatedSize() {
+        return mEstimatedSize;
+    }
+
+    /**
+     * See {@link EssenceController#getUnitCode(String)}.
+     *
+     * @param unit {@link String} of unit to get the code for.
+     * @return UCUM {@link String} code, or null if the unit is unknown.
+     */
+    @Nullable
+    public String getUnitCode(@NonNull String unit) {
+        return mUnitIndex.resolve(unit);
+    }
+
+    /**
+     * See {@link EssenceController#getHumanReadableUnitString(String)}.
+     *
+     * @param unit UCUM notation unit.
+     * @return {@link String} Human readable String for display.
+     */
+    public String getHumanReadableUnitString(@NonNull String unit) {
+        return mUnitDisplays.getHumanReadableUnitString(unit);
+    }
+
+    /**
+     * Returns the human readable version of the passed in unit, if it was resolved before, see
+     * {@link #getHumanReadableUnitString(String)}.
+     *
+     * @param unit UCUM notation unit.
+     * @return {@link String} Human readable String for display, or null, if the unit was not resolved yet.
+     */
+    @Nullable
+    public String peekHumanReadableUnitString(@NonNull String unit) {
+        return mUnitDisplays.peek(unit);
+    }
+
+    /**
+     * See {@link EssenceController#internUnitCode(String)}.
+     *
+     * @param unit UCUM {@link String} unit expression.
+     * @return Interned UCUM {@link String} unit.
+     */
+    public String internUnitCode(@NonNull String unit) {
+        return mUnitExpressions.intern(unit);
+    }
+
+    /**
+     * Returns the interned unit for the passed in expression, without parsing it, see
+     * {@link #internUnitCode(String)}.
+     *
+     * @param unit UCUM {@link String} unit expression.
+     * @return Interned UCUM {@link String} unit, or null, if the unit was not interned yet.
+     */
+    @Nullable
+    public String peekUnitCode(@NonNull String unit) {
+        return mUnitExpressions.peek(unit);
+    }
+
+    /**
+     * Returns the plan between the passed in interned units, if it was resolved before, see
+     * {@link #getConversionPlan(String, String)}.
+     *
+     * @param sourceUnit Interned UCUM {@link String} unit to convert from.
+     * @param targetUnit Interned UCUM {@link String} unit to convert to.
+     * @return {@link ConversionPlan}, or null.
+     */
+    @Nullable
+    public ConversionPlan peekConversionPlan(@NonNull String sourceUnit, @NonNull String targetUnit) {
+        return mConversionPlans.peekPlan(sourceUnit, targetUnit);
+    }
+
+    /**
+     * See {@link EssenceController#getConversionPlan(String, String)}.
+     *
+     * @param sourceUnit UCUM {@link String} unit to convert from.
+     * @param targetUnit UCUM {@link String} unit to convert to.
+     * @return {@link ConversionPlan}
+     */
+    public ConversionPlan getConversionPlan(@NonNull String sourceUnit, @NonNull String targetUnit) {
+        return mConversionPlans.getPlan(internUnitCode(sourceUnit), internUnitCode(targetUnit));
+    }
+
+    /**
+     * See {@link EssenceController#convert(Decimal, String, String)}.
+     *
+     * @param value      {@link Decimal} value to convert.
+     * @param sourceUnit UCUM {@link String} unit to convert from.
+     * @param targetUnit UCUM {@link String} unit to convert to.
+     * @return The converted {@link Decimal} value.
+     * @throws UcumException If the units cannot be converted.
+     */
+    public Decimal convert(@NonNull Decimal value, @NonNull String sourceUnit, @NonNull String targetUnit) throws UcumException {
+        return getConversionPlan(sourceUnit, targetUnit).convert(value, mUcumService);
+    }
+
+    private static long estimateSize(@NonNull UcumModel model, @NonNull UnitIndex unitIndex) {
+        long size = 0;
+        for (Prefix prefix : model.getPrefixes()) {
+            size += estimateSize(prefix) + estimateSize(prefix.getValue());
+        }
+        for (BaseUnit unit : model.getBaseUnits()) {
+            size += estimateSize(unit) + estimateSize(unit.getProperty());
+        }
+        for (DefinedUnit unit : model.getDefinedUnits()) {
+            size += estimateSize(unit) + estimateSize(unit.getProperty()) + estimateSize(unit.getClass_());
+            Value value = unit.getValue();
+            if (value != null) {
+                size += OBJECT_OVERHEAD + estimateSize(value.getUnit()) + estimateSize(value.getUnitUC())
+                        + estimateSize(value.getText()) + estimateSize(value.getValue());
+            }
+        }
+        return size + ((long) unitIndex.size() * INDEX_ENTRY_OVERHEAD);
+    }
+
+    private static long estimateSize(@NonNull Concept concept) {
+        long size = CONCEPT_OVERHEAD + estimateSize(concept.getCode()) + estimateSize(concept.getCodeUC())
+                + estimateSize(concept.getPrintSymbol());
+        for (String name : concept.getNames()) {
+            size += estimateSize(name);
+        }
+        return size;
+    }
+
+    private static long estimateSize(@Nullable String value) {
+        return (value != null) ? (STRING_OVERHEAD + (2L * value.length())) : 0;
+    }
+
+    private static long estimateSize(@Nullable Decimal value) {
+        return (value != null) ? (OBJECT_OVERHEAD + STRING_OVERHEAD + value.asDecimal().length()) : 0;
+    }
+
+    /**
+     * See {@link EssenceController#convert(double[], String, String, double[])}.
+     *
+     * @param values     Values to convert.
+     * @param sourceUnit UCUM {@link String} unit to convert from.
+     * @param targetUnit UCUM {@link String} unit to convert to.
+     * @param out        Array to write the converted values to, at least as long as values. May be values itself.
+     * @throws UcumException If the units cannot be converted.
+     */
+    public void convert(@NonNull double[] values, @NonNull String sourceUnit, @NonNull String targetUnit,
+                        @NonNull double[] out) throws UcumException {
+        if (out.length < values.length) {
+            throw new IllegalArgumentException("Output array of length " + out.length +
+                    " cannot hold " + values.length + " converted values.");
+        }
+
+        ConversionPlan plan = getConversionPlan(sourceUnit, targetUnit);
+        if (plan.isDoubleSafe()) {
+            BatchConverter.convert(plan, values, out);
+        } else {
+            Log.d(TAG, "Conversion " + plan + " cannot use primitives, converting values one by one.");
+            for (int i = 0; i < values.length; i++) {
+                out[i] = Double.parseDouble(plan.convert(new Decimal(String.valueOf(values[i])), mUcumService).asDecimal());
+            }
+        }
+    }
+}
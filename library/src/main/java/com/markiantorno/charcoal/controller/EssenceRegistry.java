@@ -0,0 +1,123 @@
+package com.markiantorno.charcoal.controller;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loaded {@link EssenceModel}s, keyed by essence file name, so that apps binding several essence files
+ * don't parse them again each time another one is bound.
+ * <p>
+ * Models stay resident until their combined {@link EssenceModel#getEstimatedSize()} exceeds the memory
+ * budget, after which the least recently used ones are evicted. An evicted model is loaded again the next
+ * time it is needed.
+ */
+public class EssenceRegistry {
+
+    public static final String TAG = EssenceRegistry.class.getSimpleName();
+
+    /**
+     * Default memory budget, which holds a handful of full UCUM essence files.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 4 * 1024 * 1024;
+
+    /**
+     * Models in least to most recently used order.
+     */
+    private final LinkedHashMap<String, EssenceModel> mModels = new LinkedHashMap<>(4, 0.75f, true);
+
+    private long mMemoryBudget;
+    private long mEstimatedSize;
+
+    public EssenceRegistry(long memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * @param fileName {@link String} name of the essence file.
+     * @return The resident {@link EssenceModel} for the given file, or null, if it is not loaded.
+     */
+    @Nullable
+    public synchronized EssenceModel get(@NonNull String fileName) {
+        return mModels.get(fileName);
+    }
+
+    /**
+     * Adds the passed in model, replacing any model for the same file, and evicts the least recently used
+     * models until the registry fits its budget again. The added model itself is never evicted.
+     *
+     * @param model {@link EssenceModel} to add.
+     */
+    public synchronized void put(@NonNull EssenceModel model) {
+        EssenceModel previous = mModels.put(model.getFileName(), model);
+        if (previous != null) {
+            mEstimatedSize -= previous.getEstimatedSize();
+        }
+        mEstimatedSize += model.getEstimatedSize();
+        trimToBudget(model.getFileName());
+    }
+
+    /**
+     * Replaces the passed in model with an updated snapshot of it, if it is still resident.
+     *
+     * @param model   Resident {@link EssenceModel}.
+     * @param updated {@link EssenceModel} for the same file, to replace it with.
+     */
+    public synchronized void replace(@NonNull EssenceModel model, @NonNull EssenceModel updated) {
+        if (mModels.get(model.getFileName()) == model) {
+            put(updated);
+        }
+    }
+
+    /**
+     * Sets the memory budget, evicting models if needed.
+     *
+     * @param memoryBudget Maximum estimated size, in bytes, of all resident models.
+     */
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        mMemoryBudget = memoryBudget;
+        trimToBudget(null);
+    }
+
+    public synchronized long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * @return Combined estimated size, in bytes, of all resident models.
+     */
+    public synchronized long getEstimatedSize() {
+        return mEstimatedSize;
+    }
+
+    /**
+     * @return Number of resident models.
+     */
+    public synchronized int size() {
+        return mModels.size();
+    }
+
+    /**
+     * Evicts all models.
+     */
+    public synchronized void clear() {
+        mModels.clear();
+        mEstimatedSize = 0;
+    }
+
+    private void trimToBudget(@Nullable String keepFileName) {
+        Iterator<Map.Entry<String, EssenceModel>> iterator = mModels.entrySet().iterator();
+        while ((mEstimatedSize > mMemoryBudget) && iterator.hasNext()) {
+            Map.Entry<String, EssenceModel> entry = iterator.next();
+            if (!entry.getKey().equals(keepFileName)) {
+                Log.d(TAG, "Evicting essence model " + entry.getKey() + " to stay within memory budget.");
+                mEstimatedSize -= entry.getValue().getEstimatedSize();
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package com.markiantorno.charcoal.controller;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.fhir.ucum.BaseUnit;
+import org.fhir.ucum.Concept;
+import org.fhir.ucum.Decimal;
+import org.fhir.ucum.DefinedUnit;
+import org.fhir.ucum.Prefix;
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.UcumException;
+import org.fhir.ucum.UcumModel;
+import org.fhir.ucum.Value;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of a parsed {@link UcumModel}.
+ * <p>
+ * Parsing the essence xml is the bulk of the work on a cold start, so the first launch writes the parsed
+ * prefixes, base units and defined units to the app's files directory, and later launches read them back
+ * instead. Each snapshot records the checksum of the asset it was built from, and is rebuilt when the
+ * asset changes, or the snapshot cannot be read.
+ */
+public class EssenceSnapshot {
+
+    public static final String TAG = EssenceSnapshot.class.getSimpleName();
+
+    private static final int MAGIC = 0x43484152; // "CHAR"
+
+    /**
+     * Incremented whenever the layout below changes, so that old snapshots are rebuilt, and tables generated
+     * by older versions of charcoal-essence.gradle are ignored.
+     */
+    public static final int FORMAT_VERSION = 2;
+
+    private static final String SNAPSHOT_DIRECTORY = "charcoal";
+    private static final String SNAPSHOT_EXTENSION = ".snapshot";
+
+    /**
+     * {@link UcumEssenceService} has no constructor taking a model, so services are created from this
+     * empty definition, and given the snapshot model afterwards.
+     */
+    private static final String EMPTY_ESSENCE = "<root xmlns=\"http://unitsofmeasure.org/ucum-essence\" version=\"\" " +
+            "revision=\"\" revision-date=\"$Date: 2013-10-21 21:24:43 -0700 (Mon, 21 Oct 2013) $\"></root>";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Private fields snapshots copy. Minified apps keep them through the library's consumer proguard rules.
+     */
+    private static final Field sDecimalPrecision = accessibleField(Decimal.class, "precision");
+    private static final Field sDecimalScientific = accessibleField(Decimal.class, "scientific");
+    private static final Field sDecimalNegative = accessibleField(Decimal.class, "negative");
+    private static final Field sDecimalDigits = accessibleField(Decimal.class, "digits");
+    private static final Field sDecimalDecimal = accessibleField(Decimal.class, "decimal");
+    private static final Field sServiceModel = accessibleField(UcumEssenceService.class, "model");
+
+    private EssenceSnapshot() {
+    }
+
+    /**
+     * Loads the {@link UcumEssenceService} for the given essence asset, from the snapshot of the asset if
+     * there is a valid one, or by parsing the asset, and writing a snapshot for the next launch, if not.
+     *
+     * @param fileName {@link String} name of UCUM xml definition file in the project assets directory.
+     * @param ctx      {@link Context} used to load assets, and store snapshots.
+     * @return {@link UcumEssenceService}
+     * @throws IOException   If the asset cannot be read.
+     * @throws UcumException If the asset cannot be parsed.
+     */
+    public static UcumEssenceService load(@NonNull Context ctx, @NonNull String fileName) throws IOException, UcumException {
+        byte[] essence = readFully(ctx.getAssets().open(fileName));
+        if (!isSupported()) {
+            Log.w(TAG, "Snapshots are not supported, parsing " + fileName + " on every launch.");
+            return new UcumEssenceService(new ByteArrayInputStream(essence));
+        }
+
+        long checksum = checksum(essence);
+        File snapshotFile = getSnapshotFile(ctx, fileName);
+
+        if (snapshotFile.exists()) {
+            try {
+                UcumModel model = read(new BufferedInputStream(new FileInputStream(snapshotFile), BUFFER_SIZE), checksum);
+                if (model != null) {
+                    Log.d(TAG, "Loaded UCUM model for " + fileName + " from snapshot.");
+                    return createService(model);
+                }
+                Log.d(TAG, "Snapshot for " + fileName + " is out of date, rebuilding.");
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read snapshot for " + fileName + ", rebuilding. " + e.getMessage());
+            } catch (UcumException e) {
+                Log.e(TAG, "Cannot restore snapshot for " + fileName + ", rebuilding. " + e.getMessage());
+            }
+        }
+
+        UcumEssenceService ucumService = new UcumEssenceService(new ByteArrayInputStream(essence));
+        try {
+            writeAtomically(snapshotFile, ucumService.getModel(), checksum);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write snapshot for " + fileName + ", " + e.getMessage());
+        }
+        return ucumService;
+    }
+
+    /**
+     * @param ctx      {@link Context} used to locate the files directory.
+     * @param fileName {@link String} name of the essence asset.
+     * @return The snapshot {@link File} for the given essence asset.
+     */
+    public static File getSnapshotFile(@NonNull Context ctx, @NonNull String fileName) {
+        return new File(new File(ctx.getFilesDir(), SNAPSHOT_DIRECTORY),
+                fileName.replace(File.separatorChar, '_') + SNAPSHOT_EXTENSION);
+    }
+
+    /**
+     * @param data Contents of an essence file.
+     * @return CRC32 checksum of the passed in data.
+     */
+    public static long checksum(@NonNull byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Writes the passed in model, and the checksum of the essence file it was parsed from.
+     *
+     * @param model    {@link UcumModel} to write.
+     * @param checksum Checksum of the essence file, see {@link #checksum(byte[])}.
+     * @param out      {@link OutputStream} to write to. Closed when done.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public static void write(@NonNull UcumModel model, long checksum, @NonNull OutputStream out) throws IOException {
+        if (!isSupported()) {
+            out.close();
+            throw new IOException("Snapshots are not supported by this UCUM library version.");
+        }
+        DataOutputStream data = new DataOutputStream(out);
+        try {
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            data.writeLong(checksum);
+
+            writeString(data, model.getVersion());
+            writeString(data, model.getRevision());
+            data.writeLong((model.getRevisionDate() != null) ? model.getRevisionDate().getTime() : -1);
+
+            data.writeInt(model.getPrefixes().size());
+            for (Prefix prefix : model.getPrefixes()) {
+                writeConcept(data, prefix);
+                writeDecimal(data, prefix.getValue());
+            }
+
+            data.writeInt(model.getBaseUnits().size());
+            for (BaseUnit unit : model.getBaseUnits()) {
+                writeConcept(data, unit);
+                writeString(data, unit.getProperty());
+                data.writeChar(unit.getDim());
+            }
+
+            data.writeInt(model.getDefinedUnits().size());
+            for (DefinedUnit unit : model.getDefinedUnits()) {
+                writeConcept(data, unit);
+                writeString(data, unit.getProperty());
+                data.writeBoolean(unit.isMetric());
+                data.writeBoolean(unit.isSpecial());
+                writeString(data, unit.getClass_());
+                Value value = unit.getValue();
+                data.writeBoolean(value != null);
+                if (value != null) {
+                    writeString(data, value.getUnit());
+                    writeString(data, value.getUnitUC());
+                    writeDecimal(data, value.getValue());
+                    writeString(data, value.getText());
+                }
+            }
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Reads a model written by {@link #write(UcumModel, long, OutputStream)}.
+     *
+     * @param in       {@link InputStream} to read from. Closed when done.
+     * @param checksum Checksum of the current essence file, see {@link #checksum(byte[])}.
+     * @return {@link UcumModel}, or null if the snapshot was written by another format version, or for
+     * another essence file.
+     * @throws IOException   If the snapshot cannot be read.
+     * @throws UcumException If a decimal value in the snapshot is invalid.
+     */
+    public static UcumModel read(@NonNull InputStream in, long checksum) throws IOException, UcumException {
+        if (!isSupported()) {
+            in.close();
+            throw new IOException("Snapshots are not supported by this UCUM library version.");
+        }
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if ((data.readInt() != MAGIC) || (data.readInt() != FORMAT_VERSION) || (data.readLong() != checksum)) {
+                return null;
+            }
+
+            return readModel(new StreamInput(data));
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Reads the model written after the snapshot header. Shared with {@link PrecompiledEssence}, whose
+     * generated tables follow the same layout.
+     */
+    static UcumModel readModel(@NonNull ModelInput input) throws IOException, UcumException {
+        String version = input.readString();
+        String revision = input.readString();
+        long revisionDate = input.readLong();
+        UcumModel model = new UcumModel(version, revision, (revisionDate != -1) ? new Date(revisionDate) : null);
+
+        int prefixCount = input.readInt();
+        for (int i = 0; i < prefixCount; i++) {
+            Prefix prefix = new Prefix(input.readString(), input.readString());
+            readConceptDetails(input, prefix);
+            prefix.setValue(readDecimal(input));
+            model.getPrefixes().add(prefix);
+        }
+
+        int baseUnitCount = input.readInt();
+        for (int i = 0; i < baseUnitCount; i++) {
+            BaseUnit unit = new BaseUnit(input.readString(), input.readString());
+            readConceptDetails(input, unit);
+            unit.setProperty(input.readString());
+            unit.setDim(input.readChar());
+            model.getBaseUnits().add(unit);
+        }
+
+        int definedUnitCount = input.readInt();
+        for (int i = 0; i < definedUnitCount; i++) {
+            DefinedUnit unit = new DefinedUnit(input.readString(), input.readString());
+            readConceptDetails(input, unit);
+            unit.setProperty(input.readString());
+            unit.setMetric(input.readBoolean());
+            unit.setSpecial(input.readBoolean());
+            unit.setClass_(input.readString());
+            if (input.readBoolean()) {
+                Value value = new Value(input.readString(), input.readString(), readDecimal(input));
+                value.setText(input.readString());
+                unit.setValue(value);
+            }
+            model.getDefinedUnits().add(unit);
+        }
+        return model;
+    }
+
+    /**
+     * Creates a {@link UcumEssenceService} for an already parsed model.
+     *
+     * @param model {@link UcumModel} to use.
+     * @return {@link UcumEssenceService}
+     * @throws UcumException If the service cannot be created.
+     */
+    public static UcumEssenceService createService(@NonNull UcumModel model) throws UcumException {
+        UcumEssenceService ucumService = new UcumEssenceService(new ByteArrayInputStream(EMPTY_ESSENCE.getBytes()));
+        if (sServiceModel == null) {
+            throw new UcumException("Unsupported UCUM library version, cannot set the model of a UcumEssenceService.");
+        }
+        try {
+            sServiceModel.set(ucumService, model);
+        } catch (IllegalAccessException e) {
+            throw new UcumException("Unsupported UCUM library version, " + e.getMessage());
+        }
+        return ucumService;
+    }
+
+    /**
+     * Writes to a temporary file first, so that a crash never leaves a partial snapshot behind.
+     */
+    private static void writeAtomically(@NonNull File snapshotFile, @NonNull UcumModel model, long checksum) throws IOException {
+        File directory = snapshotFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        File temporaryFile = new File(directory, snapshotFile.getName() + ".tmp");
+        write(model, checksum, new BufferedOutputStream(new FileOutputStream(temporaryFile), BUFFER_SIZE));
+        if (!temporaryFile.renameTo(snapshotFile)) {
+            temporaryFile.delete();
+            throw new IOException("Cannot move snapshot to " + snapshotFile);
+        }
+    }
+
+    private static void writeConcept(@NonNull DataOutputStream data, @NonNull Concept concept) throws IOException {
+        writeString(data, concept.getCode());
+        writeString(data, concept.getCodeUC());
+        writeString(data, concept.getPrintSymbol());
+        List<String> names = concept.getNames();
+        data.writeInt(names.size());
+        for (String name : names) {
+            writeString(data, name);
+        }
+    }
+
+    /**
+     * Reads everything written by {@link #writeConcept(DataOutputStream, Concept)} after the codes, which
+     * are needed to construct the concept.
+     */
+    private static void readConceptDetails(@NonNull ModelInput input, @NonNull Concept concept) throws IOException {
+        concept.setPrintSymbol(input.readString());
+        int nameCount = input.readInt();
+        for (int i = 0; i < nameCount; i++) {
+            concept.getNames().add(input.readString());
+        }
+    }
+
+    /**
+     * Decimals keep their precision, which UCUM uses for significant figures, and whether they were written
+     * in scientific notation. Neither survives a round trip through text, so the fields are copied as is.
+     */
+    private static void writeDecimal(@NonNull DataOutputStream data, @Nullable Decimal decimal) throws IOException {
+        data.writeBoolean(decimal != null);
+        if (decimal != null) {
+            try {
+                data.writeInt(sDecimalPrecision.getInt(decimal));
+                data.writeBoolean(sDecimalScientific.getBoolean(decimal));
+                data.writeBoolean(sDecimalNegative.getBoolean(decimal));
+                writeString(data, (String) sDecimalDigits.get(decimal));
+                data.writeInt(sDecimalDecimal.getInt(decimal));
+            } catch (IllegalAccessException e) {
+                throw new IOException("Cannot access decimal value, " + e.getMessage());
+            }
+        }
+    }
+
+    private static Decimal readDecimal(@NonNull ModelInput input) throws IOException, UcumException {
+        if (!input.readBoolean()) {
+            return null;
+        }
+        Decimal decimal = new Decimal(0);
+        try {
+            sDecimalPrecision.setInt(decimal, input.readInt());
+            sDecimalScientific.setBoolean(decimal, input.readBoolean());
+            sDecimalNegative.setBoolean(decimal, input.readBoolean());
+            sDecimalDigits.set(decimal, input.readString());
+            sDecimalDecimal.setInt(decimal, input.readInt());
+        } catch (IllegalAccessException e) {
+            throw new UcumException("Cannot restore decimal value, " + e.getMessage());
+        }
+        return decimal;
+    }
+
+    private static Field accessibleField(@NonNull Class<?> cls, @NonNull String name) {
+        try {
+            Field field = cls.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            // Also the case when an app is minified without the library's proguard rules.
+            Log.w(TAG, "Missing field " + cls.getName() + "." + name + ", snapshots and precompiled essences disabled.");
+            return null;
+        }
+    }
+
+    /**
+     * @return {@link Boolean#TRUE} if the UCUM library has the {@link Decimal} and {@link UcumEssenceService}
+     * fields snapshots copy.
+     */
+    static boolean isSupported() {
+        return (sDecimalPrecision != null)
+                && (sDecimalScientific != null)
+                && (sDecimalNegative != null)
+                && (sDecimalDigits != null)
+                && (sDecimalDecimal != null)
+                && (sServiceModel != null);
+    }
+
+    private static void writeString(@NonNull DataOutputStream data, @Nullable String value) throws IOException {
+        data.writeBoolean(value != null);
+        if (value != null) {
+            data.writeUTF(value);
+        }
+    }
+
+    /**
+     * Source of the values making up a model, in the order {@link #write(UcumModel, long, OutputStream)}
+     * writes them.
+     */
+    interface ModelInput {
+
+        String readString() throws IOException;
+
+        int readInt() throws IOException;
+
+        long readLong() throws IOException;
+
+        boolean readBoolean() throws IOException;
+
+        char readChar() throws IOException;
+    }
+
+    private static class StreamInput implements ModelInput {
+
+        private final DataInputStream mData;
+
+        StreamInput(@NonNull DataInputStream data) {
+            mData = data;
+        }
+
+        @Override
+        public String readString() throws IOException {
+            return mData.readBoolean() ? mData.readUTF() : null;
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            return mData.readInt();
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            return mData.readLong();
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return mData.readBoolean();
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            return mData.readChar();
+        }
+    }
+
+    private static byte[] readFully(@NonNull InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.markiantorno.charcoal.controller;
+
+/**
+ * Essence file compiled into Java at build time by charcoal-essence.gradle. Implementations are generated,
+ * one per essence asset, and looked up by {@link PrecompiledEssence}.
+ * <p>
+ * The table holds the values of an {@link EssenceSnapshot} as strings, in the same order, ie the model
+ * header, followed by the prefixes, base units and defined units.
+ */
+public interface EssenceTable {
+
+    /**
+     * @return The {@link EssenceSnapshot} format version the table was generated for.
+     */
+    int getFormatVersion();
+
+    /**
+     * @return {@link String} name of the essence asset the table was generated from.
+     */
+    String getAssetName();
+
+    /**
+     * @return Newly allocated table of model values. Null entries are null strings.
+     */
+    String[] getTable();
+}
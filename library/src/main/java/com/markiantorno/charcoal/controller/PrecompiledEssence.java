@@ -0,0 +1,145 @@
+package com.markiantorno.charcoal.controller;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.UcumException;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Loads essence models compiled into the app at build time, see {@link EssenceTable}.
+ * <p>
+ * Apps that apply charcoal-essence.gradle get an {@link EssenceTable} class generated for each essence
+ * asset, so that the model is built straight from static data, without opening the asset, or parsing any
+ * xml. Apps without one fall back to {@link EssenceSnapshot}.
+ */
+public class PrecompiledEssence {
+
+    public static final String TAG = PrecompiledEssence.class.getSimpleName();
+
+    /**
+     * Package of the generated {@link EssenceTable} classes. Must match charcoal-essence.gradle.
+     */
+    public static final String PACKAGE = "com.markiantorno.charcoal.essence";
+
+    private static final String CLASS_PREFIX = "EssenceTable_";
+
+    private PrecompiledEssence() {
+    }
+
+    /**
+     * Builds the model for the given essence asset from its generated {@link EssenceTable}.
+     *
+     * @param fileName {@link String} name of the essence asset.
+     * @return {@link UcumEssenceService}, or null if there is no usable table for the asset.
+     */
+    @Nullable
+    public static UcumEssenceService load(@NonNull String fileName) {
+        EssenceTable essenceTable = findTable(fileName);
+        if (essenceTable == null) {
+            return null;
+        }
+        if (!EssenceSnapshot.isSupported()) {
+            Log.w(TAG, "Precompiled essences are not supported, parsing " + fileName + " instead.");
+            return null;
+        }
+        if (essenceTable.getFormatVersion() != EssenceSnapshot.FORMAT_VERSION) {
+            Log.e(TAG, "Precompiled essence for " + fileName + " is out of date, rebuild the app to regenerate it.");
+            return null;
+        }
+        try {
+            UcumEssenceService ucumService = EssenceSnapshot.createService(
+                    EssenceSnapshot.readModel(new TableInput(essenceTable.getTable())));
+            Log.d(TAG, "Loaded UCUM model for " + fileName + " from precompiled essence.");
+            return ucumService;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read precompiled essence for " + fileName + ", " + e.getMessage());
+        } catch (UcumException e) {
+            Log.e(TAG, "Cannot restore precompiled essence for " + fileName + ", " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Malformed precompiled essence for " + fileName + ", " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Generated class names are the asset name with anything that is not a letter or digit replaced, ie
+     * "essence.xml" is compiled into EssenceTable_essence_xml.
+     *
+     * @param fileName {@link String} name of the essence asset.
+     * @return Fully qualified {@link String} name of the generated {@link EssenceTable} class.
+     */
+    public static String getClassName(@NonNull String fileName) {
+        StringBuilder className = new StringBuilder(PACKAGE.length() + CLASS_PREFIX.length() + fileName.length() + 1);
+        className.append(PACKAGE).append('.').append(CLASS_PREFIX);
+        for (int i = 0; i < fileName.length(); i++) {
+            char c = fileName.charAt(i);
+            className.append((((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'))) ? c : '_');
+        }
+        return className.toString();
+    }
+
+    @Nullable
+    private static EssenceTable findTable(@NonNull String fileName) {
+        try {
+            EssenceTable essenceTable = (EssenceTable) Class.forName(getClassName(fileName)).newInstance();
+            // Names are sanitized, so make sure the table is for this asset and not a similarly named one.
+            return fileName.equals(essenceTable.getAssetName()) ? essenceTable : null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (InstantiationException e) {
+            Log.e(TAG, "Cannot create precompiled essence for " + fileName + ", " + e.getMessage());
+        } catch (IllegalAccessException e) {
+            Log.e(TAG, "Cannot create precompiled essence for " + fileName + ", " + e.getMessage());
+        } catch (ClassCastException e) {
+            Log.e(TAG, "Generated class for " + fileName + " is not an EssenceTable, " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Reads the values of a generated table in order. Numbers and booleans are stored as their
+     * {@link String} forms.
+     */
+    static class TableInput implements EssenceSnapshot.ModelInput {
+
+        private final String[] mTable;
+        private int mPosition;
+
+        TableInput(@NonNull String[] table) {
+            mTable = table;
+        }
+
+        @Override
+        public String readString() throws IOException {
+            if (mPosition >= mTable.length) {
+                throw new EOFException("Precompiled essence ended after " + mPosition + " values.");
+            }
+            return mTable[mPosition++];
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            return Integer.parseInt(readString());
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            return Long.parseLong(readString());
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return Boolean.parseBoolean(readString());
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            return readString().charAt(0);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.markiantorno.charcoal.controller;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.markiantorno.charcoal.view.CharcoalTextView;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects several unit and accuracy changes, to write them to the charcoal preferences at once, ie when
+ * switching from metric to imperial units.
+ * <p>
+ * Example: PreferenceController.edit(myContext).unit("blood_glucose", "mg/dL").accuracy("mg/dL", 0).commit();
+ * </p>
+ * Every {@link CharcoalTextView} displaying a changed property, or unit, is relit once per batch, instead of
+ * once per change.
+ */
+public final class PreferenceBatch {
+
+    private final Context mContext;
+    private final Map<String, String> mUnits = new LinkedHashMap<>();
+    private final Map<String, Integer> mAccuracies = new LinkedHashMap<>();
+
+    PreferenceBatch(@NonNull Context context) {
+        mContext = context;
+    }
+
+    /**
+     * See {@link PreferenceController#setUnitForProperty(Context, String, String)}.
+     *
+     * @param property {@link String} property to set default display unit for.
+     * @param unit     {@link String} unit to use to display readings of the given property type.
+     * @return This {@link PreferenceBatch}.
+     */
+    public PreferenceBatch unit(@NonNull String property, @NonNull String unit) {
+        mUnits.put(property, unit);
+        return this;
+    }
+
+    /**
+     * See {@link PreferenceController#setAccuracyForUnit(Context, String, int)}.
+     *
+     * @param unit     {@link String} unit to set default accuracy for.
+     * @param accuracy {@link Integer} The decimal place accuracy of a number is the number of digits to the right of the decimal point.
+     * @return This {@link PreferenceBatch}.
+     */
+    public PreferenceBatch accuracy(@NonNull String unit, int accuracy) {
+        mAccuracies.put(unit, accuracy);
+        return this;
+    }
+
+    /**
+     * Writes all changes with a single {@link android.content.SharedPreferences.Editor#apply()}. Changes are
+     * visible through {@link PreferenceController} straight away, and listening views are relit once, on the
+     * main thread.
+     */
+    public void commit() {
+        PreferenceController.commit(mContext, mUnits, mAccuracies);
+        mUnits.clear();
+        mAccuracies.clear();
+    }
+}
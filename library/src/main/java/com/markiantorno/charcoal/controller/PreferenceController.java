@@ -2,11 +2,18 @@ package com.markiantorno.charcoal.controller;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.markiantorno.charcoal.view.CharcoalTextView;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Controller to provide read/write access to the {@link SharedPreferences} storage for displaying
  * units in the {@link CharcoalTextView}
@@ -21,6 +28,19 @@ public class PreferenceController {
 
     public final static int NO_SUCH_ACCURACY = -1;
 
+    /**
+     * In memory copy of the preferences, read by the getters below. Views read their unit and accuracy on
+     * every display, so reads are plain map lookups.
+     */
+    private static volatile PreferenceSnapshot mSnapshot;
+
+    /**
+     * Listeners registered through {@link #registerPropertyListener(Context, SharedPreferences.OnSharedPreferenceChangeListener, String, String)},
+     * indexed by property and unit. Outlives snapshots, so listeners stay registered if the snapshot is
+     * replaced.
+     */
+    private static final PreferenceDispatcher mDispatcher = new PreferenceDispatcher();
+
     /**
      * Get the instance of the shared preferences used for storing property/unit pairs.
      *
@@ -28,7 +48,33 @@ public class PreferenceController {
      * @return {@link SharedPreferences}
      */
     private static SharedPreferences getCharcoalPreferences(Context ctx) {
-        return ctx.getSharedPreferences(PREF_FILE_KEY, Context.MODE_PRIVATE);
+        return getSnapshot(ctx).getSharedPreferences();
+    }
+
+    /**
+     * Returns the {@link PreferenceSnapshot} of the application the passed in context belongs to, creating
+     * it on first use.
+     *
+     * @param ctx {@link Context}
+     * @return {@link PreferenceSnapshot}
+     */
+    private static PreferenceSnapshot getSnapshot(@NonNull Context ctx) {
+        Context appContext = (ctx.getApplicationContext() != null) ? ctx.getApplicationContext() : ctx;
+        PreferenceSnapshot snapshot = mSnapshot;
+        if ((snapshot == null) || !snapshot.isFor(appContext)) {
+            synchronized (PreferenceController.class) {
+                snapshot = mSnapshot;
+                if ((snapshot == null) || !snapshot.isFor(appContext)) {
+                    if (snapshot != null) {
+                        snapshot.release();
+                    }
+                    snapshot = new PreferenceSnapshot(appContext,
+                            appContext.getSharedPreferences(PREF_FILE_KEY, Context.MODE_PRIVATE), mDispatcher);
+                    mSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
     }
 
     /**
@@ -55,6 +101,70 @@ public class PreferenceController {
         SharedPreferences.Editor editor = sharedPref.edit();
         editor.putString(property, unit);
         editor.apply();
+        getSnapshot(ctx).putUnit(property, unit);
+    }
+
+    /**
+     * Starts a {@link PreferenceBatch} of unit and accuracy changes, written at once on
+     * {@link PreferenceBatch#commit()}.
+     * <p>
+     * Example: edit(myContext).unit("blood_glucose", "mg/dL").accuracy("mg/dL", 0).commit();
+     * </p>
+     *
+     * @param ctx {@link Context}
+     * @return {@link PreferenceBatch}
+     */
+    public static PreferenceBatch edit(@NonNull Context ctx) {
+        return new PreferenceBatch(ctx);
+    }
+
+    /**
+     * Writes the changes of a {@link PreferenceBatch}. The notifications {@link SharedPreferences} sends for
+     * each changed key are swallowed by the snapshot, and listeners of the changed keys are notified once
+     * instead.
+     *
+     * @param ctx        {@link Context}
+     * @param units      {@link String} unit, by property.
+     * @param accuracies {@link Integer} accuracy, by unit.
+     */
+    static void commit(@NonNull Context ctx, @NonNull Map<String, String> units, @NonNull Map<String, Integer> accuracies) {
+        PreferenceSnapshot snapshot = getSnapshot(ctx);
+        SharedPreferences sharedPref = snapshot.getSharedPreferences();
+        SharedPreferences.Editor editor = sharedPref.edit();
+        List<String> changed = new ArrayList<>();
+
+        for (Map.Entry<String, String> entry : units.entrySet()) {
+            editor.putString(entry.getKey(), entry.getValue());
+            if (!entry.getValue().equals(snapshot.getUnit(entry.getKey()))) {
+                snapshot.expect(entry.getKey(), entry.getValue());
+                changed.add(entry.getKey());
+            }
+        }
+        for (Map.Entry<String, Integer> entry : accuracies.entrySet()) {
+            editor.putInt(entry.getKey(), entry.getValue());
+            if (!entry.getValue().equals(snapshot.getAccuracy(entry.getKey()))) {
+                snapshot.expect(entry.getKey(), entry.getValue());
+                changed.add(entry.getKey());
+            }
+        }
+
+        Log.d(TAG, "Committing " + (units.size() + accuracies.size()) + " preferences, " + changed.size() + " changed.");
+        editor.apply();
+        for (Map.Entry<String, String> entry : units.entrySet()) {
+            snapshot.putUnit(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Integer> entry : accuracies.entrySet()) {
+            snapshot.putAccuracy(entry.getKey(), entry.getValue());
+        }
+
+        if (!changed.isEmpty()) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                mDispatcher.dispatch(sharedPref, changed);
+            } else {
+                // Views are relit on the main thread, as with notifications from SharedPreferences.
+                new Handler(Looper.getMainLooper()).post(() -> mDispatcher.dispatch(sharedPref, changed));
+            }
+        }
     }
 
     /**
@@ -79,15 +189,8 @@ public class PreferenceController {
      * if no such property entry exists.
      */
     public static String getUnitForProperty(@NonNull Context ctx, @NonNull String property, @NonNull String defaultUnit) {
-        Log.d(TAG, "Getting unit for property " + property);
-
-        SharedPreferences sharedPref = getCharcoalPreferences(ctx);
-
-        if (!sharedPref.contains(property)) {
-            Log.d(TAG, "No entry for property " + property + " exists. Cannot return value...");
-        }
-
-        return sharedPref.getString(property, defaultUnit);
+        String unit = getSnapshot(ctx).getUnit(property);
+        return (unit != null) ? unit : defaultUnit;
     }
 
     /**
@@ -97,9 +200,7 @@ public class PreferenceController {
      * @return {@link Boolean#TRUE}, if a unit has already been set for the given property.
      */
     public static boolean unitSetForProperty(@NonNull Context ctx, @NonNull String property) {
-        Log.d(TAG, "Checking if unit set for property " + property);
-        SharedPreferences sharedPref = getCharcoalPreferences(ctx);
-        return sharedPref.contains(property);
+        return getSnapshot(ctx).getUnit(property) != null;
     }
 
     /**
@@ -126,6 +227,7 @@ public class PreferenceController {
         SharedPreferences.Editor editor = sharedPref.edit();
         editor.putInt(unit, accuracy);
         editor.apply();
+        getSnapshot(ctx).putAccuracy(unit, accuracy);
     }
 
     /**
@@ -150,15 +252,8 @@ public class PreferenceController {
      * if no such property entry exists.
      */
     public static int getAccuracyForUnit(@NonNull Context ctx, @NonNull String unit, @NonNull int defaultAccuracy) {
-        Log.d(TAG, "Getting accuracy for unit " + unit);
-
-        SharedPreferences sharedPref = getCharcoalPreferences(ctx);
-
-        if (!sharedPref.contains(unit)) {
-            Log.d(TAG, "No accuracy for unit " + unit + " exists. Cannot return value...");
-        }
-
-        return sharedPref.getInt(unit, defaultAccuracy);
+        Integer accuracy = getSnapshot(ctx).getAccuracy(unit);
+        return (accuracy != null) ? accuracy : defaultAccuracy;
     }
 
     /**
@@ -168,9 +263,7 @@ public class PreferenceController {
      * @return {@link Boolean#TRUE}, if a unit has already been set for the given property.
      */
     public static boolean accuracySetForUnit(@NonNull Context ctx, @NonNull String unit) {
-        Log.d(TAG, "Checking if unit set for unit " + unit);
-        SharedPreferences sharedPref = getCharcoalPreferences(ctx);
-        return sharedPref.contains(unit);
+        return getSnapshot(ctx).getAccuracy(unit) != null;
     }
 
     /**
@@ -181,6 +274,8 @@ public class PreferenceController {
     public static void clearAllPreferences(Context ctx) {
         SharedPreferences sharedPref = getCharcoalPreferences(ctx);
         sharedPref.edit().clear().apply();
+        // Older platforms do not notify listeners of a clear().
+        getSnapshot(ctx).clear();
     }
 
     /**
@@ -208,8 +303,48 @@ public class PreferenceController {
     public static void unregisterListener(Context ctx, SharedPreferences.OnSharedPreferenceChangeListener listener) {
         if (listener != null) {
             getCharcoalPreferences(ctx).unregisterOnSharedPreferenceChangeListener(listener);
+            mDispatcher.unregister(listener);
         } else {
             Log.e(TAG, "Null OnSharedPreferenceChangeListener passed into unregisterListener.");
         }
     }
+
+    /**
+     * Registers a {@link android.content.SharedPreferences.OnSharedPreferenceChangeListener} that is only
+     * notified of changes to the given property, or unit, ie the preferences a {@link CharcoalTextView}
+     * displays with. Registering an already registered listener replaces its property and unit.
+     * <p>
+     * Unlike {@link #registerListener(Context, SharedPreferences.OnSharedPreferenceChangeListener)}, the
+     * {@link SharedPreferences} are not told about the listener, a single listener there notifies only the
+     * listeners of the changed key. The listener is held weakly.
+     *
+     * @param ctx      {@link Context}
+     * @param listener {@link android.content.SharedPreferences.OnSharedPreferenceChangeListener}
+     * @param property {@link String} property to be notified of changes to, or null.
+     * @param unit     {@link String} unit to be notified of accuracy changes to, or null.
+     */
+    public static void registerPropertyListener(Context ctx, SharedPreferences.OnSharedPreferenceChangeListener listener,
+                                                @Nullable String property, @Nullable String unit) {
+        if (listener != null) {
+            // Makes sure the preferences are followed.
+            getSnapshot(ctx);
+            mDispatcher.register(listener, property, unit);
+        } else {
+            Log.e(TAG, "Null OnSharedPreferenceChangeListener passed into registerPropertyListener.");
+        }
+    }
+
+    /**
+     * Unregisters a {@link android.content.SharedPreferences.OnSharedPreferenceChangeListener} registered
+     * through {@link #registerPropertyListener(Context, SharedPreferences.OnSharedPreferenceChangeListener, String, String)}.
+     *
+     * @param listener {@link android.content.SharedPreferences.OnSharedPreferenceChangeListener}
+     */
+    public static void unregisterPropertyListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        if (listener != null) {
+            mDispatcher.unregister(listener);
+        } else {
+            Log.e(TAG, "Null OnSharedPreferenceChangeListener passed into unregisterPropertyListener.");
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+package com.markiantorno.charcoal.controller;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Forwards changes of the charcoal {@link SharedPreferences} only to the listeners registered for the
+ * changed key, ie views displaying the changed property, or unit.
+ * <p>
+ * Listeners are indexed by property, and by unit, and only held weakly, so a view that is never unregistered
+ * can still be collected. Keys left without listeners that were collected are dropped when they are next
+ * dispatched, or when a new key is indexed. The {@link SharedPreferences} themselves only hold the single listener of the
+ * {@link PreferenceSnapshot}, which calls this dispatcher.
+ */
+final class PreferenceDispatcher implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private final Map<String, Set<SharedPreferences.OnSharedPreferenceChangeListener>> mByProperty = new HashMap<>();
+    private final Map<String, Set<SharedPreferences.OnSharedPreferenceChangeListener>> mByUnit = new HashMap<>();
+
+    /**
+     * Property and unit each listener is indexed under, to remove it again.
+     */
+    private final Map<SharedPreferences.OnSharedPreferenceChangeListener, String[]> mKeys = new WeakHashMap<>();
+
+    /**
+     * Indexes the passed in listener under the given property and unit, replacing any keys it was indexed
+     * under before.
+     *
+     * @param listener {@link SharedPreferences.OnSharedPreferenceChangeListener} to notify.
+     * @param property {@link String} property, or null.
+     * @param unit     {@link String} unit, or null.
+     */
+    synchronized void register(@NonNull SharedPreferences.OnSharedPreferenceChangeListener listener,
+                               @Nullable String property, @Nullable String unit) {
+        unregister(listener);
+        mKeys.put(listener, new String[]{property, unit});
+        add(mByProperty, property, listener);
+        add(mByUnit, unit, listener);
+    }
+
+    synchronized void unregister(@NonNull SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        String[] keys = mKeys.remove(listener);
+        if (keys != null) {
+            remove(mByProperty, keys[0], listener);
+            remove(mByUnit, keys[1], listener);
+        }
+    }
+
+    /**
+     * @return Number of registered listeners that were not collected yet.
+     */
+    synchronized int size() {
+        return mKeys.size();
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        Set<SharedPreferences.OnSharedPreferenceChangeListener> listeners = new LinkedHashSet<>();
+        synchronized (this) {
+            if (key == null) {
+                // Newer platforms report a clear() with a null key, which affects everyone.
+                listeners.addAll(mKeys.keySet());
+            } else {
+                collect(get(mByProperty, key), listeners);
+                collect(get(mByUnit, key), listeners);
+            }
+        }
+        // Notified outside the lock, as listeners may register, or unregister, in response.
+        for (SharedPreferences.OnSharedPreferenceChangeListener listener : listeners) {
+            listener.onSharedPreferenceChanged(sharedPreferences, key);
+        }
+    }
+
+    /**
+     * Notifies every listener registered for any of the passed in keys once, with the first of its keys
+     * that changed, ie a single relight for a {@link PreferenceBatch}.
+     *
+     * @param sharedPreferences {@link SharedPreferences} that changed.
+     * @param keys              {@link String} keys that changed.
+     */
+    void dispatch(SharedPreferences sharedPreferences, @NonNull Collection<String> keys) {
+        Map<SharedPreferences.OnSharedPreferenceChangeListener, String> listeners = new LinkedHashMap<>();
+        synchronized (this) {
+            for (String key : keys) {
+                collect(get(mByProperty, key), key, listeners);
+                collect(get(mByUnit, key), key, listeners);
+            }
+        }
+        for (Map.Entry<SharedPreferences.OnSharedPreferenceChangeListener, String> entry : listeners.entrySet()) {
+            entry.getKey().onSharedPreferenceChanged(sharedPreferences, entry.getValue());
+        }
+    }
+
+    private static void add(Map<String, Set<SharedPreferences.OnSharedPreferenceChangeListener>> index,
+                            @Nullable String key, SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        if (key != null) {
+            Set<SharedPreferences.OnSharedPreferenceChangeListener> listeners = index.get(key);
+            if (listeners == null) {
+                prune(index);
+                listeners = Collections.newSetFromMap(
+                        new WeakHashMap<SharedPreferences.OnSharedPreferenceChangeListener, Boolean>());
+                index.put(key, listeners);
+            }
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * @return Listeners indexed under the passed in key, or null if there are none left, in which case the
+     * key is dropped.
+     */
+    @Nullable
+    private static Set<SharedPreferences.OnSharedPreferenceChangeListener> get(
+            Map<String, Set<SharedPreferences.OnSharedPreferenceChangeListener>> index, @NonNull String key) {
+        Set<SharedPreferences.OnSharedPreferenceChangeListener> listeners = index.get(key);
+        if ((listeners != null) && listeners.isEmpty()) {
+            index.remove(key);
+            return null;
+        }
+        return listeners;
+    }
+
+    /**
+     * Drops every key whose listeners were all collected.
+     */
+    private static void prune(Map<String, Set<SharedPreferences.OnSharedPreferenceChangeListener>> index) {
+        Iterator<Set<SharedPreferences.OnSharedPreferenceChangeListener>> iterator = index.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void remove(Map<String, Set<SharedPreferences.OnSharedPreferenceChangeListener>> index,
+                               @Nullable String key, SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        Set<SharedPreferences.OnSharedPreferenceChangeListener> listeners = (key != null) ? index.get(key) : null;
+        if (listeners != null) {
+            listeners.remove(listener);
+            if (listeners.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static void collect(@Nullable Set<SharedPreferences.OnSharedPreferenceChangeListener> listeners,
+                                @NonNull Set<SharedPreferences.OnSharedPreferenceChangeListener> out) {
+        if (listeners != null) {
+            out.addAll(listeners);
+        }
+    }
+
+    private static void collect(@Nullable Set<SharedPreferences.OnSharedPreferenceChangeListener> listeners,
+                                @NonNull String key,
+                                @NonNull Map<SharedPreferences.OnSharedPreferenceChangeListener, String> out) {
+        if (listeners != null) {
+            for (SharedPreferences.OnSharedPreferenceChangeListener listener : listeners) {
+                if (!out.containsKey(listener)) {
+                    out.put(listener, key);
+                }
+            }
+        }
+    }
+}
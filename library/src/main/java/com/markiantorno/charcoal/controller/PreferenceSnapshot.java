@@ -0,0 +1,172 @@
+package com.markiantorno.charcoal.controller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory copy of the charcoal {@link SharedPreferences}, ie property to unit, and unit to accuracy, for
+ * {@link PreferenceController} to read from without going through {@link SharedPreferences} on every
+ * display.
+ * <p>
+ * The copy is kept current by a single change listener, registered on creation. Writes made through
+ * {@link PreferenceController} are also applied directly, so they are visible straight away, even when the
+ * listener is only notified later, on the main thread. Changes are then forwarded to a single downstream
+ * listener, ie the {@link PreferenceDispatcher}, once the copy is current.
+ */
+final class PreferenceSnapshot implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private final static String TAG = PreferenceSnapshot.class.getSimpleName();
+
+    private final Context mContext;
+    private final SharedPreferences mSharedPreferences;
+    private final ConcurrentHashMap<String, String> mUnits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> mAccuracies = new ConcurrentHashMap<>();
+    private final SharedPreferences.OnSharedPreferenceChangeListener mDownstream;
+
+    /**
+     * Values written by a {@link PreferenceBatch}, by key. Their notifications are not forwarded, as the
+     * batch notifies the downstream listener once for all of its keys.
+     */
+    private final ConcurrentHashMap<String, Object> mExpected = new ConcurrentHashMap<>();
+
+    /**
+     * @param context           Application {@link Context} the preferences belong to.
+     * @param sharedPreferences Charcoal {@link SharedPreferences} to copy.
+     * @param downstream        Listener to forward changes to, after they were copied, or null.
+     */
+    PreferenceSnapshot(@NonNull Context context, @NonNull SharedPreferences sharedPreferences,
+                       @Nullable SharedPreferences.OnSharedPreferenceChangeListener downstream) {
+        mContext = context;
+        mSharedPreferences = sharedPreferences;
+        mDownstream = downstream;
+        // Registered first, so changes made while copying are not missed.
+        sharedPreferences.registerOnSharedPreferenceChangeListener(this);
+        reload();
+    }
+
+    /**
+     * @param context Application {@link Context}.
+     * @return {@link Boolean#TRUE} if this snapshot copies the preferences of the passed in context.
+     */
+    boolean isFor(@NonNull Context context) {
+        return mContext == context;
+    }
+
+    SharedPreferences getSharedPreferences() {
+        return mSharedPreferences;
+    }
+
+    @Nullable
+    String getUnit(@Nullable String property) {
+        return (property != null) ? mUnits.get(property) : null;
+    }
+
+    @Nullable
+    Integer getAccuracy(@Nullable String unit) {
+        return (unit != null) ? mAccuracies.get(unit) : null;
+    }
+
+    void putUnit(@NonNull String property, @NonNull String unit) {
+        update(property, unit);
+    }
+
+    void putAccuracy(@NonNull String unit, int accuracy) {
+        update(unit, accuracy);
+    }
+
+    /**
+     * Swallows the next notification for the passed in key, if it reports the passed in value.
+     *
+     * @param key   {@link String} preference key about to be written.
+     * @param value Value about to be written.
+     */
+    void expect(@NonNull String key, @NonNull Object value) {
+        mExpected.put(key, value);
+    }
+
+    void clear() {
+        mUnits.clear();
+        mAccuracies.clear();
+    }
+
+    /**
+     * Stops following the preferences, once this snapshot is replaced.
+     */
+    void release() {
+        mSharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        boolean expected = false;
+        if (key == null) {
+            // Newer platforms report a clear() with a null key.
+            mExpected.clear();
+            reload();
+        } else {
+            Object expectedValue = mExpected.remove(key);
+            boolean accuracy = (expectedValue != null) ? (expectedValue instanceof Integer) : mAccuracies.containsKey(key);
+            Object value = read(sharedPreferences, key, accuracy);
+            expected = (expectedValue != null) && expectedValue.equals(value);
+            update(key, value);
+        }
+        if ((mDownstream != null) && !expected) {
+            mDownstream.onSharedPreferenceChanged(sharedPreferences, key);
+        }
+    }
+
+    private void reload() {
+        Map<String, ?> values = mSharedPreferences.getAll();
+        mUnits.keySet().retainAll(values.keySet());
+        mAccuracies.keySet().retainAll(values.keySet());
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            update(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Reads the single changed key, rather than copying all preferences on every change.
+     *
+     * @param accuracy {@link Boolean#TRUE} if the key most likely holds an accuracy, rather than a unit.
+     * @return {@link String} unit, {@link Integer} accuracy, or null if the key was removed, or holds neither.
+     */
+    @Nullable
+    private static Object read(@NonNull SharedPreferences sharedPreferences, @NonNull String key, boolean accuracy) {
+        if (!sharedPreferences.contains(key)) {
+            return null;
+        }
+        try {
+            return accuracy ? (Object) sharedPreferences.getInt(key, 0) : sharedPreferences.getString(key, null);
+        } catch (ClassCastException e) {
+            // The key changed type, or holds something else altogether.
+        }
+        try {
+            return accuracy ? sharedPreferences.getString(key, null) : (Object) sharedPreferences.getInt(key, 0);
+        } catch (ClassCastException e) {
+            Log.d(TAG, "Ignoring preference " + key + ", neither a unit nor an accuracy");
+            return null;
+        }
+    }
+
+    private void update(@NonNull String key, @Nullable Object value) {
+        if (value instanceof String) {
+            mUnits.put(key, (String) value);
+            mAccuracies.remove(key);
+        } else if (value instanceof Integer) {
+            mAccuracies.put(key, (Integer) value);
+            mUnits.remove(key);
+        } else {
+            if (value != null) {
+                Log.d(TAG, "Ignoring preference " + key + " of type " + value.getClass().getSimpleName());
+            }
+            mUnits.remove(key);
+            mAccuracies.remove(key);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.markiantorno.charcoal.controller;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.Unit;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of human readable display {@link String}s for UCUM unit codes, for a single loaded
+ * {@link UcumEssenceService}. The display of a unit never changes while a model is loaded, so each
+ * code is resolved once. Codes are first resolved to their canonical UCUM code through the {@link UnitIndex}.
+ */
+public class UnitDisplayCache {
+
+    public static final String TAG = UnitDisplayCache.class.getSimpleName();
+
+    private final UcumEssenceService mUcumService;
+    private final UnitIndex mUnitIndex;
+
+    private final ConcurrentHashMap<String, String> mDisplays = new ConcurrentHashMap<>();
+
+    public UnitDisplayCache(@NonNull UcumEssenceService ucumService, @Nullable UnitIndex unitIndex) {
+        mUcumService = ucumService;
+        mUnitIndex = unitIndex;
+    }
+
+    /**
+     * Takes the passed in unit and returns the human readable version of the String.
+     *
+     * @param unit UCUM notation unit.
+     * @return {@link String} Human readable String for display.
+     */
+    public String getHumanReadableUnitString(@NonNull String unit) {
+        String display = mDisplays.get(unit);
+        if (display == null) {
+            display = resolve(unit);
+            mDisplays.put(unit, display);
+        }
+        return display;
+    }
+
+    /**
+     * Returns the human readable version of the passed in unit, if it was resolved before, without
+     * resolving it, see {@link #getHumanReadableUnitString(String)}.
+     *
+     * @param unit UCUM notation unit.
+     * @return {@link String} Human readable String for display, or null, if the unit was not resolved yet.
+     */
+    @Nullable
+    public String peek(@NonNull String unit) {
+        return mDisplays.get(unit);
+    }
+
+    /**
+     * Removes all resolved display {@link String}s.
+     */
+    public void clear() {
+        mDisplays.clear();
+    }
+
+    /**
+     * Uses the print symbol for units defined in the model, and the UCUM common display for everything else.
+     */
+    protected String resolve(@NonNull String unit) {
+        String code = (mUnitIndex != null) ? mUnitIndex.resolve(unit) : null;
+        if (code == null) {
+            code = unit;
+        }
+        Unit modelUnit = (mUcumService.getModel() != null) ? mUcumService.getModel().getUnit(code) : null;
+        String display = (modelUnit != null) ? modelUnit.getPrintSymbol() : null;
+        if (display == null) {
+            display = mUcumService.getCommonDisplay(code);
+        }
+        Log.d(TAG, "Human readable String for unit " + unit + " -> " + display);
+        return (display != null) ? display : unit;
+    }
+}
@@ -0,0 +1,168 @@
+package com.markiantorno.charcoal.controller;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.fhir.ucum.Component;
+import org.fhir.ucum.Decimal;
+import org.fhir.ucum.DefinedUnit;
+import org.fhir.ucum.ExpressionParser;
+import org.fhir.ucum.Pair;
+import org.fhir.ucum.Symbol;
+import org.fhir.ucum.Term;
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.UcumException;
+import org.fhir.ucum.Value;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of parsed UCUM unit expressions for a single loaded {@link UcumEssenceService}.
+ * <p>
+ * Each expression is parsed once, and interned to a single representative {@link String} for all
+ * expressions that denote exactly the same unit, ie 'mmol/L', 'mmol/l' and 'umol/mL'. Interned units
+ * can be compared by reference, and share {@link ConversionPlan}s. Codes known to the {@link UnitIndex},
+ * ie 'MMOL/L', are interned with the canonical code they resolve to.
+ * <p>
+ * Expressions that use special units, such as 'Cel', or arbitrary units, such as '[IU]', which UCUM
+ * drops from the canonical form, are only interned to themselves.
+ */
+public class UnitExpressionCache {
+
+    public static final String TAG = UnitExpressionCache.class.getSimpleName();
+
+    private final UcumEssenceService mUcumService;
+    private final ExpressionParser mParser;
+    private final UnitIndex mUnitIndex;
+
+    /**
+     * Representative unit, keyed by expression.
+     */
+    private final ConcurrentHashMap<String, String> mInterned = new ConcurrentHashMap<>();
+
+    /**
+     * Representative unit, keyed by canonical form.
+     */
+    private final ConcurrentHashMap<String, String> mRepresentatives = new ConcurrentHashMap<>();
+
+    /**
+     * Whether each defined unit, keyed by code, is missing from or not fully described by canonical forms.
+     */
+    private final ConcurrentHashMap<String, Boolean> mOpaqueUnits = new ConcurrentHashMap<>();
+
+    public UnitExpressionCache(@NonNull UcumEssenceService ucumService, @Nullable UnitIndex unitIndex) {
+        mUcumService = ucumService;
+        mParser = new ExpressionParser(ucumService.getModel());
+        mUnitIndex = unitIndex;
+    }
+
+    /**
+     * Returns the representative {@link String} for the passed in unit expression, if it was interned before.
+     *
+     * @param unit UCUM {@link String} unit expression.
+     * @return Interned UCUM {@link String} unit, or null, if the expression was not parsed yet.
+     */
+    @Nullable
+    public String peek(@NonNull String unit) {
+        return mInterned.get(unit);
+    }
+
+    /**
+     * Returns the representative {@link String} for the passed in unit expression, parsing it on first use.
+     * Two expressions for the same unit return the same instance.
+     *
+     * @param unit UCUM {@link String} unit expression.
+     * @return Interned UCUM {@link String} unit.
+     */
+    public String intern(@NonNull String unit) {
+        String interned = mInterned.get(unit);
+        if (interned == null) {
+            String code = (mUnitIndex != null) ? mUnitIndex.resolve(unit) : null;
+            interned = internCanonical(((code != null) && !code.equals(unit)) ? code : unit);
+            String existing = mInterned.putIfAbsent(unit, interned);
+            if (existing != null) {
+                interned = existing;
+            }
+        }
+        return interned;
+    }
+
+    /**
+     * @return Number of parsed expressions.
+     */
+    public int size() {
+        return mInterned.size();
+    }
+
+    /**
+     * Interns a unit that needs no further resolution through the {@link UnitIndex}.
+     */
+    private String internCanonical(@NonNull String unit) {
+        String interned = mInterned.get(unit);
+        if (interned == null) {
+            String representative = mRepresentatives.putIfAbsent(canonicalKey(unit), unit);
+            interned = (representative != null) ? representative : unit;
+            String existing = mInterned.putIfAbsent(unit, interned);
+            if (existing != null) {
+                interned = existing;
+            }
+        }
+        return interned;
+    }
+
+    /**
+     * Returns a key that is equal for all expressions of the same unit. Expressions that cannot be
+     * compared through their canonical form are keyed by the expression itself.
+     */
+    protected String canonicalKey(@NonNull String unit) {
+        try {
+            if (containsOpaqueUnit(mParser.parse(unit))) {
+                return unit;
+            }
+            Pair canonical = mUcumService.getCanonicalForm(new Pair(Decimal.one(), unit));
+            // Expressions have no whitespace, so canonical keys never collide with raw expressions.
+            return new BigDecimal(canonical.getValue().asDecimal()).stripTrailingZeros().toPlainString()
+                    + " " + canonical.getCode();
+        } catch (UcumException e) {
+            Log.d(TAG, "Cannot parse unit " + unit + ", " + e.getMessage());
+            return unit;
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Cannot canonicalize unit " + unit + ", " + e.getMessage());
+            return unit;
+        }
+    }
+
+    private boolean containsOpaqueUnit(Component component) throws UcumException {
+        if (component instanceof Term) {
+            Term term = (Term) component;
+            return (term.hasComp() && containsOpaqueUnit(term.getComp()))
+                    || (term.hasTerm() && containsOpaqueUnit(term.getTerm()));
+        } else if (component instanceof Symbol) {
+            Symbol symbol = (Symbol) component;
+            return (symbol.getUnit() instanceof DefinedUnit) && isOpaque((DefinedUnit) symbol.getUnit());
+        }
+        return false;
+    }
+
+    /**
+     * Special units are not proportional to their canonical units, and arbitrary units, defined as
+     * exactly one dimensionless unit, disappear from them.
+     */
+    private boolean isOpaque(@NonNull DefinedUnit unit) throws UcumException {
+        Boolean opaque = mOpaqueUnits.get(unit.getCode());
+        if (opaque == null) {
+            Value value = unit.getValue();
+            if (unit.isSpecial() || (value == null) || (value.getValue() == null)) {
+                opaque = true;
+            } else if ("1".equals(value.getUnit())) {
+                opaque = value.getValue().isOne();
+            } else {
+                opaque = containsOpaqueUnit(mParser.parse(value.getUnit()));
+            }
+            mOpaqueUnits.put(unit.getCode(), opaque);
+        }
+        return opaque;
+    }
+}
@@ -0,0 +1,232 @@
+package com.markiantorno.charcoal.controller;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.fhir.ucum.BaseUnit;
+import org.fhir.ucum.DefinedUnit;
+import org.fhir.ucum.Prefix;
+import org.fhir.ucum.UcumModel;
+import org.fhir.ucum.Unit;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash index from the unit codes found in the wild to canonical UCUM codes, for a single loaded
+ * {@link UcumModel}.
+ * <p>
+ * The index is built once, when the model is loaded, over the case sensitive codes, ie 'mmol', and the
+ * case insensitive codes, ie 'MMOL', of every unit, including every prefixed metric unit, plus any
+ * configured aliases. Compound expressions, ie 'MMOL/L', are resolved atom by atom, and memoized, so each
+ * expression resolves with a single lookup after its first use.
+ */
+public class UnitIndex {
+
+    public static final String TAG = UnitIndex.class.getSimpleName();
+
+    /**
+     * Memoized result for expressions that cannot be resolved.
+     */
+    private static final String UNRESOLVED = "";
+
+    /**
+     * Canonical code, keyed by case sensitive code. Only read after construction.
+     */
+    private final HashMap<String, String> mCodes = new HashMap<>();
+
+    /**
+     * Canonical code, keyed by case insensitive code. Only read after construction.
+     */
+    private final HashMap<String, String> mCodesUC = new HashMap<>();
+
+    /**
+     * Canonical code, keyed by alias.
+     */
+    private final ConcurrentHashMap<String, String> mAliases = new ConcurrentHashMap<>();
+
+    /**
+     * Resolved expressions, keyed by the expression as passed in.
+     */
+    private final ConcurrentHashMap<String, String> mResolved = new ConcurrentHashMap<>();
+
+    public UnitIndex(@NonNull UcumModel model, @Nullable Map<String, String> aliases) {
+        // Plain units go first, so that they win any clash with a prefixed unit.
+        for (BaseUnit unit : model.getBaseUnits()) {
+            index(unit.getCode(), unit.getCodeUC());
+        }
+        for (DefinedUnit unit : model.getDefinedUnits()) {
+            index(unit.getCode(), unit.getCodeUC());
+        }
+        for (Prefix prefix : model.getPrefixes()) {
+            for (BaseUnit unit : model.getBaseUnits()) {
+                indexPrefixed(prefix, unit);
+            }
+            for (DefinedUnit unit : model.getDefinedUnits()) {
+                if (unit.isMetric()) {
+                    indexPrefixed(prefix, unit);
+                }
+            }
+        }
+        if (aliases != null) {
+            mAliases.putAll(aliases);
+        }
+        Log.d(TAG, "Indexed " + mCodes.size() + " unit codes, " + mCodesUC.size() + " case insensitive codes and "
+                + mAliases.size() + " aliases.");
+    }
+
+    /**
+     * Adds an alias for a UCUM code, ie 'm[mol]/l' for 'mmol/L'.
+     *
+     * @param alias {@link String} code to accept.
+     * @param code  UCUM {@link String} code the alias stands for.
+     */
+    public void addAlias(@NonNull String alias, @NonNull String code) {
+        mAliases.put(alias, code);
+        mResolved.clear();
+    }
+
+    /**
+     * Returns the canonical UCUM code for the passed in code, or null if the code is unknown. Aliases
+     * take precedence over case sensitive codes, which take precedence over case insensitive codes, so a
+     * valid case sensitive code never changes meaning, ie 'S' stays siemens, rather than second. Upper case
+     * codes that are also valid case sensitive codes, ie 'MG' for megagauss, need an alias to be read as
+     * case insensitive codes, see {@link #addAlias(String, String)}.
+     *
+     * @param code {@link String} unit code or expression, ie 'mg/dL', 'MG/DL' or a configured alias.
+     * @return Canonical UCUM {@link String} code, or null.
+     */
+    public String resolve(@NonNull String code) {
+        String resolved = mResolved.get(code);
+        if (resolved == null) {
+            resolved = resolveAtom(code);
+            if (resolved == null) {
+                resolved = resolveExpression(code);
+            }
+            if (resolved == null) {
+                Log.d(TAG, "Unable to resolve unit code " + code);
+                resolved = UNRESOLVED;
+            }
+            mResolved.put(code, resolved);
+        }
+        return (resolved == UNRESOLVED) ? null : resolved;
+    }
+
+    /**
+     * @return Number of indexed case sensitive codes, including prefixed units.
+     */
+    public int size() {
+        return mCodes.size();
+    }
+
+    private void index(String code, String codeUC) {
+        putIfAbsent(mCodes, code, code);
+        // Units without a case insensitive code, ie 'L', are already upper case.
+        putCaseInsensitive((codeUC != null) ? codeUC : code, code);
+    }
+
+    private void indexPrefixed(@NonNull Prefix prefix, @NonNull Unit unit) {
+        String code = prefix.getCode() + unit.getCode();
+        putIfAbsent(mCodes, code, code);
+        if (prefix.getCodeUC() != null) {
+            putCaseInsensitive(prefix.getCodeUC() + ((unit.getCodeUC() != null) ? unit.getCodeUC() : unit.getCode()), code);
+        }
+    }
+
+    /**
+     * Codes that are their own case insensitive code, ie 'L' or '[IU]', win over other units that share
+     * it, ie 'l' or '[iU]', so that valid upper case codes resolve to themselves.
+     */
+    private void putCaseInsensitive(String codeUC, @NonNull String code) {
+        if (code.equals(codeUC)) {
+            mCodesUC.put(codeUC, code);
+        } else {
+            putIfAbsent(mCodesUC, codeUC, code);
+        }
+    }
+
+    private static void putIfAbsent(@NonNull HashMap<String, String> map, String key, @NonNull String code) {
+        if ((key != null) && !map.containsKey(key)) {
+            map.put(key, code);
+        }
+    }
+
+    private String resolveAtom(@NonNull String atom) {
+        String code = mAliases.get(atom);
+        if (code == null) {
+            code = mCodes.get(atom);
+        }
+        if (code == null) {
+            // Only codes that are not valid case sensitive codes are read as case insensitive codes.
+            code = mCodesUC.get(atom.toUpperCase(Locale.US));
+        }
+        return code;
+    }
+
+    /**
+     * Resolves a compound expression, ie 'MG/DL', by resolving each unit between the '.' and '/' operators
+     * and parentheses, keeping exponents, factors and annotations as they are.
+     */
+    private String resolveExpression(@NonNull String expression) {
+        StringBuilder resolved = new StringBuilder(expression.length());
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= expression.length(); i++) {
+            char c = (i < expression.length()) ? expression.charAt(i) : '/';
+            if ((c == '[') || (c == '{')) {
+                depth++;
+            } else if ((c == ']') || (c == '}')) {
+                depth--;
+            } else if ((depth == 0) && ((c == '.') || (c == '/') || (c == '(') || (c == ')'))) {
+                if (!appendComponent(expression.substring(start, i), resolved)) {
+                    return null;
+                }
+                if (i < expression.length()) {
+                    resolved.append(c);
+                }
+                start = i + 1;
+            }
+        }
+        return resolved.toString();
+    }
+
+    /**
+     * Appends the canonical form of a single component, ie 'MG2{total}', to the passed in builder.
+     *
+     * @return {@link Boolean#TRUE} if the component could be resolved.
+     */
+    private boolean appendComponent(@NonNull String component, @NonNull StringBuilder out) {
+        // Trailing annotations are kept as they are.
+        int end = component.length();
+        if ((end > 0) && (component.charAt(end - 1) == '}')) {
+            end = component.indexOf('{');
+        }
+        String annotation = component.substring(end);
+
+        // As are trailing exponents, unless the whole component is a number.
+        int exponent = end;
+        while ((exponent > 0) && Character.isDigit(component.charAt(exponent - 1))) {
+            exponent--;
+        }
+        if ((exponent > 0) && (exponent < end)
+                && ((component.charAt(exponent - 1) == '+') || (component.charAt(exponent - 1) == '-'))) {
+            exponent--;
+        }
+
+        String unit = component.substring(0, exponent);
+        if (unit.isEmpty()) {
+            out.append(component);
+            return true;
+        }
+
+        String code = resolveAtom(unit);
+        if (code == null) {
+            return false;
+        }
+        out.append(code).append(component, exponent, end).append(annotation);
+        return true;
+    }
+}
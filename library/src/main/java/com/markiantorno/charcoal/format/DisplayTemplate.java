@@ -0,0 +1,207 @@
+package com.markiantorno.charcoal.format;
+
+import android.support.annotation.NonNull;
+
+import com.markiantorno.charcoal.annotation.Charcoal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precompiled version of a {@link Charcoal#format()} pattern.
+ * <p>
+ * The pattern is parsed once, into literal text and references to the value and unit arguments, so that
+ * displaying a value only appends to a {@link StringBuilder}, instead of parsing the pattern and creating a
+ * {@link java.util.Formatter} for every call to {@link String#format(String, Object...)}.
+ * <p>
+ * Supported specifiers are {@code %s}, {@code %1$s}, {@code %2$s}, {@code %%} and {@code %n}. Patterns
+ * using anything else, such as widths, flags or other conversions, fall back to {@link String#format(String, Object...)}.
+ */
+public class DisplayTemplate {
+
+    private static final int ARGUMENT_VALUE = 0;
+    private static final int ARGUMENT_UNIT = 1;
+    private static final int ARGUMENT_COUNT = 2;
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /**
+     * Compiled templates, keyed by pattern. Patterns come from annotations, so there are only a handful.
+     */
+    private static final ConcurrentHashMap<String, DisplayTemplate> sTemplates = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<StringBuilder> sBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(32);
+        }
+    };
+
+    private final String mFormat;
+
+    /**
+     * Literal text to append, or null for segments that reference an argument.
+     */
+    private final String[] mLiterals;
+
+    /**
+     * Argument index referenced by each segment, only meaningful where the literal is null.
+     */
+    private final int[] mArguments;
+
+    /**
+     * True if the pattern uses specifiers this class does not handle.
+     */
+    private final boolean mFallback;
+
+    private DisplayTemplate(@NonNull String format, String[] literals, int[] arguments, boolean fallback) {
+        mFormat = format;
+        mLiterals = literals;
+        mArguments = arguments;
+        mFallback = fallback;
+    }
+
+    /**
+     * Returns the compiled template for the passed in pattern, compiling it on first use.
+     *
+     * @param format {@link String} pattern, as used with {@link String#format(String, Object...)}.
+     * @return {@link DisplayTemplate}
+     */
+    public static DisplayTemplate compile(@NonNull String format) {
+        DisplayTemplate template = sTemplates.get(format);
+        if (template == null) {
+            template = parse(format);
+            DisplayTemplate existing = sTemplates.putIfAbsent(format, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template;
+    }
+
+    public String getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @return {@link Boolean#TRUE} if this template delegates to {@link String#format(String, Object...)}.
+     */
+    public boolean isFallback() {
+        return mFallback;
+    }
+
+    /**
+     * Appends the passed in value and unit, as per this template, to the given {@link StringBuilder}.
+     *
+     * @param out   {@link StringBuilder} to append to.
+     * @param value Measurement value to display.
+     * @param unit  Unit {@link String} to display with the value.
+     */
+    public void appendTo(@NonNull StringBuilder out, CharSequence value, CharSequence unit) {
+        if (mFallback) {
+            out.append(String.format(mFormat, String.valueOf(value), String.valueOf(unit)));
+            return;
+        }
+
+        for (int i = 0; i < mLiterals.length; i++) {
+            if (mLiterals[i] != null) {
+                out.append(mLiterals[i]);
+            } else if (mArguments[i] == ARGUMENT_VALUE) {
+                out.append(value);
+            } else if (mArguments[i] == ARGUMENT_UNIT) {
+                out.append(unit);
+            }
+        }
+    }
+
+    /**
+     * Returns the passed in value and unit as per this template, built in a {@link StringBuilder} reused
+     * by the calling thread.
+     *
+     * @param value Measurement value to display.
+     * @param unit  Unit {@link String} to display with the value.
+     * @return The display {@link String}.
+     */
+    public String format(CharSequence value, CharSequence unit) {
+        StringBuilder builder = sBuilder.get();
+        builder.setLength(0);
+        appendTo(builder, value, unit);
+        return builder.toString();
+    }
+
+    /**
+     * Splits the pattern into literal and argument segments, or returns a fallback template if the
+     * pattern uses anything but the supported specifiers.
+     */
+    private static DisplayTemplate parse(@NonNull String format) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> arguments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int ordinaryIndex = 0;
+
+        int i = 0;
+        while (i < format.length()) {
+            char c = format.charAt(i);
+            if (c != '%') {
+                literal.append(c);
+                i++;
+                continue;
+            }
+
+            if (i + 1 >= format.length()) {
+                return fallback(format);
+            }
+
+            char next = format.charAt(i + 1);
+            int argument;
+            if (next == '%') {
+                literal.append('%');
+                i += 2;
+                continue;
+            } else if (next == 'n') {
+                literal.append(LINE_SEPARATOR);
+                i += 2;
+                continue;
+            } else if (next == 's') {
+                argument = ordinaryIndex++;
+                i += 2;
+            } else if ((next >= '1') && (next <= '9')
+                    && (i + 3 < format.length())
+                    && (format.charAt(i + 2) == '$')
+                    && (format.charAt(i + 3) == 's')) {
+                argument = next - '1';
+                i += 4;
+            } else {
+                return fallback(format);
+            }
+
+            if (argument >= ARGUMENT_COUNT) {
+                return fallback(format);
+            }
+
+            if (literal.length() > 0) {
+                literals.add(literal.toString());
+                arguments.add(-1);
+                literal.setLength(0);
+            }
+            literals.add(null);
+            arguments.add(argument);
+        }
+
+        if (literal.length() > 0) {
+            literals.add(literal.toString());
+            arguments.add(-1);
+        }
+
+        int[] argumentArray = new int[arguments.size()];
+        for (int j = 0; j < argumentArray.length; j++) {
+            argumentArray[j] = arguments.get(j);
+        }
+        return new DisplayTemplate(format, literals.toArray(new String[literals.size()]), argumentArray, false);
+    }
+
+    private static DisplayTemplate fallback(@NonNull String format) {
+        return new DisplayTemplate(format, null, null, true);
+    }
+}
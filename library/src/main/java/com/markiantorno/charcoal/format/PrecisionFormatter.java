@@ -0,0 +1,250 @@
+package com.markiantorno.charcoal.format;
+
+import android.support.annotation.NonNull;
+
+import java.math.RoundingMode;
+
+/**
+ * Formats numbers to a given number of decimal places, writing the digits straight into a char buffer
+ * or {@link StringBuilder}, without intermediate {@link String}s.
+ * <p>
+ * Values are rounded with {@link RoundingMode#DOWN} (truncation), {@link RoundingMode#HALF_UP} or
+ * {@link RoundingMode#HALF_EVEN}. At most the requested number of fractional digits is written: trailing
+ * zeros are dropped, and whole numbers have no decimal point.
+ */
+public class PrecisionFormatter {
+
+    /**
+     * Size of a buffer large enough for any value accepted by {@link #canFormat(double, int)}.
+     */
+    public static final int MAX_LENGTH = 40;
+
+    /**
+     * Largest scaled magnitude that a double holds with integer precision, 2^53.
+     */
+    private static final double MAX_EXACT_SCALED = 9007199254740992d;
+
+    /**
+     * Number of ulps of tolerance when rounding scaled values, so that values like 0.29, stored as
+     * 28.999999999999996 when scaled, or 2.675, stored as 267.49999999999997, round as written.
+     */
+    private static final int ROUNDING_ULPS = 8;
+
+    private static final long[] POWERS_OF_TEN = new long[16];
+
+    static {
+        long power = 1;
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+    }
+
+    private static final ThreadLocal<char[]> sBuffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[MAX_LENGTH];
+        }
+    };
+
+    private PrecisionFormatter() {
+    }
+
+    /**
+     * Returns true if the passed in value can be formatted at the given accuracy without losing digits
+     * to the limits of double precision. Callers should fall back to {@link org.fhir.ucum.Decimal} otherwise.
+     *
+     * @param value    Value to format.
+     * @param accuracy Number of digits to the right of the decimal point.
+     * @return {@link Boolean#TRUE} if the value can be formatted as a double.
+     */
+    public static boolean canFormat(double value, int accuracy) {
+        return (accuracy >= 0)
+                && (accuracy < POWERS_OF_TEN.length)
+                && !Double.isNaN(value)
+                && (Math.abs(value) * POWERS_OF_TEN[accuracy] < MAX_EXACT_SCALED);
+    }
+
+    /**
+     * Formats the value, truncated to the given number of digits to the right of the decimal point.
+     * Only valid if {@link #canFormat(double, int)}.
+     *
+     * @param value    Value to format.
+     * @param accuracy Number of digits to the right of the decimal point.
+     * @return The precision correct {@link String}.
+     */
+    public static String format(double value, int accuracy) {
+        char[] buffer = sBuffer.get();
+        return new String(buffer, 0, format(value, accuracy, RoundingMode.DOWN, buffer, 0));
+    }
+
+    /**
+     * Formats the value into the given {@link StringBuilder}. Only valid if {@link #canFormat(double, int)}.
+     *
+     * @param value    Value to format.
+     * @param accuracy Number of digits to the right of the decimal point.
+     * @param mode     {@link RoundingMode} to apply to dropped digits.
+     * @param out      {@link StringBuilder} to append to.
+     */
+    public static void append(double value, int accuracy, @NonNull RoundingMode mode, @NonNull StringBuilder out) {
+        char[] buffer = sBuffer.get();
+        out.append(buffer, 0, format(value, accuracy, mode, buffer, 0));
+    }
+
+    /**
+     * Formats the value into the given char buffer. Only valid if {@link #canFormat(double, int)}.
+     *
+     * @param value    Value to format.
+     * @param accuracy Number of digits to the right of the decimal point.
+     * @param mode     {@link RoundingMode} to apply to dropped digits.
+     * @param buffer   Buffer to write to, with at least {@link #MAX_LENGTH} chars available from offset.
+     * @param offset   Index of the buffer to start writing at.
+     * @return Number of chars written.
+     */
+    public static int format(double value, int accuracy, @NonNull RoundingMode mode, @NonNull char[] buffer, int offset) {
+        long scale = POWERS_OF_TEN[accuracy];
+        long rounded = round(Math.abs(value) * scale, mode);
+        long integerPart = rounded / scale;
+        long fractionPart = rounded % scale;
+
+        int position = offset;
+        if ((value < 0) && (rounded != 0)) {
+            buffer[position++] = '-';
+        }
+        position = writeDigits(integerPart, countDigits(integerPart), buffer, position);
+
+        if (fractionPart != 0) {
+            int digits = accuracy;
+            while ((fractionPart % 10) == 0) {
+                fractionPart /= 10;
+                digits--;
+            }
+            buffer[position++] = '.';
+            position = writeDigits(fractionPart, digits, buffer, position);
+        }
+        return position - offset;
+    }
+
+    /**
+     * Rounds the {@link String} representation of a decimal value into the given {@link StringBuilder}.
+     * Values with no decimal point, or no more digits than the accuracy, are appended unchanged, as is
+     * everything when the accuracy is negative.
+     *
+     * @param decimal  Plain decimal representation of a value, ie {@link org.fhir.ucum.Decimal#asDecimal()}.
+     * @param accuracy Number of digits to the right of the decimal point.
+     * @param mode     {@link RoundingMode} to apply to dropped digits.
+     * @param out      {@link StringBuilder} to append to.
+     */
+    public static void append(@NonNull CharSequence decimal, int accuracy, @NonNull RoundingMode mode, @NonNull StringBuilder out) {
+        int point = indexOf(decimal, '.');
+        if ((accuracy < 0) || (point < 0) || (decimal.length() - point - 1 <= accuracy)) {
+            out.append(decimal);
+            return;
+        }
+
+        int firstDropped = point + accuracy + 1;
+        int lastKept = (accuracy == 0) ? point - 1 : firstDropped - 1;
+        boolean roundUp = roundsUp(decimal, lastKept, firstDropped, mode);
+
+        int start = out.length();
+        out.append(decimal, 0, (accuracy == 0) ? point : firstDropped);
+        if (roundUp) {
+            increment(out, start);
+        }
+    }
+
+    /**
+     * Rounds a non negative scaled value to a whole number.
+     */
+    private static long round(double scaled, @NonNull RoundingMode mode) {
+        double tolerance = Math.ulp(scaled) * ROUNDING_ULPS;
+        double floor = Math.floor(scaled + tolerance);
+        double remainder = scaled - floor;
+
+        switch (mode) {
+            case DOWN:
+                return (long) floor;
+            case HALF_UP:
+                return (long) ((remainder >= 0.5 - tolerance) ? floor + 1 : floor);
+            case HALF_EVEN:
+                if (Math.abs(remainder - 0.5) <= tolerance) {
+                    return (long) ((((long) floor) % 2 == 0) ? floor : floor + 1);
+                }
+                return (long) ((remainder > 0.5) ? floor + 1 : floor);
+            default:
+                throw new IllegalArgumentException("Unsupported rounding mode " + mode);
+        }
+    }
+
+    /**
+     * Decides whether dropping the digits from firstDropped onwards rounds the kept digits up.
+     */
+    private static boolean roundsUp(@NonNull CharSequence decimal, int lastKept, int firstDropped, @NonNull RoundingMode mode) {
+        int dropped = decimal.charAt(firstDropped) - '0';
+        switch (mode) {
+            case DOWN:
+                return false;
+            case HALF_UP:
+                return dropped >= 5;
+            case HALF_EVEN:
+                if (dropped != 5) {
+                    return dropped > 5;
+                }
+                for (int i = firstDropped + 1; i < decimal.length(); i++) {
+                    if (decimal.charAt(i) != '0') {
+                        return true;
+                    }
+                }
+                return (lastKept >= 0) && (((decimal.charAt(lastKept) - '0') % 2) != 0);
+            default:
+                throw new IllegalArgumentException("Unsupported rounding mode " + mode);
+        }
+    }
+
+    /**
+     * Adds one to the last digit of the number starting at start, carrying as needed.
+     */
+    private static void increment(@NonNull StringBuilder out, int start) {
+        int i = out.length() - 1;
+        while (i >= start) {
+            char c = out.charAt(i);
+            if (c == '9') {
+                out.setCharAt(i, '0');
+            } else if ((c >= '0') && (c <= '8')) {
+                out.setCharAt(i, (char) (c + 1));
+                return;
+            } else if (c != '.') {
+                break;
+            }
+            i--;
+        }
+        // Every digit carried, ie 9.99 -> 10.00, so a leading one is needed after any sign.
+        out.insert(i + 1, '1');
+    }
+
+    private static int writeDigits(long value, int digits, @NonNull char[] buffer, int position) {
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (char) ('0' + (value % 10));
+            value /= 10;
+        }
+        return position + digits;
+    }
+
+    private static int countDigits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int indexOf(@NonNull CharSequence sequence, char c) {
+        for (int i = 0; i < sequence.length(); i++) {
+            if (sequence.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
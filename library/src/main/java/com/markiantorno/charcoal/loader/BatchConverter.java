@@ -0,0 +1,114 @@
+package com.markiantorno.charcoal.loader;
+
+import android.support.annotation.NonNull;
+
+import com.markiantorno.charcoal.controller.ConversionPlan;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts arrays of primitive values with a single {@link ConversionPlan}. Large arrays are split into
+ * chunks, which the calling thread and the {@link CustomThreadPoolManager} threads convert in parallel.
+ */
+public class BatchConverter {
+
+    /**
+     * Arrays shorter than this are converted on the calling thread only.
+     */
+    protected static final int PARALLEL_THRESHOLD = 16384;
+
+    /**
+     * Smallest number of values handed to a single thread.
+     */
+    protected static final int MIN_CHUNK_SIZE = 4096;
+
+    private BatchConverter() {
+    }
+
+    /**
+     * Converts all of the passed in values. The plan must be {@link ConversionPlan#isDoubleSafe()}.
+     *
+     * @param plan   {@link ConversionPlan} to convert with.
+     * @param values Values in the source unit of the plan.
+     * @param out    Array to write the values in the target unit to, at least as long as values.
+     */
+    public static void convert(@NonNull ConversionPlan plan, @NonNull double[] values, @NonNull double[] out) {
+        CustomThreadPoolManager pool = CustomThreadPoolManager.getsInstance();
+        convert(plan, values, out, pool::execute, pool.getParallelism());
+    }
+
+    /**
+     * Converts all of the passed in values, sharing large arrays with up to the given number of threads of
+     * the executor.
+     */
+    static void convert(@NonNull ConversionPlan plan, @NonNull double[] values, @NonNull double[] out,
+                        @NonNull Executor executor, int parallelism) {
+        if ((values.length < PARALLEL_THRESHOLD) || (parallelism < 2)) {
+            plan.convert(values, out, 0, values.length);
+            return;
+        }
+
+        int chunkCount = Math.min(parallelism + 1, values.length / MIN_CHUNK_SIZE);
+        ChunkedConversion conversion = new ChunkedConversion(plan, values, out, chunkCount);
+        for (int i = 1; i < chunkCount; i++) {
+            executor.execute(conversion);
+        }
+        conversion.run();
+        conversion.awaitCompletion();
+    }
+
+    /**
+     * Work shared by all participating threads. Chunks are claimed one at a time, so the calling thread
+     * converts everything itself if no pool thread becomes available, and never waits on queued work.
+     */
+    private static class ChunkedConversion implements Runnable {
+
+        private final ConversionPlan mPlan;
+        private final double[] mValues;
+        private final double[] mOut;
+        private final int mChunkCount;
+        private final int mChunkSize;
+        private final AtomicInteger mNextChunk = new AtomicInteger();
+        private final CountDownLatch mRemainingChunks;
+
+        ChunkedConversion(ConversionPlan plan, double[] values, double[] out, int chunkCount) {
+            mPlan = plan;
+            mValues = values;
+            mOut = out;
+            mChunkCount = chunkCount;
+            mChunkSize = (values.length + chunkCount - 1) / chunkCount;
+            mRemainingChunks = new CountDownLatch(chunkCount);
+        }
+
+        @Override
+        public void run() {
+            int chunk;
+            while ((chunk = mNextChunk.getAndIncrement()) < mChunkCount) {
+                int start = chunk * mChunkSize;
+                int end = Math.min(start + mChunkSize, mValues.length);
+                try {
+                    mPlan.convert(mValues, mOut, start, end);
+                } finally {
+                    mRemainingChunks.countDown();
+                }
+            }
+        }
+
+        void awaitCompletion() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mRemainingChunks.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.markiantorno.charcoal.loader;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the latest conversion requested for a single {@link com.markiantorno.charcoal.view.CharcoalTextView}.
+ * <p>
+ * Requesting a conversion replaces the previous one, which is then superseded. Threads converting superseded
+ * work skip it, and its result is never displayed, so nothing has to be cancelled, or removed from a queue.
+ * The slot is lock free, and lives as long as its view.
+ */
+public final class ConversionSlot {
+
+    private final AtomicReference<Object> mLatest = new AtomicReference<>();
+
+    /**
+     * Makes the passed in work the latest of this slot, superseding any earlier work.
+     *
+     * @param work Conversion requested for the view.
+     */
+    public void supersede(@NonNull Object work) {
+        mLatest.set(work);
+    }
+
+    /**
+     * Supersedes any earlier work without requesting new work, ie when the view displays something that
+     * needs no conversion.
+     */
+    public void clear() {
+        mLatest.set(null);
+    }
+
+    /**
+     * @param work Conversion requested for the view.
+     * @return {@link Boolean#TRUE} if the passed in work was not superseded, or completed, yet.
+     */
+    public boolean isCurrent(@Nullable Object work) {
+        return (work != null) && (mLatest.get() == work);
+    }
+
+    /**
+     * Empties the slot, if the passed in work is still the latest, ie once its result is displayed, or it
+     * was cancelled.
+     *
+     * @param work Conversion requested for the view.
+     * @return {@link Boolean#TRUE} if the passed in work was still the latest, and its result should be
+     * displayed.
+     */
+    public boolean complete(@Nullable Object work) {
+        return (work != null) && mLatest.compareAndSet(work, null);
+    }
+}
@@ -1,17 +1,20 @@
 package com.markiantorno.charcoal.loader;
 
+import android.content.Context;
 import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.fhir.ucum.Decimal;
-import org.fhir.ucum.UcumEssenceService;
-import org.fhir.ucum.UcumException;
 
 import java.lang.ref.WeakReference;
+import java.math.RoundingMode;
 
 import com.markiantorno.charcoal.controller.EssenceController;
+import com.markiantorno.charcoal.controller.EssenceModel;
+import com.markiantorno.charcoal.format.DisplayTemplate;
 import com.markiantorno.charcoal.pojo.ObservationPair;
+import com.markiantorno.charcoal.view.CharcoalSpec;
 import com.markiantorno.charcoal.view.CharcoalTextView;
 
 /**
@@ -24,56 +27,47 @@ public class ConvertUnitTask extends AsyncTask<ObservationPair, Void, String> {
     protected WeakReference<CharcoalTextView> mWeakReference;
     protected String mDesiredUnit;
     protected int mDesiredAccuracy;
-    protected String mFormat;
+    protected RoundingMode mRoundingMode;
+    protected DisplayTemplate mTemplate;
+
+    // Captured on the main thread, so the background conversion never reads the view
+    private final Context mContext;
+    private final String mEssenceFileName;
+    private final CharcoalSpec mSpec;
+
+    public ConvertUnitTask(@NonNull CharcoalTextView textView,
+                           @NonNull String desiredUnit,
+                           int desiredAccuracy,
+                           @NonNull String format) {
+        this(textView, desiredUnit, desiredAccuracy, textView.getRoundingMode(), format);
+    }
 
     public ConvertUnitTask(@NonNull CharcoalTextView textView,
                            @NonNull String desiredUnit,
                            int desiredAccuracy,
+                           @NonNull RoundingMode roundingMode,
                            @NonNull String format) {
         mWeakReference = new WeakReference<>(textView);
         mDesiredUnit = desiredUnit;
         mDesiredAccuracy = desiredAccuracy;
-        mFormat = format;
+        mRoundingMode = roundingMode;
+        mTemplate = DisplayTemplate.compile(format);
+        mContext = textView.getContext().getApplicationContext();
+        mEssenceFileName = textView.getEssenceFileName();
+        mSpec = textView.getSpec();
         textView.setText("");
     }
 
     @Override
     protected String doInBackground(@NonNull ObservationPair... observationPairs) {
-        UcumEssenceService ucumService = EssenceController.getUcumService();
-        ObservationPair myPair = observationPairs[0];
-        String parsedStringValue;
-
-        if ((myPair != null) && (ucumService != null)) {
-
-            if (!myPair.getUnitCode().equals(mDesiredUnit)) {
-                Log.d(TAG, "Unit for property does not equal current unit. Need to convert.");
-                try {
-                    Log.d(TAG, "Value passed in -> " + myPair.getValue());
-                    Decimal sourceValue = new Decimal(String.valueOf(myPair.getValue()));
-                    Decimal convertedValue = ucumService.convert(sourceValue,
-                            myPair.getUnitCode(),
-                            mDesiredUnit);
-
-                    Log.d(TAG, "Adjusted value for new unit -> " + convertedValue);
-                    parsedStringValue = asPrecisionDecimalString(convertedValue, mDesiredAccuracy);
-
-                } catch (UcumException e) {
-                    Log.d(TAG, "Defaulting to passed in unit... \n" + e.getMessage());
-                    parsedStringValue = asPrecisionDecimalString(String.valueOf(myPair.getValue()),
-                            mDesiredAccuracy);
-                }
-            } else {
-                Log.d(TAG, "Current unit matches desired unit.");
-                parsedStringValue = asPrecisionDecimalString(String.valueOf(myPair.getValue()),
-                        mDesiredAccuracy);
-            }
-
-        } else {
-            Log.e(TAG, "CharcoalTextView not initialized. Displaying as plain number...");
-            parsedStringValue = String.valueOf(myPair.getValue());
-        }
-
-        return String.format(mFormat, parsedStringValue, getHumanReadableUnitString(mDesiredUnit));
+        // The value and unit are rendered with the same model, even if a new one is swapped in meanwhile.
+        EssenceModel model = (mContext != null)
+                ? EssenceController.getModel(mEssenceFileName, mContext)
+                : EssenceController.getModel(mEssenceFileName);
+        return mTemplate.format(
+                ConvertUnitThread.convertValue(model, mSpec, observationPairs[0], mDesiredUnit, mDesiredAccuracy,
+                        mRoundingMode),
+                (model != null) ? model.getHumanReadableUnitString(mDesiredUnit) : mDesiredUnit);
     }
 
     @Override
@@ -91,28 +85,6 @@ public class ConvertUnitTask extends AsyncTask<ObservationPair, Void, String> {
         }
     }
 
-    /**
-     * Takes the passed in unit and returns the human readable version of the String.
-     *
-     * @param unit UCUM notation unit.
-     * @return {@link String} Human readable String for display.
-     */
-    private String getHumanReadableUnitString(@NonNull String unit) {
-        String humanReadableUnitString;
-        UcumEssenceService ucumService = EssenceController.getUcumService();
-
-        Log.d(TAG, "Unit String to generate human readable for -> " + unit);
-        if ((ucumService.getModel() != null) && (ucumService.getModel().getUnit(unit) != null)) {
-            Log.d(TAG, "Unit is base unit, this is easy");
-            humanReadableUnitString = ucumService.getModel().getUnit(unit).getPrintSymbol();
-        } else {
-            Log.d(TAG, "Unit is not base unit, defaulting to common display.");
-            humanReadableUnitString = ucumService.getCommonDisplay(unit);
-        }
-        Log.d(TAG, "Human readable String -> " + humanReadableUnitString);
-        return humanReadableUnitString;
-    }
-
     /**
      * The {@link Decimal#precision} variable doesn't do anything for rendering as far as I can tell.
      * This method takes the {@link Decimal} and provides a printable {@link String} with correct precision.
@@ -121,34 +93,17 @@ public class ConvertUnitTask extends AsyncTask<ObservationPair, Void, String> {
      * @return The precision correct {@link String}.
      */
     public static String asPrecisionDecimalString(Decimal decimal, int accuracy) {
-        return asPrecisionDecimalString(decimal.asDecimal(), accuracy);
+        return ConvertUnitThread.asPrecisionDecimalString(decimal, accuracy);
     }
 
     /**
-     * The {@link Decimal#precision} variable doesn't do anything for rendering as far as I can tell.
-     * This method takes the {@link String} representation of Decimal value and provides a printable
-     * {@link String} with correct precision.
+     * Takes the {@link String} representation of Decimal value and provides a printable {@link String},
+     * truncated to the given accuracy.
      *
      * @param decimalString {@link String} representation of Decimal value.
      * @return The precision correct {@link String}.
      */
     protected static String asPrecisionDecimalString(String decimalString, int accuracy) {
-        if ((accuracy < 0) || (!decimalString.contains("."))) {
-            Log.e(TAG, "Cannot set accuracy to a negative value, or value with no decimal places." +
-                    " No adjustment done.");
-            return decimalString;
-        } else {
-            String result = decimalString;
-            if (accuracy == 0) {
-                result = result.substring(0, result.indexOf("."));
-            } else {
-                int digitsAfterDecimal = ((result.length() - 1) - result.indexOf("."));
-                if (accuracy > digitsAfterDecimal) {
-                    accuracy = digitsAfterDecimal;
-                }
-                result = result.substring(0, result.indexOf(".") + (accuracy) + 1);
-            }
-            return result;
-        }
+        return ConvertUnitThread.asPrecisionDecimalString(decimalString, accuracy);
     }
 }
@@ -2,16 +2,22 @@ package com.markiantorno.charcoal.loader;
 
 import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.fhir.ucum.Decimal;
-import org.fhir.ucum.UcumEssenceService;
 import org.fhir.ucum.UcumException;
 
 import java.lang.ref.WeakReference;
+import java.math.RoundingMode;
 
+import com.markiantorno.charcoal.controller.ConversionPlan;
 import com.markiantorno.charcoal.controller.EssenceController;
+import com.markiantorno.charcoal.controller.EssenceModel;
+import com.markiantorno.charcoal.format.DisplayTemplate;
+import com.markiantorno.charcoal.format.PrecisionFormatter;
 import com.markiantorno.charcoal.pojo.ObservationPair;
+import com.markiantorno.charcoal.view.CharcoalSpec;
 import com.markiantorno.charcoal.view.CharcoalTextView;
 
 /**
@@ -24,21 +30,37 @@ public class ConvertUnitThread implements Runnable {
     protected WeakReference<CharcoalTextView> mWeakReference;
     protected String mDesiredUnit;
     protected int mDesiredAccuracy;
-    protected String mFormat;
+    protected RoundingMode mRoundingMode;
+    protected DisplayTemplate mTemplate;
     protected ObservationPair observationPair;
     protected Handler mHandler = new Handler();
+    // CustomThreadPoolManager generation this conversion was created in
+    private final int mGeneration = CustomThreadPoolManager.getsInstance().getGeneration();
+
+    /**
+     * Builder for the converted value of the thread running the conversion, reused between conversions.
+     */
+    private static final ThreadLocal<StringBuilder> sValueBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(PrecisionFormatter.MAX_LENGTH);
+        }
+    };
 
     public ConvertUnitThread(@NonNull CharcoalTextView textView,
                              @NonNull String desiredUnit,
                              int desiredAccuracy,
-                             @NonNull String format,
-                            ObservationPair obs) {
+                             @NonNull RoundingMode roundingMode,
+                             @NonNull DisplayTemplate template,
+                             ObservationPair obs) {
         mWeakReference = new WeakReference<>(textView);
         mDesiredUnit = desiredUnit;
         mDesiredAccuracy = desiredAccuracy;
-        mFormat = format;
+        mRoundingMode = roundingMode;
+        mTemplate = template;
         observationPair = obs;
-        textView.setText("");
+        // Supersedes any earlier conversion of the view.
+        textView.getConversionSlot().supersede(this);
     }
 
     public WeakReference<CharcoalTextView> getmWeakReference() {
@@ -68,12 +90,21 @@ public class ConvertUnitThread implements Runnable {
         return this;
     }
 
-    public String getmFormat() {
-        return mFormat;
+    public RoundingMode getRoundingMode() {
+        return mRoundingMode;
+    }
+
+    public ConvertUnitThread setRoundingMode(RoundingMode mRoundingMode) {
+        this.mRoundingMode = mRoundingMode;
+        return this;
+    }
+
+    public DisplayTemplate getTemplate() {
+        return mTemplate;
     }
 
-    public ConvertUnitThread setFormat(String mFormat) {
-        this.mFormat = mFormat;
+    public ConvertUnitThread setTemplate(DisplayTemplate mTemplate) {
+        this.mTemplate = mTemplate;
         return this;
     }
 
@@ -88,56 +119,41 @@ public class ConvertUnitThread implements Runnable {
 
     @Override
     public void run() {
-        UcumEssenceService ucumService = EssenceController.getUcumService();
-        String parsedStringValue;
-
-        if ((observationPair != null) && (ucumService != null)) {
-
-            if (!observationPair.getUnitCode().equals(mDesiredUnit)) {
-                Log.d(TAG, "Unit for property does not equal current unit. Need to convert.");
-                try {
-                    Log.d(TAG, "Value passed in -> " + observationPair.getValue());
-                    Decimal sourceValue = new Decimal(String.valueOf(observationPair.getValue()));
-                    Decimal convertedValue = ucumService.convert(sourceValue,
-                            observationPair.getUnitCode(),
-                            mDesiredUnit);
-
-                    Log.d(TAG, "Adjusted value for new unit -> " + convertedValue);
-                    parsedStringValue = asPrecisionDecimalString(convertedValue, mDesiredAccuracy);
-
-                } catch (UcumException e) {
-                    Log.d(TAG, "Defaulting to passed in unit... \n" + e.getMessage());
-                    parsedStringValue = asPrecisionDecimalString(String.valueOf(observationPair.getValue()),
-                            mDesiredAccuracy);
-                }
-            } else {
-                Log.d(TAG, "Current unit matches desired unit.");
-                parsedStringValue = asPrecisionDecimalString(String.valueOf(observationPair.getValue()),
-                        mDesiredAccuracy);
-            }
-
-        } else {
-            Log.e(TAG, "CharcoalTextView not initialized. Displaying as plain number...");
-            parsedStringValue = String.valueOf(observationPair.getValue());
+        // The value and unit are rendered with the same model, even if a new one is swapped in meanwhile.
+        CharcoalTextView view = (mWeakReference != null) ? mWeakReference.get() : null;
+        if ((view == null) || !isCurrent(view)) {
+            Log.d(TAG, "Conversion superseded, skipping.");
+            return;
         }
-
-        final String convertedUnitString = String.format(mFormat, parsedStringValue, getHumanReadableUnitString(mDesiredUnit));
+        EssenceModel model = EssenceController.getModel(view.getEssenceFileName(), view.getContext());
+        final String convertedUnitString = mTemplate.format(
+                convertValue(model, view.getSpec(), observationPair, mDesiredUnit, mDesiredAccuracy, mRoundingMode),
+                (model != null) ? model.getHumanReadableUnitString(mDesiredUnit) : mDesiredUnit);
 
         mHandler.post(() -> {
                 Log.d(TAG, "Populating view with string: " + convertedUnitString);
                 if (mWeakReference != null && convertedUnitString != null) {
                     final CharcoalTextView textView = mWeakReference.get();
-                    if (textView != null) {
+                    if ((textView != null) && isCurrent(textView) && textView.getConversionSlot().complete(this)) {
                         Log.d(TAG, "Reference to view and String good, proceeding");
                         textView.setText(convertedUnitString);
                         Log.d(TAG, "Text set to " + convertedUnitString);
                     } else {
-                        Log.d(TAG, "No reference to text view found...");
+                        Log.d(TAG, "No reference to text view found, or conversion superseded...");
                     }
                 }
         });
     }
 
+    /**
+     * @return {@link Boolean#TRUE} if this is still the latest conversion of the passed in view, and was not
+     * cancelled.
+     */
+    private boolean isCurrent(@NonNull CharcoalTextView view) {
+        return view.getConversionSlot().isCurrent(this)
+                && !CustomThreadPoolManager.getsInstance().isCancelled(mGeneration);
+    }
+
     public void stop() {
         Thread current = Thread.currentThread();
         if (current != null) {
@@ -146,25 +162,174 @@ public class ConvertUnitThread implements Runnable {
     }
 
     /**
-     * Takes the passed in unit and returns the human readable version of the String.
+     * Converts and formats the value of the passed in {@link ObservationPair}, if that needs no real work,
+     * ie the units are the same, or the conversion plan is already resolved, and can convert primitive
+     * doubles. Units that were never interned or displayed, and plans that were never resolved, are left
+     * to the pool.
+     * <p>
+     * Used to display such values straight away, on the calling thread.
+     *
+     * @param model           {@link EssenceModel} to convert with, or null if none is resident.
+     * @param spec            {@link CharcoalSpec} of the view, or null.
+     * @param observationPair {@link ObservationPair} to convert.
+     * @param desiredUnit     UCUM {@link String} unit to convert to.
+     * @param accuracy        Number of digits to the right of the decimal point.
+     * @param roundingMode    {@link RoundingMode} to apply to dropped digits.
+     * @param template        {@link DisplayTemplate} to format the value and unit with.
+     * @return {@link String} to display, or null, if the conversion must run on the pool.
+     */
+    @Nullable
+    static String convertInline(@Nullable EssenceModel model, @Nullable CharcoalSpec spec,
+                                @NonNull ObservationPair observationPair, @NonNull String desiredUnit,
+                                int accuracy, @NonNull RoundingMode roundingMode, @NonNull DisplayTemplate template) {
+        if ((model == null) || !observationPair.hasValue() || (observationPair.getUnitCode() == null)) {
+            return null;
+        }
+        String sourceUnit = model.peekUnitCode(observationPair.getUnitCode());
+        String targetUnit = model.peekUnitCode(desiredUnit);
+        String unitDisplay = model.peekHumanReadableUnitString(desiredUnit);
+        if ((sourceUnit == null) || (targetUnit == null) || (unitDisplay == null)) {
+            return null;
+        }
+        if (sourceUnit != targetUnit) {
+            ConversionPlan plan = model.peekConversionPlan(sourceUnit, targetUnit);
+            if (!EssenceController.isFastConversionEnabled() || (plan == null) || !plan.isDoubleSafe()) {
+                return null;
+            }
+        }
+        return template.format(convertValue(model, spec, observationPair, desiredUnit, accuracy, roundingMode),
+                unitDisplay);
+    }
+
+    /**
+     * Converts the value of the passed in {@link ObservationPair} with the current {@link EssenceModel},
+     * see {@link #convertValue(EssenceModel, ObservationPair, String, int, RoundingMode)}.
+     */
+    protected static StringBuilder convertValue(ObservationPair observationPair, @NonNull String desiredUnit,
+                                                int accuracy, @NonNull RoundingMode roundingMode) {
+        return convertValue(EssenceController.getModel(), observationPair, desiredUnit, accuracy, roundingMode);
+    }
+
+    /**
+     * Converts the value of the passed in {@link ObservationPair}, without a {@link CharcoalSpec} to keep the
+     * conversion plan in, see {@link #convertValue(EssenceModel, CharcoalSpec, ObservationPair, String, int, RoundingMode)}.
+     */
+    protected static StringBuilder convertValue(@Nullable EssenceModel model, ObservationPair observationPair,
+                                                @NonNull String desiredUnit, int accuracy,
+                                                @NonNull RoundingMode roundingMode) {
+        return convertValue(model, null, observationPair, desiredUnit, accuracy, roundingMode);
+    }
+
+    /**
+     * Converts the value of the passed in {@link ObservationPair} to the desired unit, and formats it to
+     * the given accuracy. Falls back to the value in its original unit if the units cannot be converted.
+     * <p>
+     * The returned builder is reused by the calling thread, so it is only valid until the next call.
      *
-     * @param unit UCUM notation unit.
-     * @return {@link String} Human readable String for display.
+     * @param model           {@link EssenceModel} to convert with, or null if none is loaded.
+     * @param spec            {@link CharcoalSpec} of the view, which keeps the last conversion plan, or null.
+     * @param observationPair {@link ObservationPair} to convert.
+     * @param desiredUnit     UCUM {@link String} unit to convert to.
+     * @param accuracy        Number of digits to the right of the decimal point.
+     * @param roundingMode    {@link RoundingMode} to apply to dropped digits.
+     * @return {@link StringBuilder} holding the value to display.
      */
-    private String getHumanReadableUnitString(@NonNull String unit) {
-        String humanReadableUnitString;
-        UcumEssenceService ucumService = EssenceController.getUcumService();
-
-        Log.d(TAG, "Unit String to generate human readable for -> " + unit);
-        if ((ucumService.getModel() != null) && (ucumService.getModel().getUnit(unit) != null)) {
-            Log.d(TAG, "Unit is base unit, this is easy");
-            humanReadableUnitString = ucumService.getModel().getUnit(unit).getPrintSymbol();
+    protected static StringBuilder convertValue(@Nullable EssenceModel model, @Nullable CharcoalSpec spec,
+                                                ObservationPair observationPair, @NonNull String desiredUnit,
+                                                int accuracy, @NonNull RoundingMode roundingMode) {
+        StringBuilder out = sValueBuilder.get();
+        out.setLength(0);
+
+        if ((observationPair == null) || (model == null)) {
+            Log.e(TAG, "CharcoalTextView not initialized. Displaying as plain number...");
+            out.append((observationPair != null) ? observationPair.getValue() : null);
+            return out;
+        }
+
+        // Interned units for the same unit are the same instance.
+        String sourceUnit = model.internUnitCode(observationPair.getUnitCode());
+        String targetUnit = model.internUnitCode(desiredUnit);
+
+        if (appendPrimitive(model, spec, observationPair, sourceUnit, targetUnit, accuracy, roundingMode, out)) {
+            Log.d(TAG, "Converted using primitive fast path.");
+        } else if (sourceUnit != targetUnit) {
+            Log.d(TAG, "Unit for property does not equal current unit. Need to convert.");
+            try {
+                Log.d(TAG, "Value passed in -> " + observationPair.getValue());
+                Decimal sourceValue = new Decimal(String.valueOf(observationPair.getValue()));
+                Decimal convertedValue = getConversionPlan(model, spec, sourceUnit, targetUnit)
+                        .convert(sourceValue, model.getUcumService());
+
+                Log.d(TAG, "Adjusted value for new unit -> " + convertedValue);
+                PrecisionFormatter.append(convertedValue.asDecimal(), accuracy, roundingMode, out);
+
+            } catch (UcumException e) {
+                Log.d(TAG, "Defaulting to passed in unit... \n" + e.getMessage());
+                appendSourceValue(observationPair, accuracy, roundingMode, out);
+            }
         } else {
-            Log.d(TAG, "Unit is not base unit, defaulting to common display.");
-            humanReadableUnitString = ucumService.getCommonDisplay(unit);
+            Log.d(TAG, "Current unit matches desired unit.");
+            appendSourceValue(observationPair, accuracy, roundingMode, out);
         }
-        Log.d(TAG, "Human readable String -> " + humanReadableUnitString);
-        return humanReadableUnitString;
+        return out;
+    }
+
+    /**
+     * Appends the converted and formatted value of the passed in {@link ObservationPair} using primitive
+     * doubles, if {@link EssenceController#isFastConversionEnabled()}. Units must be interned through
+     * {@link EssenceModel#internUnitCode(String)} of the passed in model.
+     *
+     * @return {@link Boolean#TRUE} if the value was appended, false if the conversion needs {@link Decimal} precision.
+     */
+    private static boolean appendPrimitive(@NonNull EssenceModel model, @Nullable CharcoalSpec spec,
+                                           @NonNull ObservationPair observationPair, @NonNull String sourceUnit,
+                                           @NonNull String targetUnit, int accuracy,
+                                           @NonNull RoundingMode roundingMode, @NonNull StringBuilder out) {
+        if (!EssenceController.isFastConversionEnabled() || !observationPair.hasValue()) {
+            return false;
+        }
+
+        double value = observationPair.getDoubleValue();
+        if (sourceUnit != targetUnit) {
+            ConversionPlan plan = getConversionPlan(model, spec, sourceUnit, targetUnit);
+            if (!plan.isDoubleSafe()) {
+                return false;
+            }
+            value = plan.convert(value);
+        }
+
+        if (!PrecisionFormatter.canFormat(value, accuracy)) {
+            return false;
+        }
+        PrecisionFormatter.append(value, accuracy, roundingMode, out);
+        return true;
+    }
+
+    /**
+     * Returns the plan between the passed in interned units, through the {@link CharcoalSpec}, if any, which
+     * skips the lookup when the previous view with the same spec converted the same units.
+     */
+    private static ConversionPlan getConversionPlan(@NonNull EssenceModel model, @Nullable CharcoalSpec spec,
+                                                    @NonNull String sourceUnit, @NonNull String targetUnit) {
+        return (spec != null) ? spec.getConversionPlan(model, sourceUnit, targetUnit)
+                : model.getConversionPlan(sourceUnit, targetUnit);
+    }
+
+    /**
+     * Appends the unconverted value of the passed in {@link ObservationPair}, formatted to the given accuracy.
+     * The value is formatted from its decimal representation, primitive doubles are only used if
+     * {@link EssenceController#isFastConversionEnabled()}.
+     */
+    private static void appendSourceValue(@NonNull ObservationPair observationPair, int accuracy,
+                                          @NonNull RoundingMode roundingMode, @NonNull StringBuilder out) {
+        if (EssenceController.isFastConversionEnabled() && observationPair.hasValue()) {
+            double value = observationPair.getDoubleValue();
+            if (PrecisionFormatter.canFormat(value, accuracy)) {
+                PrecisionFormatter.append(value, accuracy, roundingMode, out);
+                return;
+            }
+        }
+        PrecisionFormatter.append(String.valueOf(observationPair.getValue()), accuracy, roundingMode, out);
     }
 
     /**
@@ -179,30 +344,15 @@ public class ConvertUnitThread implements Runnable {
     }
 
     /**
-     * The {@link Decimal#precision} variable doesn't do anything for rendering as far as I can tell.
-     * This method takes the {@link String} representation of Decimal value and provides a printable
-     * {@link String} with correct precision.
+     * Takes the {@link String} representation of Decimal value and provides a printable {@link String},
+     * truncated to the given accuracy. See {@link PrecisionFormatter#append(CharSequence, int, RoundingMode, StringBuilder)}.
      *
      * @param decimalString {@link String} representation of Decimal value.
      * @return The precision correct {@link String}.
      */
     protected static String asPrecisionDecimalString(String decimalString, int accuracy) {
-        if ((accuracy < 0) || (!decimalString.contains("."))) {
-            Log.e(TAG, "Cannot set accuracy to a negative value, or value with no decimal places." +
-                    " No adjustment done.");
-            return decimalString;
-        } else {
-            String result = decimalString;
-            if (accuracy == 0) {
-                result = result.substring(0, result.indexOf("."));
-            } else {
-                int digitsAfterDecimal = ((result.length() - 1) - result.indexOf("."));
-                if (accuracy > digitsAfterDecimal) {
-                    accuracy = digitsAfterDecimal;
-                }
-                result = result.substring(0, result.indexOf(".") + (accuracy) + 1);
-            }
-            return result;
-        }
+        StringBuilder out = new StringBuilder(decimalString.length());
+        PrecisionFormatter.append(decimalString, accuracy, RoundingMode.DOWN, out);
+        return out.toString();
     }
 }
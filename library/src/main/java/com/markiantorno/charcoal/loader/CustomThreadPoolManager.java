@@ -4,17 +4,16 @@ import android.os.Process;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.Map;
+import java.math.RoundingMode;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.markiantorno.charcoal.format.DisplayTemplate;
 import com.markiantorno.charcoal.pojo.ObservationPair;
 import com.markiantorno.charcoal.view.CharcoalTextView;
 
@@ -23,13 +22,24 @@ public class CustomThreadPoolManager {
     public static final String TAG = CustomThreadPoolManager.class.getSimpleName();
 
     private static CustomThreadPoolManager sInstance = null;
-    private static int NUMBER_OF_CORES = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final int NUMBER_OF_CORES = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
     private static final int KEEP_ALIVE_TIME = 10;
     private static final TimeUnit KEEP_ALIVE_TIME_UNIT;
 
+    private final int mParallelism;
     private final ExecutorService mExecutorService;
     private final BlockingQueue<Runnable> mTaskQueue;
-    private Map<String, Future> mRunningTaskList;
+
+    /**
+     * Incremented by {@link #cancelAllTasks()}, work submitted before that is skipped.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /**
+     * Work submitted, and not finished yet. Nothing is tracked per task, finished work simply counts itself
+     * out, so memory only grows with the queue.
+     */
+    private final AtomicInteger mInFlight = new AtomicInteger();
 
     // The class is used as a singleton
     static {
@@ -39,93 +49,160 @@ public class CustomThreadPoolManager {
 
     // Made constructor private to avoid the class being initiated from outside
     private CustomThreadPoolManager() {
+        this(NUMBER_OF_CORES);
+    }
+
+    /**
+     * Creates a pool running work on up to the given number of threads. Only the singleton is used by the
+     * library, other pools are for measuring how conversions scale.
+     *
+     * @param parallelism Maximum number of threads.
+     */
+    CustomThreadPoolManager(int parallelism) {
+        mParallelism = parallelism;
+
         // initialize a queue for the thread pool. New tasks will be added to this queue
         mTaskQueue = new LinkedBlockingQueue<Runnable>();
 
-        mRunningTaskList = new HashMap<>();
-
-        mExecutorService = new ThreadPoolExecutor(1,
-                NUMBER_OF_CORES,
+        // A pool only starts threads beyond its core size when the queue is full, which an unbounded queue
+        // never is, so all threads are core threads. They still time out when idle.
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism,
+                parallelism,
                 KEEP_ALIVE_TIME,
                 KEEP_ALIVE_TIME_UNIT,
                 mTaskQueue,
                 new BackgroundThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        mExecutorService = executor;
     }
 
     public static CustomThreadPoolManager getsInstance() {
         return sInstance;
     }
 
+    /**
+     * Converts the passed in observation for the given view on the pool. The conversion supersedes any
+     * earlier conversion of the view through its {@link ConversionSlot}, so the earlier one is skipped if it
+     * has not started yet, and its result is dropped otherwise. The view is cleared until the value arrives,
+     * unless it {@link CharcoalTextView#isKeepTextWhileConverting()}.
+     *
+     * @param callable Previous conversion for the view, or null. Returned as is, if it is still pending with
+     *                 the same observation, unit, accuracy, rounding mode and template.
+     * @return {@link ConvertUnitThread} now pending for the view.
+     * @deprecated {@link CharcoalTextView}s convert through {@link RelightScheduler#convert}, which batches
+     * conversions per frame and displays values needing no real conversion work straight away.
+     */
+    @Deprecated
     public ConvertUnitThread addUnitConversionTask(ConvertUnitThread callable,
                                                    @NonNull CharcoalTextView textView,
                                                    @NonNull String desiredUnit,
                                                    int desiredAccuracy,
-                                                   @NonNull String format,
+                                                   @NonNull RoundingMode roundingMode,
+                                                   @NonNull DisplayTemplate template,
                                                    ObservationPair obs) {
-        if (callable != null) {
-            if ((callable.getmWeakReference().get().getUUID().equals(textView.getUUID()))
-                    && (callable.getObservationPair().equals(obs))
-                    &&(callable.getmDesiredUnit().equals(desiredUnit))) {
-                Log.d(TAG, "Same threading request made. Returning thread for UUID :: " + textView.getUUID());
-                return callable;
-            } else {
-                Log.d(TAG, "Current thread not null, cancelling.");
-                cancel(callable);
-                callable.setWeakReference(new WeakReference<>(textView))
-                        .setDesiredUnit(desiredUnit)
-                        .setDesiredAccuracy(desiredAccuracy)
-                        .setFormat(format)
-                        .setObservationPair(obs);
-            }
-        } else {
-            Log.d(TAG, "Current thread is null, creating.");
-            callable = new ConvertUnitThread(textView,
-                    desiredUnit,
-                    desiredAccuracy,
-                    format,
-                    obs);
+        if ((callable != null)
+                && (callable.getmWeakReference().get() == textView)
+                && textView.getConversionSlot().isCurrent(callable)
+                && (callable.getObservationPair().equals(obs))
+                && (callable.getmDesiredUnit().equals(desiredUnit))
+                && (callable.getmDesiredAccuracy() == desiredAccuracy)
+                && (callable.getRoundingMode() == roundingMode)
+                && (callable.getTemplate() == template)) {
+            Log.d(TAG, "Same threading request made. Returning thread for UUID :: " + textView.getUUID());
+            return callable;
         }
 
-        textView.setText("");
-        addCallable(callable);
+        // A running conversion may still read the previous one, so a new one is created every time.
+        callable = new ConvertUnitThread(textView,
+                desiredUnit,
+                desiredAccuracy,
+                roundingMode,
+                template,
+                obs);
+
+        if (!textView.isKeepTextWhileConverting()) {
+            textView.setText("");
+        }
+        execute(callable);
         return callable;
     }
 
-    // Add a callable to the queue, which will be executed by the next available thread in the pool
-    private void addCallable(ConvertUnitThread callable) {
-        Future future = mExecutorService.submit(callable);
-        mRunningTaskList.put(callable.getmWeakReference().get().getUUID(), future);
+    /**
+     * @return Generation of newly created conversions, see {@link #isCancelled(int)}.
+     */
+    int getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * @param generation Generation a conversion was created in.
+     * @return {@link Boolean#TRUE} if {@link #cancelAllTasks()} was called since.
+     */
+    boolean isCancelled(int generation) {
+        return generation != mGeneration.get();
     }
 
-    public void cancel(ConvertUnitThread callable) {
-        synchronized (this) {
-            if (callable.getmWeakReference().get() != null) {
-                String viewId = callable.getmWeakReference().get().getUUID();
-                Log.d(TAG, "Cancelling thread with associated view id :: " + viewId);
-                Future existing = mRunningTaskList.get(viewId);
-                if ((existing != null) && !existing.isDone()) {
-                    existing.cancel(true);
-                    mTaskQueue.remove(existing);
-                    mRunningTaskList.remove(viewId);
+    /**
+     * @return Maximum number of threads this pool runs work on.
+     */
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Runs the passed in work on the pool, without tracking it against any view.
+     *
+     * @param runnable {@link Runnable} to run.
+     */
+    public void execute(@NonNull Runnable runnable) {
+        mInFlight.incrementAndGet();
+        try {
+            mExecutorService.execute(() -> {
+                try {
+                    runnable.run();
+                } finally {
+                    mInFlight.decrementAndGet();
                 }
-            }
+            });
+        } catch (RuntimeException e) {
+            mInFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of tasks submitted to this pool that did not finish yet, queued or running.
+     */
+    public int getInFlightCount() {
+        return mInFlight.get();
+    }
+
+    /**
+     * Cancels the passed in conversion, if it is still the latest one of its view. It is then skipped, or its
+     * result is dropped, if it is already running.
+     *
+     * @param callable {@link ConvertUnitThread} to cancel.
+     */
+    public void cancel(ConvertUnitThread callable) {
+        CharcoalTextView textView = callable.getmWeakReference().get();
+        if ((textView != null) && textView.getConversionSlot().complete(callable)) {
+            Log.d(TAG, "Cancelled thread with associated view id :: " + textView.getUUID());
         }
     }
 
     /*
-     * Remove all tasks in the queue and stop all running threads
-     * Notify UI thread about the cancellation
+     * Cancel all {@link ConvertUnitThread}s created so far. Queued ones are skipped, running ones drop their results.
+     * The queue itself is left alone, as it also holds work shared with other callers.
      */
     public void cancelAllTasks() {
-        synchronized (this) {
-            mTaskQueue.clear();
-            for (Future task : mRunningTaskList.values()) {
-                if (!task.isDone()) {
-                    task.cancel(true);
-                }
-            }
-            mRunningTaskList.clear();
-        }
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Stops the threads of a pool that is no longer used. Must not be called on the singleton.
+     */
+    void shutdown() {
+        mExecutorService.shutdown();
     }
 
     /*
@@ -133,14 +210,17 @@ public class CustomThreadPoolManager {
      * The threads created is set to background priority, so it does not compete with the UI thread.
      */
     private static class BackgroundThreadFactory implements ThreadFactory {
-        private static int sTag = 1;
+        private static final AtomicInteger sTag = new AtomicInteger(1);
 
         @Override
         public Thread newThread(@NonNull Runnable runnable) {
-            Thread thread = new Thread(runnable);
-            thread.setName("CustomThread" + sTag);
-            sTag++;
-            thread.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            // Thread#setPriority takes java priorities, on which THREAD_PRIORITY_BACKGROUND is the highest
+            // one, so the linux priority is set by the thread itself.
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            });
+            thread.setName("CustomThread" + sTag.getAndIncrement());
 
             // A exception handler is created to log the exception from threads
             thread.setUncaughtExceptionHandler((thread1, ex) -> Log.e(TAG, thread1.getName() + " encountered an error: " + ex.getMessage()));
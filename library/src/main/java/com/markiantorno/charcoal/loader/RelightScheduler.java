@@ -0,0 +1,262 @@
+package com.markiantorno.charcoal.loader;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.markiantorno.charcoal.controller.EssenceController;
+import com.markiantorno.charcoal.controller.EssenceModel;
+import com.markiantorno.charcoal.format.DisplayTemplate;
+import com.markiantorno.charcoal.pojo.ObservationPair;
+import com.markiantorno.charcoal.view.CharcoalSpec;
+import com.markiantorno.charcoal.view.CharcoalTextView;
+
+import java.lang.ref.WeakReference;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces relights of {@link CharcoalTextView}s into one batch per frame.
+ * <p>
+ * Views relit during a frame are only marked dirty. At the start of the next frame, see
+ * {@link Choreographer}, every dirty view is relit once, and their conversions are handed to the
+ * {@link CustomThreadPoolManager} as a single batch, shared by up to all of its threads. The converted values
+ * of a batch are set at the start of the frame after they are ready, all in the same callback, so a
+ * preference change on a screen of 200 values causes one layout pass instead of 200.
+ * <p>
+ * All state, except the finished batches, is only touched on the main thread.
+ */
+public final class RelightScheduler implements Choreographer.FrameCallback {
+
+    public static final String TAG = RelightScheduler.class.getSimpleName();
+
+    /**
+     * Smallest number of conversions worth handing to another thread.
+     */
+    static final int MIN_CHUNK_SIZE = 32;
+
+    private static final RelightScheduler mInstance = new RelightScheduler();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Views to relight at the start of the next frame
+    private final Set<CharcoalTextView> mDirtyViews = new LinkedHashSet<>();
+    // Conversions requested during the current frame, submitted together
+    private List<Request> mPendingRequests = new ArrayList<>();
+    // Batches converted on the pool, waiting for the next frame
+    private final ConcurrentLinkedQueue<List<Request>> mFinishedBatches = new ConcurrentLinkedQueue<>();
+
+    private boolean mFrameScheduled;
+    private boolean mInFrame;
+
+    private final Runnable mRequestFrame = this::requestFrame;
+
+    private RelightScheduler() {
+    }
+
+    public static RelightScheduler getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Marks the passed in view to be relit at the start of the next frame. Scheduling a view several times
+     * before that relights it once.
+     *
+     * @param view {@link CharcoalTextView} to relight.
+     */
+    public void schedule(@NonNull CharcoalTextView view) {
+        if (!isMainThread()) {
+            mMainHandler.post(() -> schedule(view));
+            return;
+        }
+        mDirtyViews.add(view);
+        requestFrame();
+    }
+
+    /**
+     * Queues the conversion of the passed in observation for the given view, to be converted with the other
+     * conversions of the current frame. Must be called on the main thread, normally while the view is relit
+     * by this scheduler. Replaces any conversion of the view that has not been displayed yet.
+     * <p>
+     * Values that need no real conversion work, see {@link ConvertUnitThread#convertInline}, are displayed
+     * straight away, within the current frame. Otherwise the view is cleared until the value arrives, unless
+     * it {@link CharcoalTextView#isKeepTextWhileConverting()}.
+     *
+     * @param textView     {@link CharcoalTextView} to display the converted value.
+     * @param desiredUnit  UCUM {@link String} unit to convert to.
+     * @param accuracy     Number of digits to the right of the decimal point.
+     * @param roundingMode {@link RoundingMode} to apply to dropped digits.
+     * @param template     {@link DisplayTemplate} to format the value and unit with.
+     * @param obs          {@link ObservationPair} to convert.
+     */
+    public void convert(@NonNull CharcoalTextView textView, @NonNull String desiredUnit, int accuracy,
+                        @NonNull RoundingMode roundingMode, @NonNull DisplayTemplate template,
+                        @NonNull ObservationPair obs) {
+        Request request = new Request(textView, desiredUnit, accuracy, roundingMode, template, obs);
+        textView.getConversionSlot().supersede(request);
+
+        String inline = ConvertUnitThread.convertInline(EssenceController.getModel(request.mEssenceFileName),
+                request.mSpec, obs, desiredUnit, accuracy, roundingMode, template);
+        if (inline != null) {
+            textView.getConversionSlot().complete(request);
+            textView.setText(inline);
+            return;
+        }
+
+        if (!textView.isKeepTextWhileConverting()) {
+            textView.setText("");
+        }
+        mPendingRequests.add(request);
+        requestFrame();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameScheduled = false;
+        mInFrame = true;
+        try {
+            applyFinishedBatches();
+
+            if (!mDirtyViews.isEmpty()) {
+                List<CharcoalTextView> dirtyViews = new ArrayList<>(mDirtyViews);
+                mDirtyViews.clear();
+                for (CharcoalTextView view : dirtyViews) {
+                    view.relightNow();
+                }
+            }
+
+            if (!mPendingRequests.isEmpty()) {
+                submit(mPendingRequests, CustomThreadPoolManager.getsInstance());
+                mPendingRequests = new ArrayList<>();
+            }
+        } finally {
+            mInFrame = false;
+        }
+    }
+
+    private void requestFrame() {
+        if (!mFrameScheduled && !mInFrame) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Converts a batch on the passed in pool, with one thread per {@link #MIN_CHUNK_SIZE} conversions, up to
+     * the parallelism of the pool. The converted values are displayed at the start of the next frame.
+     */
+    void submit(@NonNull List<Request> batch, @NonNull CustomThreadPoolManager pool) {
+        int threads = Math.max(1, Math.min(pool.getParallelism(), batch.size() / MIN_CHUNK_SIZE));
+        Log.d(TAG, "Submitting " + batch.size() + " conversions on " + threads + " threads.");
+        Batch conversion = new Batch(batch, threads);
+        for (int i = 0; i < threads; i++) {
+            pool.execute(conversion);
+        }
+    }
+
+    private void applyFinishedBatches() {
+        List<Request> batch;
+        while ((batch = mFinishedBatches.poll()) != null) {
+            for (Request request : batch) {
+                CharcoalTextView textView = request.mTextView.get();
+                if ((textView != null) && textView.getConversionSlot().complete(request) && (request.mResult != null)) {
+                    textView.setText(request.mResult);
+                }
+            }
+        }
+    }
+
+    /**
+     * Conversions of one frame, shared by the threads converting them. Conversions are claimed one at a
+     * time, so threads that start late take less of the work, and the last thread to finish hands the batch
+     * back to the main thread.
+     */
+    private final class Batch implements Runnable {
+
+        private final List<Request> mRequests;
+        private final AtomicInteger mNextRequest = new AtomicInteger();
+        private final AtomicInteger mRunningThreads;
+
+        Batch(@NonNull List<Request> requests, int threads) {
+            mRequests = requests;
+            mRunningThreads = new AtomicInteger(threads);
+        }
+
+        @Override
+        public void run() {
+            int index;
+            while ((index = mNextRequest.getAndIncrement()) < mRequests.size()) {
+                Request request = mRequests.get(index);
+                try {
+                    request.convert();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Conversion of " + request.mObservationPair + " failed: " + e.getMessage());
+                }
+            }
+            if (mRunningThreads.decrementAndGet() == 0) {
+                mFinishedBatches.add(mRequests);
+                mMainHandler.post(mRequestFrame);
+            }
+        }
+    }
+
+    private static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    /**
+     * Single conversion of a batch. Everything read from the view is captured on the main thread.
+     */
+    static final class Request {
+
+        private final WeakReference<CharcoalTextView> mTextView;
+        private final Context mContext;
+        private final String mEssenceFileName;
+        private final CharcoalSpec mSpec;
+        private final String mDesiredUnit;
+        private final int mAccuracy;
+        private final RoundingMode mRoundingMode;
+        private final DisplayTemplate mTemplate;
+        private final ObservationPair mObservationPair;
+
+        // Written on a pool thread, read on the main thread after the batch is handed back
+        private String mResult;
+
+        Request(@NonNull CharcoalTextView textView, @NonNull String desiredUnit, int accuracy,
+                @NonNull RoundingMode roundingMode, @NonNull DisplayTemplate template, @NonNull ObservationPair obs) {
+            mTextView = new WeakReference<>(textView);
+            mContext = textView.getContext().getApplicationContext();
+            mEssenceFileName = textView.getEssenceFileName();
+            mSpec = textView.getSpec();
+            mDesiredUnit = desiredUnit;
+            mAccuracy = accuracy;
+            mRoundingMode = roundingMode;
+            mTemplate = template;
+            mObservationPair = obs;
+        }
+
+        void convert() {
+            CharcoalTextView textView = mTextView.get();
+            if ((textView == null) || !textView.getConversionSlot().isCurrent(this)) {
+                // Superseded by a later relight of the same view.
+                return;
+            }
+            // The value and unit are rendered with the same model, even if a new one is swapped in meanwhile.
+            EssenceModel model = (mContext != null)
+                    ? EssenceController.getModel(mEssenceFileName, mContext)
+                    : EssenceController.getModel(mEssenceFileName);
+            mResult = mTemplate.format(
+                    ConvertUnitThread.convertValue(model, mSpec, mObservationPair, mDesiredUnit, mAccuracy,
+                            mRoundingMode),
+                    (model != null) ? model.getHumanReadableUnitString(mDesiredUnit) : mDesiredUnit);
+        }
+    }
+}
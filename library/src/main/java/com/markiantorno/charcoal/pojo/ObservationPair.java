@@ -19,7 +19,8 @@ public class ObservationPair {
 
     public static final String TAG = ObservationPair.class.getSimpleName();
 
-    private Double mValue;
+    private double mValue;
+    private boolean mHasValue;
     private String mUnitCode;
 
     public ObservationPair(@NonNull Observation observationDTSU2) {
@@ -33,8 +34,9 @@ public class ObservationPair {
         if (quatityDt != null) {
             if ((quatityDt.getValueElement() != null) && (quatityDt.getValueElement().getValueAsNumber() != null)) {
                 mValue = quatityDt.getValueElement().getValueAsNumber().doubleValue();
+                mHasValue = true;
             } else {
-                mValue = null;
+                mHasValue = false;
                 Log.e(TAG, "No value set for observation with id :: " + observationDSTU2.getId());
             }
             if (quatityDt.getCode() != null) {
@@ -59,8 +61,9 @@ public class ObservationPair {
         if (quatityDt != null) {
             if ((quatityDt.getValueElement() != null) && (quatityDt.getValueElement().getValueAsNumber() != null)) {
                 mValue = quatityDt.getValueElement().getValueAsNumber().doubleValue();
+                mHasValue = true;
             } else {
-                mValue = null;
+                mHasValue = false;
                 Log.e(TAG, "No value set for observation with id :: " + observationDTSU3.getId());
             }
             if (quatityDt.getCode() != null) {
@@ -75,7 +78,23 @@ public class ObservationPair {
     }
 
     public Double getValue() {
-        return mValue;
+        return mHasValue ? mValue : null;
+    }
+
+    /**
+     * Returns the value as a primitive, without boxing. Only meaningful if {@link #hasValue()}.
+     *
+     * @return The primitive value, or {@link Double#NaN} if no value is set.
+     */
+    public double getDoubleValue() {
+        return mHasValue ? mValue : Double.NaN;
+    }
+
+    /**
+     * @return {@link Boolean#TRUE} if a value is set.
+     */
+    public boolean hasValue() {
+        return mHasValue;
     }
 
     public String getUnitCode() {
@@ -106,7 +125,7 @@ public class ObservationPair {
      * conatain non null values.
      */
     public boolean isValid() {
-        return ((mValue != null) && (mUnitCode != null));
+        return (mHasValue && (mUnitCode != null));
     }
 
     @Override
@@ -116,13 +135,15 @@ public class ObservationPair {
 
         ObservationPair that = (ObservationPair) o;
 
-        if (mValue != null ? !mValue.equals(that.mValue) : that.mValue != null) return false;
+        if (mHasValue != that.mHasValue) return false;
+        if (mHasValue && (Double.doubleToLongBits(mValue) != Double.doubleToLongBits(that.mValue))) return false;
         return mUnitCode != null ? mUnitCode.equals(that.mUnitCode) : that.mUnitCode == null;
     }
 
     @Override
     public int hashCode() {
-        int result = mValue != null ? mValue.hashCode() : 0;
+        long bits = Double.doubleToLongBits(mValue);
+        int result = mHasValue ? (int) (bits ^ (bits >>> 32)) : 0;
         result = 31 * result + (mUnitCode != null ? mUnitCode.hashCode() : 0);
         return result;
     }
@@ -0,0 +1,186 @@
+package com.markiantorno.charcoal.view;
+
+import android.support.annotation.NonNull;
+
+import com.markiantorno.charcoal.annotation.Charcoal;
+import com.markiantorno.charcoal.controller.ConversionPlan;
+import com.markiantorno.charcoal.controller.EssenceModel;
+import com.markiantorno.charcoal.format.DisplayTemplate;
+
+import java.lang.ref.WeakReference;
+import java.math.RoundingMode;
+
+/**
+ * Immutable display configuration of a {@link CharcoalTextView}, ie the values of its {@link Charcoal}
+ * annotation, along with the compiled {@link DisplayTemplate}.
+ * <p>
+ * One spec is created per annotated field, and shared by every view bound from it, so a list with thousands
+ * of rows holds the configuration once. Setters on the view replace its spec with a modified copy, and never
+ * change a shared one.
+ */
+public final class CharcoalSpec {
+
+    /**
+     * Spec of views that were not bound, or configured, yet.
+     */
+    public static final CharcoalSpec EMPTY = new CharcoalSpec(null, null, 0, RoundingMode.DOWN, null, null);
+
+    private final String mProperty;
+    private final String mUnitString;
+    private final int mAccuracy;
+    private final RoundingMode mRoundingMode;
+    private final String mFormat;
+    private final DisplayTemplate mDisplayTemplate;
+
+    /**
+     * Last conversion plan resolved for views sharing this spec. Rows of a list usually convert the same
+     * units, so most conversions skip the plan lookup entirely.
+     */
+    private volatile PlanHandle mPlanHandle;
+
+    private CharcoalSpec(String property, String unitString, int accuracy, @NonNull RoundingMode roundingMode,
+                         String format, DisplayTemplate displayTemplate) {
+        mProperty = property;
+        mUnitString = unitString;
+        mAccuracy = accuracy;
+        mRoundingMode = roundingMode;
+        mFormat = format;
+        mDisplayTemplate = ((displayTemplate == null) && (format != null)) ? DisplayTemplate.compile(format) : displayTemplate;
+    }
+
+    /**
+     * Creates a spec from the values of a {@link Charcoal} annotation.
+     *
+     * @param property     See {@link Charcoal#property()}.
+     * @param unitString   See {@link Charcoal#defaultUnit()}.
+     * @param accuracy     See {@link Charcoal#accuracy()}.
+     * @param roundingMode See {@link Charcoal#rounding()}.
+     * @param format       See {@link Charcoal#format()}.
+     * @return {@link CharcoalSpec}
+     */
+    public static CharcoalSpec of(String property, String unitString, int accuracy, @NonNull RoundingMode roundingMode,
+                                  String format) {
+        return new CharcoalSpec(property, unitString, accuracy, roundingMode, format, null);
+    }
+
+    public String getProperty() {
+        return mProperty;
+    }
+
+    /**
+     * @return Default UCUM {@link String} unit, before any unit set for the property in preferences.
+     */
+    public String getUnitString() {
+        return mUnitString;
+    }
+
+    /**
+     * @return Accuracy from the annotation, or {@link Charcoal#NO_ACCURACY_SET}, in which case the accuracy
+     * set for the default unit in preferences is used, if any.
+     */
+    public int getAccuracy() {
+        return mAccuracy;
+    }
+
+    public RoundingMode getRoundingMode() {
+        return mRoundingMode;
+    }
+
+    public String getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @return Compiled {@link DisplayTemplate} for {@link #getFormat()}, or null if no format is set.
+     */
+    public DisplayTemplate getDisplayTemplate() {
+        return mDisplayTemplate;
+    }
+
+    public CharcoalSpec withProperty(String property) {
+        return new CharcoalSpec(property, mUnitString, mAccuracy, mRoundingMode, mFormat, mDisplayTemplate);
+    }
+
+    public CharcoalSpec withUnitString(String unitString) {
+        return new CharcoalSpec(mProperty, unitString, mAccuracy, mRoundingMode, mFormat, mDisplayTemplate);
+    }
+
+    public CharcoalSpec withAccuracy(int accuracy) {
+        return new CharcoalSpec(mProperty, mUnitString, accuracy, mRoundingMode, mFormat, mDisplayTemplate);
+    }
+
+    public CharcoalSpec withRoundingMode(@NonNull RoundingMode roundingMode) {
+        return new CharcoalSpec(mProperty, mUnitString, mAccuracy, roundingMode, mFormat, mDisplayTemplate);
+    }
+
+    public CharcoalSpec withFormat(String format) {
+        return new CharcoalSpec(mProperty, mUnitString, mAccuracy, mRoundingMode, format, null);
+    }
+
+    public CharcoalSpec withDisplayTemplate(DisplayTemplate displayTemplate) {
+        return new CharcoalSpec(mProperty, mUnitString, mAccuracy, mRoundingMode, mFormat, displayTemplate);
+    }
+
+    /**
+     * For proper display of values, the property, unit, accuracy and format must all be set.
+     *
+     * @return {@link Boolean#TRUE} if this spec is complete.
+     */
+    public boolean isComplete() {
+        return (((mAccuracy >= 0) || (mAccuracy == Charcoal.NO_ACCURACY_SET))
+                && (mFormat != null)
+                && (mProperty != null)
+                && (mUnitString != null));
+    }
+
+    /**
+     * Returns the {@link ConversionPlan} between the passed in units, reusing the last plan resolved for this
+     * spec if it was resolved for the same model and units.
+     *
+     * @param model      {@link EssenceModel} to resolve the plan with.
+     * @param sourceUnit UCUM {@link String} unit, interned through {@link EssenceModel#internUnitCode(String)}.
+     * @param targetUnit UCUM {@link String} unit, interned through {@link EssenceModel#internUnitCode(String)}.
+     * @return {@link ConversionPlan}
+     */
+    @NonNull
+    public ConversionPlan getConversionPlan(@NonNull EssenceModel model, @NonNull String sourceUnit,
+                                            @NonNull String targetUnit) {
+        PlanHandle handle = mPlanHandle;
+        // Interned units, and snapshots, are compared by identity.
+        if ((handle == null) || (handle.mModel.get() != model)
+                || (handle.mSourceUnit != sourceUnit) || (handle.mTargetUnit != targetUnit)) {
+            handle = new PlanHandle(model, sourceUnit, targetUnit, model.getConversionPlan(sourceUnit, targetUnit));
+            mPlanHandle = handle;
+        }
+        return handle.mPlan;
+    }
+
+    @Override
+    public String toString() {
+        return "property :: " + mProperty +
+                ", unit :: " + mUnitString +
+                ", accuracy :: " + mAccuracy +
+                ", rounding :: " + mRoundingMode +
+                ", format :: " + mFormat;
+    }
+
+    /**
+     * Resolved plan, with the model and units it was resolved for. The model is only referenced weakly, so
+     * a spec does not keep an evicted model in memory.
+     */
+    private static final class PlanHandle {
+
+        private final WeakReference<EssenceModel> mModel;
+        private final String mSourceUnit;
+        private final String mTargetUnit;
+        private final ConversionPlan mPlan;
+
+        PlanHandle(@NonNull EssenceModel model, @NonNull String sourceUnit, @NonNull String targetUnit,
+                   @NonNull ConversionPlan plan) {
+            mModel = new WeakReference<>(model);
+            mSourceUnit = sourceUnit;
+            mTargetUnit = targetUnit;
+            mPlan = plan;
+        }
+    }
+}
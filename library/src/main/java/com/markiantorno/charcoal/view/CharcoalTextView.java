@@ -9,13 +9,18 @@ import android.util.AttributeSet;
 import android.util.Log;
 
 import com.markiantorno.charcoal.annotation.Charcoal;
+import com.markiantorno.charcoal.controller.EssenceController;
 import com.markiantorno.charcoal.controller.PreferenceController;
-import com.markiantorno.charcoal.loader.ConvertUnitThread;
-import com.markiantorno.charcoal.loader.CustomThreadPoolManager;
+import com.markiantorno.charcoal.format.DisplayTemplate;
+import com.markiantorno.charcoal.loader.ConversionSlot;
+import com.markiantorno.charcoal.loader.RelightScheduler;
 import com.markiantorno.charcoal.pojo.ObservationPair;
 
 import org.hl7.fhir.dstu3.model.Observation;
 
+import java.math.RoundingMode;
+import java.util.UUID;
+
 /**
  * Extended {@link android.widget.TextView} used to display {@link Observation} with the correct units.
  * <p>
@@ -25,22 +30,39 @@ public class CharcoalTextView extends AppCompatTextView implements SharedPrefere
 
     protected final static String TAG = CharcoalTextView.class.getSimpleName();
 
-    protected final String UUID = java.util.UUID.randomUUID().toString();
+    // Created on first use, most views never need an id
+    private volatile String mUUID;
 
     public String getUUID() {
-        return UUID;
+        String uuid = mUUID;
+        if (uuid == null) {
+            synchronized (this) {
+                if (mUUID == null) {
+                    mUUID = UUID.randomUUID().toString();
+                }
+                uuid = mUUID;
+            }
+        }
+        return uuid;
     }
 
-    // Display formatting
-    protected String mUnitString;
-    protected int mAccuracy;
-    protected String mProperty;
-    protected String mFormat;
+    // Essence file the view was bound with, or null for the current model
+    protected String mEssenceFileName;
+
+    // Display formatting, shared with every view bound from the same field
+    protected CharcoalSpec mSpec = CharcoalSpec.EMPTY;
 
     // Observation to display
     protected ObservationPair mCurrentObservation;
 //    protected ConvertUnitTask mLoadTask;
-    protected ConvertUnitThread mThread;
+    // Whether a relight is queued until the essence model finishes loading
+    protected boolean mAwaitingEssence;
+    // Whether the view is registered for changes to its property and unit, ie while attached
+    protected boolean mSubscribed;
+    // Latest conversion requested for this view
+    private final ConversionSlot mConversionSlot = new ConversionSlot();
+    // Whether the previous value stays displayed while a new one is converted
+    protected boolean mKeepTextWhileConverting;
 
     // Constructors
 
@@ -58,42 +80,139 @@ public class CharcoalTextView extends AppCompatTextView implements SharedPrefere
 
     // Getters and Setters
 
+    /**
+     * @return {@link ConversionSlot} holding the latest conversion requested for this view.
+     */
+    public ConversionSlot getConversionSlot() {
+        return mConversionSlot;
+    }
+
+    public boolean isKeepTextWhileConverting() {
+        return mKeepTextWhileConverting;
+    }
+
+    /**
+     * Sets whether the previous value stays displayed while a new one is converted in the background. By
+     * default the view is cleared, so that a recycled view never shows the value of another observation.
+     * Values that need no real conversion work are always displayed straight away.
+     *
+     * @param keepTextWhileConverting {@link Boolean#TRUE} to keep the previous value.
+     */
+    public void setKeepTextWhileConverting(boolean keepTextWhileConverting) {
+        this.mKeepTextWhileConverting = keepTextWhileConverting;
+    }
+
+    public String getEssenceFileName() {
+        return mEssenceFileName;
+    }
+
+    /**
+     * Sets the essence file this view converts against. Views bound with different essence files each
+     * convert against their own model, see {@link EssenceController#getModel(String)}.
+     *
+     * @param essenceFileName {@link String} name of the essence file, or null for the current model.
+     */
+    public void setEssenceFileName(String essenceFileName) {
+        this.mEssenceFileName = essenceFileName;
+    }
+
+    /**
+     * @return Shared {@link CharcoalSpec} holding the display configuration of this view.
+     */
+    public CharcoalSpec getSpec() {
+        return mSpec;
+    }
+
+    /**
+     * Sets the display configuration of this view. Specs are immutable, so the same spec can be set on any
+     * number of views.
+     *
+     * @param spec {@link CharcoalSpec} to display with.
+     */
+    public void setSpec(@NonNull CharcoalSpec spec) {
+        CharcoalSpec previous = mSpec;
+        this.mSpec = spec;
+        if (mSubscribed && (!equal(previous.getProperty(), spec.getProperty())
+                || !equal(previous.getUnitString(), spec.getUnitString()))) {
+            subscribe();
+        }
+    }
+
     public String getUnitString() {
-        return PreferenceController.getUnitForProperty(this.getContext(), getProperty(), mUnitString);
+        return PreferenceController.getUnitForProperty(this.getContext(), getProperty(), mSpec.getUnitString());
     }
 
     public void setUnitString(String unit) {
-        this.mUnitString = unit;
+        setSpec(mSpec.withUnitString(unit));
     }
 
     public String getProperty() {
-        return mProperty;
+        return mSpec.getProperty();
     }
 
     public void setProperty(String property) {
-        this.mProperty = property;
+        setSpec(mSpec.withProperty(property));
     }
 
+    /**
+     * Returns the accuracy set in preferences for the current unit, falling back to the accuracy of the
+     * {@link CharcoalSpec}. Specs without an accuracy use the one set for their default unit, if any.
+     *
+     * @return Number of digits to the right of the decimal point.
+     */
     public int getAccuracy() {
-        return PreferenceController.getAccuracyForUnit(this.getContext(), getUnitString(), mAccuracy);
+        int accuracy = mSpec.getAccuracy();
+        if ((accuracy == Charcoal.NO_ACCURACY_SET) && (mSpec.getUnitString() != null)) {
+            accuracy = PreferenceController.getAccuracyForUnit(this.getContext(), mSpec.getUnitString(), 0);
+        }
+        return PreferenceController.getAccuracyForUnit(this.getContext(), getUnitString(), accuracy);
     }
 
     public void setAccuracy(int accuracy) {
-        this.mAccuracy = accuracy;
+        setSpec(mSpec.withAccuracy(accuracy));
+    }
+
+    public RoundingMode getRoundingMode() {
+        return mSpec.getRoundingMode();
+    }
+
+    public void setRoundingMode(@NonNull RoundingMode roundingMode) {
+        setSpec(mSpec.withRoundingMode(roundingMode));
     }
 
     public String getFormat() {
-        return mFormat;
+        return mSpec.getFormat();
     }
 
     public void setFormat(String format) {
-        this.mFormat = format;
+        setSpec(mSpec.withFormat(format));
     }
 
     /**
-     * Resets the view. Triggers a recalculation of unit, and conversion type.
+     * @return Compiled {@link DisplayTemplate} for the current format, or null if no format is set.
+     */
+    public DisplayTemplate getDisplayTemplate() {
+        return mSpec.getDisplayTemplate();
+    }
+
+    public void setDisplayTemplate(DisplayTemplate displayTemplate) {
+        setSpec(mSpec.withDisplayTemplate(displayTemplate));
+    }
+
+    /**
+     * Resets the view. Triggers a recalculation of unit, and conversion type, at the start of the next
+     * frame, see {@link RelightScheduler}. Relighting several times within a frame converts once.
      */
     public void relight() {
+        RelightScheduler.getInstance().schedule(this);
+    }
+
+    /**
+     * Recalculates the unit, and conversion type, straight away. The conversion itself is queued with the
+     * other conversions of the current frame. Called by {@link RelightScheduler}, and when the observation
+     * changes, use {@link #relight()} instead.
+     */
+    public void relightNow() {
         if ((mCurrentObservation != null) && (mCurrentObservation.isValid())) {
             setAndFormatText(mCurrentObservation);
         }
@@ -105,8 +224,7 @@ public class CharcoalTextView extends AppCompatTextView implements SharedPrefere
      * @param obs {@link Observation} to display value of.
      */
     public void setObservationDSTU3(@NonNull Observation obs) {
-        mCurrentObservation = new ObservationPair(obs);
-        relight();
+        setObservation(new ObservationPair(obs));
     }
 
     /**
@@ -115,8 +233,28 @@ public class CharcoalTextView extends AppCompatTextView implements SharedPrefere
      * @param obs {@link ca.uhn.fhir.model.dstu2.resource.Observation} to display value of.
      */
     public void setObservationDSTU2(@NonNull ca.uhn.fhir.model.dstu2.resource.Observation obs) {
-        mCurrentObservation = new ObservationPair(obs);
-        relight();
+        setObservation(new ObservationPair(obs));
+    }
+
+    /**
+     * Displays a new observation straight away, rather than at the next frame, so a recycled view never
+     * draws the value of its previous observation. Values that need no real conversion work are displayed
+     * right away, others clear the view until they are converted, unless {@link #isKeepTextWhileConverting()}.
+     */
+    private void setObservation(@NonNull ObservationPair observationPair) {
+        mCurrentObservation = observationPair;
+        if (observationPair.isValid()) {
+            relightNow();
+        } else {
+            mConversionSlot.clear();
+            clearUnlessKept();
+        }
+    }
+
+    private void clearUnlessKept() {
+        if (!mKeepTextWhileConverting) {
+            setText("");
+        }
     }
 
     private void setAndFormatText(@NonNull ObservationPair observationPair) {
@@ -125,27 +263,50 @@ public class CharcoalTextView extends AppCompatTextView implements SharedPrefere
                 "unit: " + observationPair.getUnitCode());
 
         if (charcoalTextViewInitialized()) {
-            mThread = CustomThreadPoolManager.getsInstance().addUnitConversionTask(mThread,
-                    this,
+            if (EssenceController.isEssenceLoading(getEssenceFileName())) {
+                mConversionSlot.clear();
+                clearUnlessKept();
+                awaitEssence();
+                return;
+            }
+            RelightScheduler.getInstance().convert(this,
                     getUnitString(),
                     getAccuracy(),
-                    getFormat(),
+                    getRoundingMode(),
+                    getDisplayTemplate(),
                     observationPair);
 
         } else {
             Log.e(TAG, "CharcoalTextView not initialized. Displaying as plain number...");
+            mConversionSlot.clear();
             setText(String.valueOf(observationPair.getValue()));
         }
     }
 
     /**
-     * Displays the passed in value along with given unit, as per the current {@link CharcoalTextView#mFormat}.
+     * Queues a {@link #relight()} for when the essence model loaded through
+     * {@link EssenceController#setEssenceFileAsync(String, Context)} is ready. Only the latest observation
+     * is displayed, so repeated calls while loading queue a single relight.
+     */
+    private void awaitEssence() {
+        if (!mAwaitingEssence) {
+            mAwaitingEssence = true;
+            Log.d(TAG, "Essence model still loading, queuing conversion for view " + getUUID());
+            EssenceController.addOnEssenceLoadedListener(ucumService -> {
+                mAwaitingEssence = false;
+                relight();
+            });
+        }
+    }
+
+    /**
+     * Displays the passed in value along with given unit, as per the current {@link #getDisplayTemplate()}.
      *
      * @param value Measurement value to display, as a {@link String}.
      * @param unit  UCUM unit {@link String} to use with value.
      */
     protected void displayObservationValue(String value, String unit) {
-        setText(String.format(getFormat(), value, unit));
+        setText(getDisplayTemplate().format(value, unit));
     }
 
     /**
@@ -155,21 +316,14 @@ public class CharcoalTextView extends AppCompatTextView implements SharedPrefere
      * @return {@link Boolean#TRUE} if view has been initialized properly.
      */
     protected boolean charcoalTextViewInitialized() {
-        Log.d(TAG, "Initialization check -> " +
-                "\naccuracy :: " + mAccuracy +
-                "\nformat :: " + mFormat +
-                "\nproperty :: " + mProperty +
-                "\nunit string :: " + mUnitString
-        );
-        return ((mAccuracy >= 0)
-                && (mFormat != null)
-                && (mProperty != null)
-                && (mUnitString != null));
+        Log.d(TAG, "Initialization check -> " + mSpec);
+        return mSpec.isComplete();
     }
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (key.equals(getProperty()) || key.equals(mUnitString)) {
+        // A null key reports a clear() of all preferences.
+        if ((key == null) || key.equals(getProperty()) || key.equals(mSpec.getUnitString())) {
             Log.d(TAG, "Property change triggered for property: " + key);
             relight();
         }
@@ -178,12 +332,26 @@ public class CharcoalTextView extends AppCompatTextView implements SharedPrefere
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
-        PreferenceController.registerListener(getContext(), this);
+        mSubscribed = true;
+        subscribe();
     }
 
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
-        PreferenceController.unregisterListener(getContext(), this);
+        mSubscribed = false;
+        PreferenceController.unregisterPropertyListener(this);
+    }
+
+    /**
+     * Registers for changes to the current property and unit only, so changes to other properties do not
+     * reach this view.
+     */
+    private void subscribe() {
+        PreferenceController.registerPropertyListener(getContext(), this, getProperty(), mSpec.getUnitString());
+    }
+
+    private static boolean equal(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
     }
 }
@@ -0,0 +1,6 @@
+package com.example.units;
+
+public class Durations {
+
+    public static final String UNIT = "s";
+}
@@ -0,0 +1,6 @@
+package com.example.units;
+
+public class Lengths {
+
+    public static final String UNIT = "cm";
+}
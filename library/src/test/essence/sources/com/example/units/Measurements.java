@@ -0,0 +1,10 @@
+package com.example.units;
+
+import com.markiantorno.charcoal.annotation.Charcoal;
+import com.markiantorno.charcoal.view.CharcoalTextView;
+
+public class Measurements {
+
+    @Charcoal(property = "height", defaultUnit = Lengths.UNIT)
+    CharcoalTextView height;
+}
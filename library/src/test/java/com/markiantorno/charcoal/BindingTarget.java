@@ -0,0 +1,19 @@
+package com.markiantorno.charcoal;
+
+import com.markiantorno.charcoal.annotation.Charcoal;
+import com.markiantorno.charcoal.view.CharcoalTextView;
+
+import java.math.RoundingMode;
+
+/**
+ * Bound by {@link BindingTarget_CharcoalBinding}, as if generated by the charcoal compiler.
+ */
+public class BindingTarget {
+
+    @Charcoal(property = "weight", defaultUnit = "[lb_av]", accuracy = 1, rounding = RoundingMode.HALF_UP)
+    CharcoalTextView mWeightView;
+
+    public BindingTarget(CharcoalTextView weightView) {
+        mWeightView = weightView;
+    }
+}
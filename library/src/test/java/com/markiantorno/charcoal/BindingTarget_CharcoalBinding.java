@@ -0,0 +1,13 @@
+// Generated by CharcoalProcessor from com.markiantorno.charcoal.BindingTarget. Do not edit.
+package com.markiantorno.charcoal;
+
+public final class BindingTarget_CharcoalBinding implements com.markiantorno.charcoal.CharcoalBinding<com.markiantorno.charcoal.BindingTarget> {
+
+    private final com.markiantorno.charcoal.view.CharcoalSpec mWeightViewSpec = com.markiantorno.charcoal.view.CharcoalSpec.of(
+            "weight", "[lb_av]", 1, java.math.RoundingMode.HALF_UP, "%1$s %2$s");
+
+    @Override
+    public void bind(com.markiantorno.charcoal.BindingTarget target, android.view.View source, String essenceFileName) {
+        com.markiantorno.charcoal.CharcoalBinder.bindView(target.mWeightView, essenceFileName, mWeightViewSpec);
+    }
+}
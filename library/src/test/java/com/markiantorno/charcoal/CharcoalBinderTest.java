@@ -0,0 +1,129 @@
+package com.markiantorno.charcoal;
+
+import android.app.Activity;
+
+import com.markiantorno.charcoal.annotation.Charcoal;
+import com.markiantorno.charcoal.view.CharcoalTextView;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that classes with a generated {@link CharcoalBinding} are bound through it, and that the rest of
+ * the hierarchy still falls back to reflection.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CharcoalBinderTest {
+
+    private Activity myActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+    }
+
+    @Test
+    public void bindingPlansAreCached() throws Exception {
+        Assert.assertEquals(BindingTarget_CharcoalBinding.class, CharcoalBinder.getBinding(BindingTarget.class).getClass());
+        Assert.assertNull(CharcoalBinder.getBinding(ReflectiveTarget.class));
+
+        BindingPlan plan = CharcoalBinder.getBindingPlan(ReflectiveTarget.class);
+        Assert.assertSame(plan, CharcoalBinder.getBindingPlan(ReflectiveTarget.class));
+        // The generated binding of the super class, and the reflectively bound field.
+        Assert.assertEquals(2, plan.size());
+        Assert.assertNull(plan.getEssenceFileName());
+    }
+
+    @Test
+    public void bindingPlansAreResolvedOnceAcrossThreads() throws Exception {
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<BindingPlan>> plans = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                plans.add(executor.submit(() -> {
+                    start.await();
+                    return CharcoalBinder.getBindingPlan(ConcurrentTarget.class);
+                }));
+            }
+            start.countDown();
+            BindingPlan plan = CharcoalBinder.getBindingPlan(ConcurrentTarget.class);
+            for (Future<BindingPlan> future : plans) {
+                Assert.assertSame(plan, future.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Resolving another class keeps the plans resolved before.
+        BindingPlan plan = CharcoalBinder.getBindingPlan(ConcurrentTarget.class);
+        CharcoalBinder.getBindingPlan(ReflectiveTarget.class);
+        Assert.assertSame(plan, CharcoalBinder.getBindingPlan(ConcurrentTarget.class));
+    }
+
+    @Test
+    public void generatedAndReflectiveFieldsAreBound() throws Exception {
+        CharcoalTextView weightView = new CharcoalTextView(myActivity);
+        CharcoalTextView glucoseView = new CharcoalTextView(myActivity);
+        CharcoalBinder.burn(new ReflectiveTarget(weightView, glucoseView), weightView);
+
+        Assert.assertEquals("weight", weightView.getProperty());
+        Assert.assertEquals(1, weightView.getAccuracy());
+        Assert.assertEquals(RoundingMode.HALF_UP, weightView.getRoundingMode());
+        Assert.assertEquals("%1$s %2$s", weightView.getFormat());
+
+        Assert.assertEquals("blood_glucose", glucoseView.getProperty());
+        Assert.assertEquals("mg/dL", glucoseView.getUnitString());
+        Assert.assertEquals("%1$s", glucoseView.getFormat());
+
+        // Views bound from the same field share its spec.
+        CharcoalTextView otherWeightView = new CharcoalTextView(myActivity);
+        CharcoalTextView otherGlucoseView = new CharcoalTextView(myActivity);
+        CharcoalBinder.burn(new ReflectiveTarget(otherWeightView, otherGlucoseView), otherWeightView);
+        Assert.assertSame(weightView.getSpec(), otherWeightView.getSpec());
+        Assert.assertSame(glucoseView.getSpec(), otherGlucoseView.getSpec());
+
+        // Changing one view leaves the shared spec alone.
+        otherGlucoseView.setAccuracy(3);
+        Assert.assertEquals(3, otherGlucoseView.getAccuracy());
+        Assert.assertEquals(Charcoal.NO_ACCURACY_SET, glucoseView.getSpec().getAccuracy());
+    }
+
+    /**
+     * Only resolved by {@link #bindingPlansAreResolvedOnceAcrossThreads()}.
+     */
+    static class ConcurrentTarget extends BindingTarget {
+
+        ConcurrentTarget(CharcoalTextView weightView) {
+            super(weightView);
+        }
+    }
+
+    /**
+     * Has no generated binding, unlike its super class.
+     */
+    static class ReflectiveTarget extends BindingTarget {
+
+        @Charcoal(property = "blood_glucose", defaultUnit = "mg/dL", format = "%1$s")
+        private CharcoalTextView mGlucoseView;
+
+        ReflectiveTarget(CharcoalTextView weightView, CharcoalTextView glucoseView) {
+            super(weightView);
+            mGlucoseView = glucoseView;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.markiantorno.charcoal.controller;
+
+import android.app.Activity;
+
+import org.fhir.ucum.Decimal;
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.UcumException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Checks that unit pairs are resolved once, to linear plans where UCUM converts linearly, and that other
+ * pairs keep converting the way UCUM does.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConversionPlanCacheTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+
+    private final static String[][] LINEAR_PAIRS = {
+            {"kg", "[lb_av]"},
+            {"mm[Hg]", "kPa"},
+            {"mg/dL", "g/L"},
+            {"mmol/L", "umol/L"},
+            {"[in_i]", "cm"}
+    };
+
+    private Activity myActivity;
+    private UcumEssenceService myUcumService;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        myUcumService = EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void plansAreResolvedOnce() throws Exception {
+        ConversionPlanCache cache = new ConversionPlanCache(myUcumService);
+        Assert.assertNull(cache.peekPlan("kg", "[lb_av]"));
+
+        ConversionPlan plan = cache.getPlan("kg", "[lb_av]");
+        Assert.assertSame(plan, cache.getPlan("kg", "[lb_av]"));
+        Assert.assertSame(plan, cache.peekPlan("kg", "[lb_av]"));
+        Assert.assertNotSame(plan, cache.getPlan("[lb_av]", "kg"));
+        Assert.assertEquals(2, cache.size());
+
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNull(cache.peekPlan("kg", "[lb_av]"));
+    }
+
+    @Test
+    public void linearPlansMatchUcum() throws Exception {
+        ConversionPlanCache cache = new ConversionPlanCache(myUcumService);
+        for (String[] pair : LINEAR_PAIRS) {
+            ConversionPlan plan = cache.getPlan(pair[0], pair[1]);
+            Assert.assertTrue(plan.toString(), plan.isLinear());
+            Assert.assertTrue(plan.toString(), plan.isDoubleSafe());
+            Assert.assertTrue(plan.toString(), plan.getOffset().isZero());
+
+            Assert.assertEquals(plan.toString(), 0,
+                    myUcumService.convert(Decimal.one(), pair[0], pair[1]).comparesTo(plan.getFactor()));
+
+            for (String value : new String[]{"0", "1", "72.5", "-4.2", "12345.678"}) {
+                Decimal converted = plan.convert(new Decimal(value), myUcumService);
+                Assert.assertEquals(plan + " " + value, 0,
+                        new Decimal(value).multiply(plan.getFactor()).comparesTo(converted));
+                double exact = Double.parseDouble(converted.asDecimal());
+                Assert.assertEquals(plan + " " + value, exact, plan.convert(Double.parseDouble(value)),
+                        1e-12 * Math.max(1d, Math.abs(exact)));
+
+                // UCUM keeps the significant digits of the least precise operand, ie -4.2 [in_i] is -11 cm,
+                // where the plan keeps every digit, ie -10.668 cm, so they only agree to about two digits.
+                double ucum = Double.parseDouble(
+                        myUcumService.convert(new Decimal(value), pair[0], pair[1]).asDecimal());
+                Assert.assertEquals(plan + " " + value, ucum, exact, 5e-2 * Math.max(1d, Math.abs(exact)));
+            }
+        }
+    }
+
+    @Test
+    public void specialUnitsAreNotLinear() throws Exception {
+        ConversionPlanCache cache = new ConversionPlanCache(myUcumService);
+        // UCUM cannot convert special units like Cel, and fails with runtime exceptions, which plans report as
+        // UcumExceptions, so the loaders fall back to the unconverted value.
+        ConversionPlan plan = cache.getPlan("Cel", "[degF]");
+        Assert.assertFalse(plan.isLinear());
+        Assert.assertFalse(plan.isDoubleSafe());
+        Assert.assertFalse(plan.isConvertible());
+        Assert.assertSame(plan, cache.getPlan("Cel", "[degF]"));
+        try {
+            plan.convert(new Decimal(37), myUcumService);
+            Assert.fail("Converted " + plan);
+        } catch (UcumException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void incompatibleUnitsAreNotConvertible() throws Exception {
+        ConversionPlan plan = new ConversionPlanCache(myUcumService).getPlan("mg/dL", "mmol/L");
+        Assert.assertFalse(plan.isConvertible());
+        try {
+            plan.convert(new Decimal(90), myUcumService);
+            Assert.fail("Converted " + plan);
+        } catch (UcumException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("mg/dL"));
+        }
+    }
+
+    @Test
+    public void nonLinearConversionsAreDelegated() throws Exception {
+        // A service converting to the square of the value, which no factor and offset describe.
+        UcumEssenceService squaring = new UcumEssenceService(myActivity.getAssets().open(ESSENCE_FILE)) {
+            @Override
+            public Decimal convert(Decimal value, String sourceUnit, String targetUnit) throws UcumException {
+                return value.multiply(value);
+            }
+        };
+        ConversionPlan plan = new ConversionPlanCache(squaring).getPlan("kg", "[lb_av]");
+        Assert.assertTrue(plan.isConvertible());
+        Assert.assertFalse(plan.isLinear());
+        Assert.assertFalse(plan.isDoubleSafe());
+        Assert.assertEquals(0, new Decimal(9).comparesTo(plan.convert(new Decimal(3), squaring)));
+    }
+}
@@ -0,0 +1,137 @@
+package com.markiantorno.charcoal.controller;
+
+import android.app.Activity;
+
+import com.markiantorno.charcoal.loader.CustomThreadPoolManager;
+
+import org.fhir.ucum.UcumEssenceService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that essence files loaded in the background publish the model and notify waiting listeners.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EssenceLoadTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+    private final static String TINY_ESSENCE_FILE = "tiny_essence.xml";
+
+    private Activity myActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        EssenceController.clearModel();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void asyncLoadPublishesModel() throws Exception {
+        Future<UcumEssenceService> load = EssenceController.setEssenceFileAsync(ESSENCE_FILE, myActivity);
+        Assert.assertSame(load, EssenceController.setEssenceFileAsync(ESSENCE_FILE, myActivity));
+
+        UcumEssenceService ucumService = load.get(30, TimeUnit.SECONDS);
+        Assert.assertNotNull(ucumService);
+        Assert.assertSame(ucumService, EssenceController.getUcumService());
+        Assert.assertTrue(EssenceController.isEssenceLoaded());
+        Assert.assertFalse(EssenceController.isEssenceLoading());
+    }
+
+    @Test
+    public void clearModelDropsPendingLoad() throws Exception {
+        Future<UcumEssenceService> load;
+        // Holding the lock taken while the file loads keeps the load from publishing before the clear.
+        synchronized (EssenceController.getLoadLock(ESSENCE_FILE)) {
+            load = EssenceController.setEssenceFileAsync(ESSENCE_FILE, myActivity);
+            EssenceController.clearModel();
+        }
+        Assert.assertTrue(load.isCancelled());
+        Assert.assertFalse(EssenceController.isEssenceLoading());
+
+        // The load is either never run, or dropped once it gets the lock.
+        for (int i = 0; (i < 3000) && (CustomThreadPoolManager.getsInstance().getInFlightCount() > 0); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(EssenceController.isEssenceLoaded());
+        Assert.assertNull(EssenceController.getModel(ESSENCE_FILE));
+    }
+
+    @Test
+    public void clearModelDoesNotWaitForRunningLoad() throws Exception {
+        assertNotBlockedByLoadOf(TINY_ESSENCE_FILE, () -> {
+            EssenceController.setEssenceFileAsync(ESSENCE_FILE, myActivity);
+            EssenceController.clearModel();
+            return null;
+        });
+    }
+
+    @Test
+    public void filesLoadWithoutWaitingForOtherFiles() throws Exception {
+        EssenceModel model = assertNotBlockedByLoadOf(TINY_ESSENCE_FILE,
+                () -> EssenceController.getModel(ESSENCE_FILE, myActivity));
+        Assert.assertEquals(ESSENCE_FILE, model.getFileName());
+        Assert.assertSame(model, EssenceController.getModel(ESSENCE_FILE));
+    }
+
+    /**
+     * Runs the passed in work while another thread holds the lock taken while the given file loads, like a
+     * long load of that file would, and fails if the work waits for it.
+     */
+    private static <T> T assertNotBlockedByLoadOf(String fileName, Callable<T> work) throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread loader = new Thread(() -> {
+            synchronized (EssenceController.getLoadLock(fileName)) {
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        loader.start();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+            return executor.submit(work).get(30, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+            loader.join();
+        }
+    }
+
+    @Test
+    public void listenersAreNotifiedOnMainThread() throws Exception {
+        final UcumEssenceService[] notified = new UcumEssenceService[1];
+        Future<UcumEssenceService> load = EssenceController.setEssenceFileAsync(ESSENCE_FILE, myActivity);
+        EssenceController.addOnEssenceLoadedListener(ucumService -> notified[0] = ucumService);
+
+        UcumEssenceService ucumService = load.get(30, TimeUnit.SECONDS);
+        // Listeners are posted once the load completes, which can trail the future by a moment.
+        for (int i = 0; (i < 100) && (notified[0] == null); i++) {
+            Thread.sleep(10);
+            ShadowLooper.idleMainLooper();
+        }
+        Assert.assertSame(ucumService, notified[0]);
+    }
+}
@@ -0,0 +1,116 @@
+package com.markiantorno.charcoal.controller;
+
+import android.app.Activity;
+
+import org.fhir.ucum.Decimal;
+import org.fhir.ucum.UcumException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Swaps essence models while conversions run on other threads, and checks that every conversion sees a
+ * consistent model.
+ * <p>
+ * The full test essence, and the precompiled tiny essence, both define inches in terms of meters, so
+ * every conversion between the two must give the same result, whichever model it runs against.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EssenceModelSwapTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+    private final static String TINY_ESSENCE_FILE = "tiny_essence.xml";
+
+    private final static int CONVERTING_THREADS = 8;
+    private final static int SWAPS = 50;
+    private final static int MINIMUM_CONVERSIONS = 5000;
+
+    private Activity myActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.clearUnitAliases();
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void conversionsSurviveModelSwaps() throws Exception {
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+
+        final AtomicInteger swaps = new AtomicInteger();
+        final AtomicInteger conversions = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch started = new CountDownLatch(CONVERTING_THREADS);
+        final Decimal expected = new Decimal("2.54");
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < CONVERTING_THREADS; i++) {
+            Thread thread = new Thread(() -> {
+                started.countDown();
+                try {
+                    while ((failure.get() == null)
+                            && ((swaps.get() < SWAPS) || (conversions.get() < MINIMUM_CONVERSIONS))) {
+                        EssenceModel model = EssenceController.getModel();
+                        Assert.assertNotNull(model);
+                        Assert.assertEquals(0, expected.comparesTo(model.convert(new Decimal(100), "[in_i]", "m")));
+                        Assert.assertSame(model.internUnitCode("m"), model.internUnitCode(new String("m")));
+                        Assert.assertEquals(0, expected.comparesTo(EssenceController.convert(new Decimal(100), "[in_i]", "m")));
+
+                        double[] values = {100, 200};
+                        EssenceController.convert(values, "[in_i]", "m", values);
+                        Assert.assertEquals(2.54, values[0], 1e-12);
+                        Assert.assertEquals(5.08, values[1], 1e-12);
+
+                        // Pounds are only defined in the full model.
+                        try {
+                            Decimal pounds = EssenceController.convert(new Decimal(1), "kg", "[lb_av]");
+                            Assert.assertEquals("2.2046", pounds.asDecimal().substring(0, 6));
+                        } catch (UcumException e) {
+                            // Converted against the tiny model.
+                        }
+                        conversions.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        started.await();
+        for (int i = 0; (i < SWAPS) && (failure.get() == null); i++) {
+            EssenceController.setEssenceFile((i % 2 == 0) ? TINY_ESSENCE_FILE : ESSENCE_FILE, myActivity);
+            EssenceController.addUnitAlias("inch" + i, "[in_i]");
+            swaps.incrementAndGet();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError("Conversion failed during model swaps", failure.get());
+        }
+        Assert.assertTrue(conversions.get() >= MINIMUM_CONVERSIONS);
+
+        // Aliases added between swaps are kept by whichever model is loaded last.
+        for (int i = 0; i < SWAPS; i++) {
+            Assert.assertEquals("[in_i]", EssenceController.getUnitCode("inch" + i));
+        }
+    }
+}
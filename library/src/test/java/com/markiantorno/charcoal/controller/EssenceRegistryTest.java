@@ -0,0 +1,102 @@
+package com.markiantorno.charcoal.controller;
+
+import android.app.Activity;
+
+import org.fhir.ucum.UcumEssenceService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+
+/**
+ * Checks that loaded models stay resident within the memory budget, and are evicted least recently used
+ * first.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EssenceRegistryTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+    private final static String TINY_ESSENCE_FILE = "tiny_essence.xml";
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.clearModel();
+        EssenceController.setModelMemoryBudget(EssenceRegistry.DEFAULT_MEMORY_BUDGET);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        EssenceModel first = createModel("first.xml");
+        EssenceModel second = createModel("second.xml");
+        EssenceModel third = createModel("third.xml");
+        EssenceRegistry registry = new EssenceRegistry(2 * first.getEstimatedSize());
+
+        registry.put(first);
+        registry.put(second);
+        Assert.assertSame(first, registry.get("first.xml"));
+        registry.put(third);
+
+        Assert.assertEquals(2, registry.size());
+        Assert.assertSame(first, registry.get("first.xml"));
+        Assert.assertNull(registry.get("second.xml"));
+        Assert.assertSame(third, registry.get("third.xml"));
+        Assert.assertEquals(2 * first.getEstimatedSize(), registry.getEstimatedSize());
+    }
+
+    @Test
+    public void keepsModelLargerThanBudget() throws Exception {
+        EssenceRegistry registry = new EssenceRegistry(1);
+        EssenceModel model = createModel("first.xml");
+        registry.put(model);
+        Assert.assertSame(model, registry.get("first.xml"));
+
+        registry.put(createModel("second.xml"));
+        Assert.assertEquals(1, registry.size());
+        Assert.assertNull(registry.get("first.xml"));
+    }
+
+    @Test
+    public void replacesOnlyResidentModels() throws Exception {
+        EssenceRegistry registry = new EssenceRegistry(EssenceRegistry.DEFAULT_MEMORY_BUDGET);
+        EssenceModel model = createModel("first.xml");
+        EssenceModel stale = createModel("first.xml");
+        registry.put(model);
+
+        EssenceModel updated = model.withUnitAliases(Collections.singletonMap("inch", "[in_i]"));
+        registry.replace(stale, updated);
+        Assert.assertSame(model, registry.get("first.xml"));
+        registry.replace(model, updated);
+        Assert.assertSame(updated, registry.get("first.xml"));
+        Assert.assertEquals(updated.getEstimatedSize(), registry.getEstimatedSize());
+    }
+
+    @Test
+    public void rebindingResidentModelDoesNotReload() throws Exception {
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        EssenceController.setEssenceFile(ESSENCE_FILE, activity);
+        EssenceModel model = EssenceController.getModel();
+
+        EssenceController.setEssenceFile(TINY_ESSENCE_FILE, activity);
+        Assert.assertEquals(TINY_ESSENCE_FILE, EssenceController.getModel().getFileName());
+        Assert.assertSame(model, EssenceController.getModel(ESSENCE_FILE));
+
+        EssenceController.setEssenceFile(ESSENCE_FILE, activity);
+        Assert.assertSame(model, EssenceController.getModel());
+
+        // Evicted models are loaded again when a view bound with them needs them.
+        EssenceController.setModelMemoryBudget(0);
+        Assert.assertNull(EssenceController.getModel(TINY_ESSENCE_FILE));
+        Assert.assertEquals(TINY_ESSENCE_FILE, EssenceController.getModel(TINY_ESSENCE_FILE, activity).getFileName());
+        Assert.assertSame(model, EssenceController.getModel());
+    }
+
+    private static EssenceModel createModel(String fileName) {
+        UcumEssenceService ucumService = PrecompiledEssence.load(TINY_ESSENCE_FILE);
+        Assert.assertNotNull(ucumService);
+        return new EssenceModel(fileName, ucumService, Collections.<String, String>emptyMap());
+    }
+}
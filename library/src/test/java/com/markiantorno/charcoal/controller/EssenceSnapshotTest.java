@@ -0,0 +1,117 @@
+package com.markiantorno.charcoal.controller;
+
+import android.app.Activity;
+
+import org.fhir.ucum.Decimal;
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.UcumModel;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+/**
+ * Checks that models restored from an {@link EssenceSnapshot} convert exactly like parsed ones.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EssenceSnapshotTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+
+    private final static String[][] UNIT_PAIRS = {
+            {"kg", "[lb_av]"},
+            {"mm[Hg]", "kPa"},
+            {"mg/dL", "g/L"},
+            {"[in_i]", "cm"},
+            {"h", "s"}
+    };
+
+    private final static String VALUE = "72.5";
+
+    private Activity myActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        EssenceSnapshot.getSnapshotFile(myActivity, ESSENCE_FILE).delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceSnapshot.getSnapshotFile(myActivity, ESSENCE_FILE).delete();
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void restoredModelConvertsLikeParsedModel() throws Exception {
+        byte[] essence = readAsset();
+        UcumEssenceService parsed = new UcumEssenceService(new ByteArrayInputStream(essence));
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        EssenceSnapshot.write(parsed.getModel(), EssenceSnapshot.checksum(essence), snapshot);
+        UcumModel model = EssenceSnapshot.read(new ByteArrayInputStream(snapshot.toByteArray()), EssenceSnapshot.checksum(essence));
+        UcumEssenceService restored = EssenceSnapshot.createService(model);
+
+        Assert.assertEquals(parsed.getModel().getDefinedUnits().size(), model.getDefinedUnits().size());
+        for (String[] pair : UNIT_PAIRS) {
+            Assert.assertEquals(parsed.convert(new Decimal(VALUE), pair[0], pair[1]).toString(),
+                    restored.convert(new Decimal(VALUE), pair[0], pair[1]).toString());
+            Assert.assertEquals(parsed.getCommonDisplay(pair[0]), restored.getCommonDisplay(pair[0]));
+        }
+    }
+
+    @Test
+    public void staleSnapshotIsIgnored() throws Exception {
+        byte[] essence = readAsset();
+        UcumEssenceService parsed = new UcumEssenceService(new ByteArrayInputStream(essence));
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        EssenceSnapshot.write(parsed.getModel(), EssenceSnapshot.checksum(essence), snapshot);
+        Assert.assertNull(EssenceSnapshot.read(new ByteArrayInputStream(snapshot.toByteArray()), EssenceSnapshot.checksum(essence) + 1));
+    }
+
+    @Test
+    public void loadWritesAndReusesSnapshot() throws Exception {
+        File snapshotFile = EssenceSnapshot.getSnapshotFile(myActivity, ESSENCE_FILE);
+        UcumEssenceService parsed = EssenceSnapshot.load(myActivity, ESSENCE_FILE);
+        Assert.assertTrue(snapshotFile.exists());
+
+        UcumEssenceService restored = EssenceSnapshot.load(myActivity, ESSENCE_FILE);
+        Assert.assertEquals(parsed.convert(new Decimal(VALUE), "kg", "[lb_av]").toString(),
+                restored.convert(new Decimal(VALUE), "kg", "[lb_av]").toString());
+    }
+
+    @Test
+    public void corruptSnapshotIsRebuilt() throws Exception {
+        File snapshotFile = EssenceSnapshot.getSnapshotFile(myActivity, ESSENCE_FILE);
+        snapshotFile.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(snapshotFile);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        UcumEssenceService ucumService = EssenceSnapshot.load(myActivity, ESSENCE_FILE);
+        Assert.assertNotNull(ucumService.getModel().getUnit("kg"));
+        Assert.assertTrue(snapshotFile.length() > 3);
+    }
+
+    private byte[] readAsset() throws Exception {
+        InputStream in = myActivity.getAssets().open(ESSENCE_FILE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,67 @@
+package com.markiantorno.charcoal.controller;
+
+import org.fhir.ucum.Decimal;
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.UcumModel;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Checks that models are built from generated {@link EssenceTable}s, and that assets without one fall back.
+ * The tables are generated from src/test/essence by charcoal-essence.gradle, see the library build.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PrecompiledEssenceTest {
+
+    private final static String TINY_ESSENCE_FILE = "tiny_essence.xml";
+    private final static String PRUNED_INCH_FILE = "pruned/inch.xml";
+    private final static String PRUNED_ANNOTATED_FILE = "pruned/annotated.xml";
+
+    @Test
+    public void classNamesAreSanitized() throws Exception {
+        Assert.assertEquals("com.markiantorno.charcoal.essence.EssenceTable_essence_xml",
+                PrecompiledEssence.getClassName("essence.xml"));
+        Assert.assertEquals("com.markiantorno.charcoal.essence.EssenceTable_ucum_my_essence_xml",
+                PrecompiledEssence.getClassName("ucum/my-essence.xml"));
+    }
+
+    @Test
+    public void tableBuildsModel() throws Exception {
+        UcumEssenceService ucumService = PrecompiledEssence.load(TINY_ESSENCE_FILE);
+        Assert.assertNotNull(ucumService);
+        Assert.assertEquals("1.9", ucumService.getModel().getVersion());
+        Assert.assertEquals(0, new Decimal("2.54").comparesTo(ucumService.convert(new Decimal(100), "[in_i]", "m")));
+    }
+
+    @Test
+    public void prunedTableKeepsDefinitions() throws Exception {
+        UcumModel model = PrecompiledEssence.load(PRUNED_INCH_FILE).getModel();
+        Assert.assertNotNull(model.getUnit("[in_i]"));
+        Assert.assertNotNull(model.getUnit("m"));
+        Assert.assertNull(model.getUnit("[ft_i]"));
+        Assert.assertNull(model.getUnit("s"));
+        Assert.assertTrue(model.getPrefixes().isEmpty());
+    }
+
+    @Test
+    public void prunedTableKeepsAnnotatedUnits() throws Exception {
+        // The fixture sources declare two constants named UNIT, only the one the annotation references is kept.
+        UcumEssenceService ucumService = PrecompiledEssence.load(PRUNED_ANNOTATED_FILE);
+        UcumModel model = ucumService.getModel();
+        Assert.assertNotNull(model.getUnit("m"));
+        Assert.assertEquals(1, model.getPrefixes().size());
+        Assert.assertEquals("c", model.getPrefixes().get(0).getCode());
+        Assert.assertNull(model.getUnit("s"));
+        Assert.assertNull(model.getUnit("[in_i]"));
+        Assert.assertEquals(0, new Decimal("2.54").comparesTo(ucumService.convert(new Decimal(254), "cm", "m")));
+    }
+
+    @Test
+    public void missingTableFallsBack() throws Exception {
+        Assert.assertNull(PrecompiledEssence.load("test_essence_file.xml"));
+        // Sanitizes to the same class name as the tiny table, but is a different asset.
+        Assert.assertNull(PrecompiledEssence.load("tiny-essence.xml"));
+    }
+}
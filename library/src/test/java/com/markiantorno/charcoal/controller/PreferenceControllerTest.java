@@ -11,6 +11,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Created by miantorno on 2017-10-19.
@@ -106,4 +112,75 @@ public class PreferenceControllerTest {
         Assert.assertTrue(PreferenceController.accuracySetForUnit(myActivity, GLUCOSE_UNIT));
         sharedPreferences.edit().clear().apply();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void writesFromOtherThreadsAreVisible() throws Exception {
+        Thread writer = new Thread(() -> {
+            PreferenceController.setUnitForProperty(myActivity, GLUCOSE_PROPERTY, GLUCOSE_UNIT);
+            PreferenceController.setAccuracyForUnit(myActivity, GLUCOSE_UNIT, GLUCOSE_ACCURACY);
+        });
+        writer.start();
+        writer.join();
+
+        // Listeners for writes off the main thread are only notified later, the snapshot is updated directly.
+        Assert.assertEquals(GLUCOSE_UNIT, PreferenceController.getUnitForProperty(myActivity, GLUCOSE_PROPERTY));
+        Assert.assertEquals(GLUCOSE_ACCURACY, PreferenceController.getAccuracyForUnit(myActivity, GLUCOSE_UNIT));
+
+        PreferenceController.clearAllPreferences(myActivity);
+        Assert.assertFalse(PreferenceController.unitSetForProperty(myActivity, GLUCOSE_PROPERTY));
+        Assert.assertFalse(PreferenceController.accuracySetForUnit(myActivity, GLUCOSE_UNIT));
+    }
+
+    @Test
+    public void propertyListenersOnlyHearTheirKeys() throws Exception {
+        List<String> glucoseKeys = new ArrayList<>();
+        List<String> pressureKeys = new ArrayList<>();
+        SharedPreferences.OnSharedPreferenceChangeListener glucose = (prefs, key) -> glucoseKeys.add(key);
+        SharedPreferences.OnSharedPreferenceChangeListener pressure = (prefs, key) -> pressureKeys.add(key);
+        PreferenceController.registerPropertyListener(myActivity, glucose, GLUCOSE_PROPERTY, GLUCOSE_UNIT);
+        PreferenceController.registerPropertyListener(myActivity, pressure, BLOOD_PRESSURE_PROPERTY, BLOOD_PRESSURE_UNIT);
+
+        PreferenceController.setUnitForProperty(myActivity, GLUCOSE_PROPERTY, GLUCOSE_UNIT);
+        PreferenceController.setAccuracyForUnit(myActivity, GLUCOSE_UNIT, GLUCOSE_ACCURACY);
+        ShadowLooper.idleMainLooper();
+        Assert.assertEquals(Arrays.asList(GLUCOSE_PROPERTY, GLUCOSE_UNIT), glucoseKeys);
+        Assert.assertTrue(pressureKeys.isEmpty());
+
+        PreferenceController.unregisterPropertyListener(glucose);
+        PreferenceController.setUnitForProperty(myActivity, GLUCOSE_PROPERTY, NO_UNIT);
+        ShadowLooper.idleMainLooper();
+        Assert.assertEquals(2, glucoseKeys.size());
+
+        PreferenceController.unregisterPropertyListener(pressure);
+        PreferenceController.clearAllPreferences(myActivity);
+    }
+
+    @Test
+    public void batchRelightsOnce() throws Exception {
+        List<String> glucoseKeys = new ArrayList<>();
+        List<String> pressureKeys = new ArrayList<>();
+        SharedPreferences.OnSharedPreferenceChangeListener glucose = (prefs, key) -> glucoseKeys.add(key);
+        SharedPreferences.OnSharedPreferenceChangeListener pressure = (prefs, key) -> pressureKeys.add(key);
+        PreferenceController.registerPropertyListener(myActivity, glucose, GLUCOSE_PROPERTY, GLUCOSE_UNIT);
+        PreferenceController.registerPropertyListener(myActivity, pressure, BLOOD_PRESSURE_PROPERTY, BLOOD_PRESSURE_UNIT);
+
+        PreferenceController.edit(myActivity)
+                .unit(GLUCOSE_PROPERTY, GLUCOSE_UNIT)
+                .accuracy(GLUCOSE_UNIT, GLUCOSE_ACCURACY)
+                .commit();
+        ShadowLooper.idleMainLooper();
+        Assert.assertEquals(GLUCOSE_UNIT, PreferenceController.getUnitForProperty(myActivity, GLUCOSE_PROPERTY));
+        Assert.assertEquals(GLUCOSE_ACCURACY, PreferenceController.getAccuracyForUnit(myActivity, GLUCOSE_UNIT));
+        Assert.assertEquals(Collections.singletonList(GLUCOSE_PROPERTY), glucoseKeys);
+        Assert.assertTrue(pressureKeys.isEmpty());
+
+        // Later single changes are still reported.
+        PreferenceController.setAccuracyForUnit(myActivity, GLUCOSE_UNIT, 1);
+        ShadowLooper.idleMainLooper();
+        Assert.assertEquals(Arrays.asList(GLUCOSE_PROPERTY, GLUCOSE_UNIT), glucoseKeys);
+
+        PreferenceController.unregisterPropertyListener(glucose);
+        PreferenceController.unregisterPropertyListener(pressure);
+        PreferenceController.clearAllPreferences(myActivity);
+    }
+}
@@ -0,0 +1,99 @@
+package com.markiantorno.charcoal.controller;
+
+import android.app.Activity;
+import android.support.annotation.NonNull;
+
+import org.fhir.ucum.UcumEssenceService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the display {@link String}s cached for unit codes, and that each code is resolved once.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UnitDisplayCacheTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+
+    private Activity myActivity;
+    private UcumEssenceService myUcumService;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        myUcumService = EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void displaysPrintSymbols() throws Exception {
+        UnitDisplayCache cache = createCache();
+        Assert.assertEquals("lb", cache.getHumanReadableUnitString("[lb_av]"));
+        Assert.assertEquals("in", cache.getHumanReadableUnitString("[in_i]"));
+        Assert.assertEquals("mmHg", cache.getHumanReadableUnitString("mm[Hg]"));
+        Assert.assertEquals("\u00b0C", cache.getHumanReadableUnitString("Cel"));
+        Assert.assertEquals("\u00b0F", cache.getHumanReadableUnitString("[degF]"));
+    }
+
+    @Test
+    public void displaysCommonDisplayForExpressions() throws Exception {
+        UnitDisplayCache cache = createCache();
+        Assert.assertEquals("kg", cache.getHumanReadableUnitString("kg"));
+        Assert.assertEquals("mg/dL", cache.getHumanReadableUnitString("mg/dL"));
+        Assert.assertEquals("mmol/L", cache.getHumanReadableUnitString("mmol/L"));
+        Assert.assertEquals("{beats}/min", cache.getHumanReadableUnitString("{beats}/min"));
+    }
+
+    @Test
+    public void displaysCaseInsensitiveCodesThroughIndex() throws Exception {
+        UnitDisplayCache cache = createCache();
+        Assert.assertEquals("mmHg", cache.getHumanReadableUnitString("MM[HG]"));
+        // Without an index, the code is only displayed the way UCUM would.
+        Assert.assertEquals("MMHG", new UnitDisplayCache(myUcumService, null).getHumanReadableUnitString("MM[HG]"));
+    }
+
+    @Test
+    public void displaysUnknownUnitsAsIs() throws Exception {
+        Assert.assertEquals("notaunit", createCache().getHumanReadableUnitString("notaunit"));
+    }
+
+    @Test
+    public void unitsAreResolvedOnce() throws Exception {
+        final List<String> resolved = new ArrayList<>();
+        UnitDisplayCache cache = new UnitDisplayCache(myUcumService, new UnitIndex(myUcumService.getModel(), null)) {
+            @Override
+            protected String resolve(@NonNull String unit) {
+                resolved.add(unit);
+                return super.resolve(unit);
+            }
+        };
+        Assert.assertNull(cache.peek("[lb_av]"));
+
+        String display = cache.getHumanReadableUnitString("[lb_av]");
+        Assert.assertSame(display, cache.getHumanReadableUnitString("[lb_av]"));
+        Assert.assertSame(display, cache.peek("[lb_av]"));
+        Assert.assertEquals("lb", cache.getHumanReadableUnitString("[LB_AV]"));
+        Assert.assertEquals(2, resolved.size());
+
+        cache.clear();
+        Assert.assertNull(cache.peek("[lb_av]"));
+        Assert.assertEquals(display, cache.getHumanReadableUnitString("[lb_av]"));
+        Assert.assertEquals(3, resolved.size());
+    }
+
+    private UnitDisplayCache createCache() {
+        return new UnitDisplayCache(myUcumService, new UnitIndex(myUcumService.getModel(), null));
+    }
+}
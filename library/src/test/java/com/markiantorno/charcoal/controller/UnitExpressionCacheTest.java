@@ -0,0 +1,58 @@
+package com.markiantorno.charcoal.controller;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Checks that unit expressions are interned by the unit they denote.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UnitExpressionCacheTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+
+    private Activity myActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void sameUnitIsSameInstance() throws Exception {
+        String interned = EssenceController.internUnitCode(new String("mmol/L"));
+        Assert.assertSame(interned, EssenceController.internUnitCode(new String("mmol/L")));
+        Assert.assertSame(interned, EssenceController.internUnitCode("mmol/l"));
+        Assert.assertSame(interned, EssenceController.internUnitCode("umol/mL"));
+        Assert.assertSame(EssenceController.internUnitCode("kg"), EssenceController.internUnitCode("g.10*3"));
+    }
+
+    @Test
+    public void differentUnitsAreNotMerged() throws Exception {
+        Assert.assertNotSame(EssenceController.internUnitCode("mmol/L"), EssenceController.internUnitCode("mol/L"));
+        Assert.assertNotSame(EssenceController.internUnitCode("mg/dL"), EssenceController.internUnitCode("g/L"));
+        // Arbitrary units are dropped from canonical forms, and special units have none.
+        Assert.assertNotSame(EssenceController.internUnitCode("[IU]/L"), EssenceController.internUnitCode("/L"));
+        Assert.assertNotSame(EssenceController.internUnitCode("Cel"), EssenceController.internUnitCode("K"));
+    }
+
+    @Test
+    public void unknownUnitsInternToThemselves() throws Exception {
+        String unknown = "m[mol]/l";
+        Assert.assertSame(unknown, EssenceController.internUnitCode(unknown));
+        Assert.assertSame(unknown, EssenceController.internUnitCode(new String(unknown)));
+    }
+}
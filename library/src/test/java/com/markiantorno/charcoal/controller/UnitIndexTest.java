@@ -0,0 +1,75 @@
+package com.markiantorno.charcoal.controller;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Checks that case insensitive codes and aliases resolve to canonical UCUM codes.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UnitIndexTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+
+    private Activity myActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.clearUnitAliases();
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void resolvesCaseSensitiveCodes() throws Exception {
+        Assert.assertEquals("kg", EssenceController.getUnitCode("kg"));
+        Assert.assertEquals("mm[Hg]", EssenceController.getUnitCode("mm[Hg]"));
+        Assert.assertEquals("mmol/L", EssenceController.getUnitCode("mmol/L"));
+        Assert.assertEquals("Mg", EssenceController.getUnitCode("Mg"));
+        Assert.assertEquals("[IU]/L", EssenceController.getUnitCode("[IU]/L"));
+        // Valid upper case codes keep their meaning.
+        Assert.assertEquals("S", EssenceController.getUnitCode("S"));
+        Assert.assertEquals("G", EssenceController.getUnitCode("G"));
+        Assert.assertEquals("MG", EssenceController.getUnitCode("MG"));
+        Assert.assertEquals("mg{total}/dL", EssenceController.getUnitCode("mg{total}/dL"));
+    }
+
+    @Test
+    public void resolvesCaseInsensitiveCodes() throws Exception {
+        Assert.assertEquals("mmol/L", EssenceController.getUnitCode("MMOL/L"));
+        Assert.assertEquals("mm[Hg]", EssenceController.getUnitCode("MM[HG]"));
+        Assert.assertEquals("kPa", EssenceController.getUnitCode("KPAL"));
+        Assert.assertEquals("Cel", EssenceController.getUnitCode("CEL"));
+        Assert.assertEquals("m2", EssenceController.getUnitCode("M2"));
+        // Megagauss, as 'MG' is a valid case sensitive code, unless aliased.
+        Assert.assertEquals("MG/dl", EssenceController.getUnitCode("MG/DL"));
+        Assert.assertSame(EssenceController.internUnitCode("mmol/L"), EssenceController.internUnitCode("MMOL/L"));
+    }
+
+    @Test
+    public void resolvesAliases() throws Exception {
+        Assert.assertEquals("", EssenceController.getUnitCode("m[mol]/l"));
+        EssenceController.addUnitAlias("m[mol]/l", "mmol/L");
+        Assert.assertEquals("mmol/L", EssenceController.getUnitCode("m[mol]/l"));
+        Assert.assertSame(EssenceController.internUnitCode("mmol/L"), EssenceController.internUnitCode("m[mol]/l"));
+
+        // Upper case feeds opt in to case insensitive codes through aliases.
+        EssenceController.addUnitAlias("MG", "mg");
+        Assert.assertEquals("mg/dl", EssenceController.getUnitCode("MG/DL"));
+
+        EssenceController.removeUnitAlias("m[mol]/l");
+        Assert.assertEquals("", EssenceController.getUnitCode("m[mol]/l"));
+    }
+}
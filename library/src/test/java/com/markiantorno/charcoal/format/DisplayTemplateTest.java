@@ -0,0 +1,86 @@
+package com.markiantorno.charcoal.format;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Checks {@link DisplayTemplate}s against {@link String#format(String, Object...)}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DisplayTemplateTest {
+
+    private final static String VALUE = "72.5";
+    private final static String UNIT = "kg";
+
+    private final static String[] COMPILED_FORMATS = {"%s", "%s %s", "%1$s %2$s", "%2$s: %1$s", "%1$s%2$s",
+            "%1$s %1$s", "%s %1$s %s", "Weight %s", "%1$s%%", "100%% %s", "%%%s%%", "%1$s%n%2$s", "%n", "%%",
+            "", "No value", "%2$s"};
+
+    private final static String[] FALLBACK_FORMATS = {"%S %s", "%10s %s", "%-6s|%2$s", "%.2s %s", "%1$5s %2$s",
+            "%h", "%b %s", "%1$S", "%s %s %s", "%3$s"};
+
+    @Test
+    public void compiledFormatsMatchStringFormat() throws Exception {
+        for (String format : COMPILED_FORMATS) {
+            DisplayTemplate template = DisplayTemplate.compile(format);
+            Assert.assertFalse(format, template.isFallback());
+            Assert.assertEquals(format, String.format(format, VALUE, UNIT), template.format(VALUE, UNIT));
+        }
+    }
+
+    @Test
+    public void displaysExactStrings() throws Exception {
+        Assert.assertEquals("72.5 kg", DisplayTemplate.compile("%1$s %2$s").format(VALUE, UNIT));
+        Assert.assertEquals("kg 72.5", DisplayTemplate.compile("%2$s %1$s").format(VALUE, UNIT));
+        Assert.assertEquals("72.5 kg", DisplayTemplate.compile("%s %s").format(VALUE, UNIT));
+        Assert.assertEquals("72.5% kg", DisplayTemplate.compile("%s%% %s").format(VALUE, UNIT));
+        Assert.assertEquals("72.5" + System.getProperty("line.separator") + "kg",
+                DisplayTemplate.compile("%s%n%s").format(VALUE, UNIT));
+    }
+
+    @Test
+    public void unsupportedFormatsFallBack() throws Exception {
+        for (String format : FALLBACK_FORMATS) {
+            DisplayTemplate template = DisplayTemplate.compile(format);
+            Assert.assertTrue(format, template.isFallback());
+            String expected;
+            try {
+                expected = String.format(format, VALUE, UNIT);
+            } catch (RuntimeException e) {
+                // The template fails the way String.format does.
+                try {
+                    template.format(VALUE, UNIT);
+                    Assert.fail("Formatted " + format);
+                } catch (RuntimeException templateException) {
+                    Assert.assertEquals(format, e.getClass(), templateException.getClass());
+                }
+                continue;
+            }
+            Assert.assertEquals(format, expected, template.format(VALUE, UNIT));
+        }
+    }
+
+    @Test
+    public void danglingPercentFallsBack() throws Exception {
+        Assert.assertTrue(DisplayTemplate.compile("%").isFallback());
+        Assert.assertTrue(DisplayTemplate.compile("%s %").isFallback());
+        Assert.assertTrue(DisplayTemplate.compile("%1$").isFallback());
+    }
+
+    @Test
+    public void appendsToBuilder() throws Exception {
+        StringBuilder out = new StringBuilder("Weight: ");
+        DisplayTemplate.compile("%1$s %2$s").appendTo(out, VALUE, UNIT);
+        DisplayTemplate.compile("%10s").appendTo(out.append(','), VALUE, UNIT);
+        Assert.assertEquals("Weight: 72.5 kg,      72.5", out.toString());
+    }
+
+    @Test
+    public void templatesAreCompiledOnce() throws Exception {
+        DisplayTemplate template = DisplayTemplate.compile("%1$s (%2$s)");
+        Assert.assertSame(template, DisplayTemplate.compile("%1$s (%2$s)"));
+        Assert.assertEquals("%1$s (%2$s)", template.getFormat());
+    }
+}
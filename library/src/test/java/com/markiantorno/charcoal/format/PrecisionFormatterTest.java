@@ -0,0 +1,124 @@
+package com.markiantorno.charcoal.format;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Checks {@link PrecisionFormatter} rounding against {@link BigDecimal}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PrecisionFormatterTest {
+
+    private final static RoundingMode[] MODES = {RoundingMode.DOWN, RoundingMode.HALF_UP, RoundingMode.HALF_EVEN};
+
+    private final static String[] DECIMALS = {"0", "0.5", "1.5", "2.5", "2.675", "0.125", "0.135", "9.995",
+            "99.96", "123.456", "-0.005", "-2.5", "-9.999", "1000", "0.001", "72.0"};
+
+    private final static int MAX_ACCURACY = 4;
+
+    @Test
+    public void doubleMatchesBigDecimal() throws Exception {
+        for (RoundingMode mode : MODES) {
+            for (String decimal : DECIMALS) {
+                for (int accuracy = 0; accuracy <= MAX_ACCURACY; accuracy++) {
+                    StringBuilder out = new StringBuilder();
+                    PrecisionFormatter.append(Double.parseDouble(decimal), accuracy, mode, out);
+                    Assert.assertEquals(decimal + " @" + accuracy + " " + mode,
+                            expectedForDouble(decimal, accuracy, mode), out.toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void decimalStringMatchesBigDecimal() throws Exception {
+        for (RoundingMode mode : MODES) {
+            for (String decimal : DECIMALS) {
+                for (int accuracy = 0; accuracy <= MAX_ACCURACY; accuracy++) {
+                    StringBuilder out = new StringBuilder();
+                    PrecisionFormatter.append(decimal, accuracy, mode, out);
+                    Assert.assertEquals(decimal + " @" + accuracy + " " + mode,
+                            expectedForDecimalString(decimal, accuracy, mode), out.toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void formatsWithoutTrailingZeros() throws Exception {
+        char[] buffer = new char[PrecisionFormatter.MAX_LENGTH];
+        int length = PrecisionFormatter.format(1.5, 3, RoundingMode.HALF_UP, buffer, 0);
+        Assert.assertEquals("1.5", new String(buffer, 0, length));
+        length = PrecisionFormatter.format(9.9999, 2, RoundingMode.HALF_UP, buffer, 0);
+        Assert.assertEquals("10", new String(buffer, 0, length));
+        length = PrecisionFormatter.format(-0.001, 2, RoundingMode.HALF_EVEN, buffer, 0);
+        Assert.assertEquals("0", new String(buffer, 0, length));
+    }
+
+    @Test
+    public void displaysExactStrings() throws Exception {
+        // Doubles have at most the requested digits, without trailing zeros or a negative zero.
+        Assert.assertEquals("2.68", appendDouble(2.675, 2, RoundingMode.HALF_UP));
+        Assert.assertEquals("2.67", appendDouble(2.675, 2, RoundingMode.DOWN));
+        Assert.assertEquals("0.12", appendDouble(0.125, 2, RoundingMode.HALF_EVEN));
+        Assert.assertEquals("72", appendDouble(72.0, 2, RoundingMode.HALF_UP));
+        Assert.assertEquals("0", appendDouble(-0.005, 2, RoundingMode.DOWN));
+        Assert.assertEquals("-0.01", appendDouble(-0.005, 2, RoundingMode.HALF_UP));
+
+        // Decimal strings keep the digits they were written with, up to the requested digits.
+        Assert.assertEquals("2.68", appendDecimal("2.675", 2, RoundingMode.HALF_UP));
+        Assert.assertEquals("72.0", appendDecimal("72.0", 2, RoundingMode.HALF_UP));
+        Assert.assertEquals("10.00", appendDecimal("9.995", 2, RoundingMode.HALF_UP));
+        Assert.assertEquals("-0.00", appendDecimal("-0.005", 2, RoundingMode.DOWN));
+        Assert.assertEquals("1000", appendDecimal("1000", 2, RoundingMode.DOWN));
+    }
+
+    @Test
+    public void carriesIntoNewDigit() throws Exception {
+        StringBuilder out = new StringBuilder("~");
+        PrecisionFormatter.append("-99.96", 1, RoundingMode.HALF_UP, out);
+        Assert.assertEquals("~-100.0", out.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedMode() throws Exception {
+        PrecisionFormatter.append(1.25, 1, RoundingMode.CEILING, new StringBuilder());
+    }
+
+    private static String appendDouble(double value, int accuracy, RoundingMode mode) {
+        StringBuilder out = new StringBuilder();
+        PrecisionFormatter.append(value, accuracy, mode, out);
+        return out.toString();
+    }
+
+    private static String appendDecimal(String decimal, int accuracy, RoundingMode mode) {
+        StringBuilder out = new StringBuilder();
+        PrecisionFormatter.append(decimal, accuracy, mode, out);
+        return out.toString();
+    }
+
+    /**
+     * Doubles are rounded to the accuracy, then written without trailing zeros.
+     */
+    private static String expectedForDouble(String decimal, int accuracy, RoundingMode mode) {
+        return new BigDecimal(decimal).setScale(accuracy, mode).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Decimal strings with no more digits than the accuracy are left as written, others are rounded to
+     * exactly the accuracy, keeping the sign of values rounded to zero.
+     */
+    private static String expectedForDecimalString(String decimal, int accuracy, RoundingMode mode) {
+        BigDecimal value = new BigDecimal(decimal);
+        if (value.scale() <= accuracy) {
+            return decimal;
+        }
+        BigDecimal rounded = value.setScale(accuracy, mode);
+        return ((value.signum() < 0) && (rounded.signum() == 0) ? "-" : "") + rounded.toPlainString();
+    }
+}
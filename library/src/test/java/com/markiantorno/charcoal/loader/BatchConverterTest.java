@@ -0,0 +1,132 @@
+package com.markiantorno.charcoal.loader;
+
+import android.app.Activity;
+import android.support.annotation.NonNull;
+
+import com.markiantorno.charcoal.controller.ConversionPlan;
+import com.markiantorno.charcoal.controller.EssenceController;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that {@link BatchConverter} converts every value exactly once, on the calling thread for small
+ * arrays and in chunks shared with other threads for large ones, including in place.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BatchConverterTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+
+    private final static int PARALLELISM = 4;
+
+    private Activity myActivity;
+    private ConversionPlan myPlan;
+    private CountingExecutor myExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+        myPlan = EssenceController.getConversionPlan("kg", "[lb_av]");
+        Assert.assertTrue(myPlan.toString(), myPlan.isDoubleSafe());
+        myExecutor = new CountingExecutor(PARALLELISM);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        myExecutor.shutdown();
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void smallArraysConvertOnCallingThread() throws Exception {
+        double[] values = createValues(BatchConverter.PARALLEL_THRESHOLD - 1);
+        double[] out = new double[values.length];
+        BatchConverter.convert(myPlan, values, out, myExecutor, PARALLELISM);
+
+        Assert.assertEquals(0, myExecutor.mExecuted.get());
+        assertConverted(createValues(values.length), out);
+    }
+
+    @Test
+    public void largeArraysConvertInParallel() throws Exception {
+        // Not a multiple of the chunk size, so the last chunk is shorter.
+        double[] values = createValues((BatchConverter.PARALLEL_THRESHOLD * 2) + 3);
+        double[] out = new double[values.length + 1];
+        out[values.length] = -1;
+        BatchConverter.convert(myPlan, values, out, myExecutor, PARALLELISM);
+
+        int chunks = Math.min(PARALLELISM + 1, values.length / BatchConverter.MIN_CHUNK_SIZE);
+        Assert.assertEquals(chunks - 1, myExecutor.mExecuted.get());
+        assertConverted(createValues(values.length), out);
+        Assert.assertEquals(-1, out[values.length], 0);
+        // The values themselves are untouched.
+        Assert.assertArrayEquals(createValues(values.length), values, 0);
+    }
+
+    @Test
+    public void largeArraysConvertInPlace() throws Exception {
+        double[] values = createValues(BatchConverter.PARALLEL_THRESHOLD * 2);
+        BatchConverter.convert(myPlan, values, values, myExecutor, PARALLELISM);
+
+        Assert.assertTrue(myExecutor.mExecuted.get() > 0);
+        assertConverted(createValues(values.length), values);
+    }
+
+    @Test
+    public void singleThreadConvertsOnCallingThread() throws Exception {
+        double[] values = createValues(BatchConverter.PARALLEL_THRESHOLD * 2);
+        BatchConverter.convert(myPlan, values, values, myExecutor, 1);
+
+        Assert.assertEquals(0, myExecutor.mExecuted.get());
+        assertConverted(createValues(values.length), values);
+    }
+
+    private void assertConverted(double[] values, double[] out) {
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals("Value " + i, myPlan.convert(values[i]), out[i], 0);
+        }
+    }
+
+    private static double[] createValues(int length) {
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = (i % 1000) + 0.25;
+        }
+        return values;
+    }
+
+    /**
+     * Executor counting the work handed to it, ie the chunks not converted by the calling thread.
+     */
+    private static class CountingExecutor implements Executor {
+
+        private final ExecutorService mExecutorService;
+        private final AtomicInteger mExecuted = new AtomicInteger();
+
+        CountingExecutor(int threads) {
+            mExecutorService = Executors.newFixedThreadPool(threads);
+        }
+
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            mExecuted.incrementAndGet();
+            mExecutorService.execute(runnable);
+        }
+
+        void shutdown() {
+            mExecutorService.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.markiantorno.charcoal.loader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that later conversions supersede earlier ones, and only the latest one is displayed.
+ */
+public class ConversionSlotTest {
+
+    @Test
+    public void laterWorkSupersedesEarlierWork() throws Exception {
+        ConversionSlot slot = new ConversionSlot();
+        Object first = new Object();
+        Object second = new Object();
+
+        slot.supersede(first);
+        Assert.assertTrue(slot.isCurrent(first));
+        slot.supersede(second);
+        Assert.assertFalse(slot.isCurrent(first));
+        Assert.assertTrue(slot.isCurrent(second));
+
+        // Superseded work is never completed, the latest only once.
+        Assert.assertFalse(slot.complete(first));
+        Assert.assertTrue(slot.complete(second));
+        Assert.assertFalse(slot.complete(second));
+        Assert.assertFalse(slot.isCurrent(second));
+    }
+
+    @Test
+    public void clearingSupersedesEarlierWork() throws Exception {
+        ConversionSlot slot = new ConversionSlot();
+        Object work = new Object();
+
+        slot.supersede(work);
+        slot.clear();
+        Assert.assertFalse(slot.isCurrent(work));
+        Assert.assertFalse(slot.complete(work));
+    }
+
+    @Test
+    public void onlyOneOfManyRequestsIsCompleted() throws Exception {
+        ConversionSlot slot = new ConversionSlot();
+        Object[] work = new Object[1000];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = offset; i < work.length; i += threads.length) {
+                    work[i] = new Object();
+                    slot.supersede(work[i]);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int completed = 0;
+        for (Object w : work) {
+            if (slot.complete(w)) {
+                completed++;
+            }
+        }
+        Assert.assertEquals(1, completed);
+    }
+}
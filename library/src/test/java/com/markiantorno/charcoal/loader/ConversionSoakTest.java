@@ -0,0 +1,105 @@
+package com.markiantorno.charcoal.loader;
+
+import android.app.Activity;
+
+import com.markiantorno.charcoal.controller.EssenceController;
+import com.markiantorno.charcoal.view.CharcoalTextView;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.math.RoundingMode;
+
+/**
+ * Converts values for hundreds of thousands of short lived views, as a long running session would, through
+ * {@link CharcoalTextView#setObservationDSTU3(Observation)} and the {@link RelightScheduler}, and checks that
+ * nothing is kept once the conversions are done.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConversionSoakTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+
+    private final static int ROUNDS = 20;
+    private final static int VIEWS_PER_ROUND = 10000;
+
+    /**
+     * Allowed growth of the heap between the first and last round, well below what tracking every view
+     * would take.
+     */
+    private final static long MAX_HEAP_GROWTH = 8 * 1024 * 1024;
+
+    private Activity myActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void trackingStaysProportionalToInFlightWork() throws Exception {
+        CustomThreadPoolManager pool = CustomThreadPoolManager.getsInstance();
+        Observation observation = new Observation().setValue(new Quantity().setCode("kg").setValue(72.5));
+
+        long baseline = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            CharcoalTextView view = null;
+            for (int i = 0; i < VIEWS_PER_ROUND; i++) {
+                view = new CharcoalTextView(myActivity);
+                view.setUnitString("[lb_av]");
+                view.setProperty("weight");
+                view.setAccuracy(2);
+                view.setRoundingMode(RoundingMode.HALF_UP);
+                view.setFormat("%1$s %2$s");
+                view.setObservationDSTU3(observation);
+            }
+            // Submits the conversions of the round as one batch, then displays them.
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            awaitIdle(pool);
+            Assert.assertNotEquals("", view.getText().toString());
+            view = null;
+            if (round == 0) {
+                baseline = usedHeap();
+            }
+        }
+
+        Assert.assertEquals(0, pool.getInFlightCount());
+        long growth = usedHeap() - baseline;
+        Assert.assertTrue("Heap grew by " + growth + " bytes", growth < MAX_HEAP_GROWTH);
+    }
+
+    private static void awaitIdle(CustomThreadPoolManager pool) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (pool.getInFlightCount() > 0) {
+            Assert.assertTrue("Conversions did not finish", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        // Logged lines are kept by robolectric, not by the library.
+        ShadowLog.reset();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,67 @@
+package com.markiantorno.charcoal.loader;
+
+import android.app.Activity;
+
+import com.markiantorno.charcoal.controller.EssenceController;
+import com.markiantorno.charcoal.pojo.ObservationPair;
+import com.markiantorno.charcoal.view.CharcoalTextView;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.math.RoundingMode;
+
+/**
+ * Checks that {@link ConvertUnitTask} rounds with the passed in {@link RoundingMode}, and displays the unit of
+ * the model it converted with.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConvertUnitTaskTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+
+    private Activity myActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void roundsWithPassedInMode() throws Exception {
+        // 72.57 kg is 159.989... lb
+        ObservationPair obs = createPair(72.57, "kg");
+        CharcoalTextView textView = new CharcoalTextView(myActivity);
+
+        Assert.assertEquals("160.0 lb",
+                new ConvertUnitTask(textView, "[lb_av]", 1, RoundingMode.HALF_UP, "%1$s %2$s").doInBackground(obs));
+        Assert.assertEquals("159.9 lb",
+                new ConvertUnitTask(textView, "[lb_av]", 1, RoundingMode.DOWN, "%1$s %2$s").doInBackground(obs));
+    }
+
+    @Test
+    public void roundsWithViewModeByDefault() throws Exception {
+        CharcoalTextView textView = new CharcoalTextView(myActivity);
+        textView.setRoundingMode(RoundingMode.HALF_UP);
+
+        Assert.assertEquals("160.0 lb",
+                new ConvertUnitTask(textView, "[lb_av]", 1, "%1$s %2$s").doInBackground(createPair(72.57, "kg")));
+    }
+
+    private static ObservationPair createPair(double value, String unit) {
+        return new ObservationPair(new Observation().setValue(new Quantity().setCode(unit).setValue(value)));
+    }
+}
@@ -0,0 +1,200 @@
+package com.markiantorno.charcoal.loader;
+
+import android.app.Activity;
+
+import com.markiantorno.charcoal.controller.EssenceController;
+import com.markiantorno.charcoal.controller.EssenceModel;
+import com.markiantorno.charcoal.format.DisplayTemplate;
+import com.markiantorno.charcoal.format.PrecisionFormatter;
+import com.markiantorno.charcoal.pojo.ObservationPair;
+
+import org.fhir.ucum.Decimal;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.math.RoundingMode;
+
+/**
+ * Checks the primitive double conversion mode against the {@link Decimal} conversion path.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PrimitiveConversionTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+
+    private final static String[][] UNIT_PAIRS = {
+            {"kg", "[lb_av]"},
+            {"[lb_av]", "kg"},
+            {"mm[Hg]", "kPa"},
+            {"kPa", "mm[Hg]"},
+            {"[in_i]", "cm"},
+            {"cm", "[in_i]"},
+            {"mg/dL", "g/L"},
+            {"mmol/L", "umol/L"},
+            {"mmol/L", "mmol/L"}
+    };
+
+    private final static double[] VALUES = {0, 0.1, 0.29, 1, 3.7, 5.5, 10, 72.0, 75, 98.6, 123.456, 1000, 2500.25, -4.2};
+
+    private final static int MAX_ACCURACY = 4;
+
+    private Activity myActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+        EssenceController.setFastConversionEnabled(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.setFastConversionEnabled(false);
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void primitiveMatchesDecimal() throws Exception {
+        for (String[] pair : UNIT_PAIRS) {
+            for (double value : VALUES) {
+                ObservationPair observationPair = createPair(value, pair[0]);
+                for (int accuracy = 0; accuracy <= MAX_ACCURACY; accuracy++) {
+                    String primitive = convert(observationPair, pair[1], accuracy);
+                    String decimal = convertDecimal(value, pair[0], pair[1], accuracy);
+                    String message = value + " " + pair[0] + " -> " + pair[1] + " @" + accuracy
+                            + ", primitive: " + primitive + ", decimal: " + decimal;
+
+                    Assert.assertEquals(message, withoutTrailingZeros(decimal), primitive);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void displaysWithoutTrailingZeros() throws Exception {
+        Assert.assertEquals("158.73", convert(createPair(72.0, "kg"), "[lb_av]", 2));
+        Assert.assertEquals("2.2", convert(createPair(1, "kg"), "[lb_av]", 2));
+        Assert.assertEquals("75", convert(createPair(10, "kPa"), "mm[Hg]", 2));
+        Assert.assertEquals("72", convert(createPair(72.0, "mmol/L"), "mmol/L", 2));
+        Assert.assertEquals("0", convert(createPair(-4.2, "mg/dL"), "g/L", 1));
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        EssenceController.setFastConversionEnabled(false);
+        // The Decimal path keeps the trailing zeros of the converted value.
+        Assert.assertEquals(convertDecimal(1, "kg", "[lb_av]", 2), convert(createPair(1, "kg"), "[lb_av]", 2));
+    }
+
+    @Test
+    public void sourceValueFormattedFromDecimalByDefault() throws Exception {
+        EssenceController.setFastConversionEnabled(false);
+        EssenceModel model = EssenceController.getModel();
+        for (double value : VALUES) {
+            ObservationPair observationPair = createPair(value, "kg");
+            for (int accuracy = 0; accuracy <= MAX_ACCURACY; accuracy++) {
+                Assert.assertEquals(value + " kg @" + accuracy,
+                        ConvertUnitThread.asPrecisionDecimalString(String.valueOf(observationPair.getValue()), accuracy),
+                        ConvertUnitThread.convertValue(model, observationPair, "kg", accuracy, RoundingMode.DOWN).toString());
+            }
+        }
+    }
+
+    @Test
+    public void fallsBackToDecimal() throws Exception {
+        // Not convertible, so the value is displayed in its own unit.
+        Assert.assertEquals("5.5", convert(createPair(5.5, "mg/dL"), "mmol/L", 2));
+        // More significant digits than a double can hold.
+        Assert.assertEquals(convertDecimal(1e17, "kg", "[lb_av]", 2), convert(createPair(1e17, "kg"), "[lb_av]", 2));
+        Assert.assertEquals(convertDecimal(1e12, "kg", "kg", 8), convert(createPair(1e12, "kg"), "kg", 8));
+    }
+
+    @Test
+    public void formatTruncates() throws Exception {
+        Assert.assertEquals("3.14", PrecisionFormatter.format(3.14159, 2));
+        Assert.assertEquals("3", PrecisionFormatter.format(3.99, 0));
+        Assert.assertEquals("314", PrecisionFormatter.format(314, 2));
+        Assert.assertEquals("0.29", PrecisionFormatter.format(0.29, 2));
+        Assert.assertEquals("0.05", PrecisionFormatter.format(0.05, 3));
+        Assert.assertEquals("-1.5", PrecisionFormatter.format(-1.5, 2));
+        Assert.assertEquals("0", PrecisionFormatter.format(-0.004, 2));
+        Assert.assertFalse(PrecisionFormatter.canFormat(Double.NaN, 2));
+        Assert.assertFalse(PrecisionFormatter.canFormat(1.5, -1));
+    }
+
+    @Test
+    public void inlineOnlyWithoutRealWork() throws Exception {
+        EssenceModel model = EssenceController.getModel();
+        DisplayTemplate template = DisplayTemplate.compile("%1$s");
+        ObservationPair kilograms = createPair(72.5, "kg");
+
+        // Units that were never parsed are left to the pool.
+        Assert.assertNull(ConvertUnitThread.convertInline(model, null, kilograms, "kg", 1, RoundingMode.DOWN, template));
+        model.internUnitCode("kg");
+        // As are units that were never displayed.
+        Assert.assertNull(ConvertUnitThread.convertInline(model, null, kilograms, "kg", 1, RoundingMode.DOWN, template));
+        model.getHumanReadableUnitString("kg");
+        Assert.assertEquals("72.5", ConvertUnitThread.convertInline(model, null, kilograms, "kg", 1, RoundingMode.DOWN, template));
+
+        // And plans that were never resolved.
+        model.internUnitCode("[lb_av]");
+        model.getHumanReadableUnitString("[lb_av]");
+        Assert.assertNull(ConvertUnitThread.convertInline(model, null, kilograms, "[lb_av]", 1, RoundingMode.DOWN, template));
+        model.getConversionPlan("kg", "[lb_av]");
+        Assert.assertEquals(convert(kilograms, "[lb_av]", 1),
+                ConvertUnitThread.convertInline(model, null, kilograms, "[lb_av]", 1, RoundingMode.DOWN, template));
+
+        // Decimal conversions always run on the pool.
+        EssenceController.setFastConversionEnabled(false);
+        Assert.assertNull(ConvertUnitThread.convertInline(model, null, kilograms, "[lb_av]", 1, RoundingMode.DOWN, template));
+    }
+
+    /**
+     * Displayed value of the {@link Decimal} path in primitive mode, which writes no trailing zeros, and no
+     * sign for values rounded to zero.
+     */
+    private static String withoutTrailingZeros(String decimal) {
+        String stripped = decimal;
+        if (stripped.indexOf('.') >= 0) {
+            int end = stripped.length();
+            while (stripped.charAt(end - 1) == '0') {
+                end--;
+            }
+            if (stripped.charAt(end - 1) == '.') {
+                end--;
+            }
+            stripped = stripped.substring(0, end);
+        }
+        return stripped.equals("-0") ? "0" : stripped;
+    }
+
+    private static ObservationPair createPair(double value, String unit) {
+        return new ObservationPair(new Observation().setValue(new Quantity().setCode(unit).setValue(value)));
+    }
+
+    /**
+     * Converts the value the way the loaders do, with the current model and truncating dropped digits.
+     */
+    private static String convert(ObservationPair observationPair, String desiredUnit, int accuracy) {
+        return ConvertUnitThread.convertValue(EssenceController.getModel(), null, observationPair, desiredUnit,
+                accuracy, RoundingMode.DOWN).toString();
+    }
+
+    /**
+     * Converts the value the way the loaders do without the primitive mode.
+     */
+    private static String convertDecimal(double value, String sourceUnit, String targetUnit, int accuracy) throws Exception {
+        if (sourceUnit.equals(targetUnit)) {
+            return ConvertUnitThread.asPrecisionDecimalString(String.valueOf(value), accuracy);
+        }
+        Decimal converted = EssenceController.convert(new Decimal(String.valueOf(value)), sourceUnit, targetUnit);
+        return ConvertUnitThread.asPrecisionDecimalString(converted, accuracy);
+    }
+}
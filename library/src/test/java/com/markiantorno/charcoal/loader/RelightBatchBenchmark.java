@@ -0,0 +1,115 @@
+package com.markiantorno.charcoal.loader;
+
+import android.app.Activity;
+
+import com.markiantorno.charcoal.controller.EssenceController;
+import com.markiantorno.charcoal.format.DisplayTemplate;
+import com.markiantorno.charcoal.pojo.ObservationPair;
+import com.markiantorno.charcoal.view.CharcoalTextView;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how the throughput of a {@link RelightScheduler} batch scales with the number of threads of the
+ * {@link CustomThreadPoolManager}. The measurements depend on the machine, so they are only printed, and the
+ * benchmark is only run on request.
+ */
+@Ignore("Benchmark, run manually")
+@RunWith(RobolectricTestRunner.class)
+public class RelightBatchBenchmark {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+
+    private final static int CONVERSIONS = 40000;
+    private final static int RUNS = 3;
+
+    private Activity myActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void batchThroughputScalesWithCores() throws Exception {
+        DisplayTemplate template = DisplayTemplate.compile("%1$s %2$s");
+        List<CharcoalTextView> views = new ArrayList<>(CONVERSIONS);
+        List<ObservationPair> observations = new ArrayList<>(CONVERSIONS);
+        for (int i = 0; i < CONVERSIONS; i++) {
+            views.add(new CharcoalTextView(myActivity));
+            observations.add(new ObservationPair(
+                    new Observation().setValue(new Quantity().setCode("kg").setValue(i % 1000 + 0.25))));
+        }
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        double singleThreaded = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            CustomThreadPoolManager pool = new CustomThreadPoolManager(threads);
+            try {
+                measure(pool, views, observations, template); // Warm up
+                long best = Long.MAX_VALUE;
+                for (int run = 0; run < RUNS; run++) {
+                    best = Math.min(best, measure(pool, views, observations, template));
+                }
+                double perMillisecond = CONVERSIONS / (best / 1e6);
+                if (threads == 1) {
+                    singleThreaded = perMillisecond;
+                }
+                System.out.println(String.format("%2d threads: %8.1f conversions/ms, %.2fx",
+                        threads, perMillisecond, perMillisecond / singleThreaded));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Converts one batch of a value for every view, the way a frame of relights would.
+     *
+     * @return Elapsed nanoseconds, until the batch is handed back to the main thread.
+     */
+    private static long measure(CustomThreadPoolManager pool, List<CharcoalTextView> views,
+                                List<ObservationPair> observations, DisplayTemplate template) throws InterruptedException {
+        List<RelightScheduler.Request> batch = new ArrayList<>(views.size());
+        for (int i = 0; i < views.size(); i++) {
+            CharcoalTextView view = views.get(i);
+            RelightScheduler.Request request = new RelightScheduler.Request(view, "[lb_av]", 2,
+                    RoundingMode.HALF_UP, template, observations.get(i));
+            view.getConversionSlot().supersede(request);
+            batch.add(request);
+        }
+
+        long start = System.nanoTime();
+        RelightScheduler.getInstance().submit(batch, pool);
+        long deadline = System.currentTimeMillis() + 120000;
+        while (pool.getInFlightCount() > 0) {
+            Assert.assertTrue("Batch did not finish", System.currentTimeMillis() < deadline);
+            Thread.yield();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Displays the batch, outside of the measurement.
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        return elapsed;
+    }
+}
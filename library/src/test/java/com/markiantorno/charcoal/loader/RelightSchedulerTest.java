@@ -0,0 +1,234 @@
+package com.markiantorno.charcoal.loader;
+
+import android.app.Activity;
+import android.content.Context;
+
+import com.markiantorno.charcoal.controller.EssenceController;
+import com.markiantorno.charcoal.controller.EssenceModel;
+import com.markiantorno.charcoal.format.DisplayTemplate;
+import com.markiantorno.charcoal.pojo.ObservationPair;
+import com.markiantorno.charcoal.view.CharcoalTextView;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that relights requested within a frame are coalesced, and that their conversions are submitted and
+ * displayed together.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RelightSchedulerTest {
+
+    private final static String ESSENCE_FILE = "test_essence_file.xml";
+
+    private final static int VIEWS = 50;
+    private final static String TEMPLATE = "%1$s %2$s";
+
+    private Activity myActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        myActivity = Robolectric.setupActivity(Activity.class);
+        ShadowLog.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EssenceController.clearModel();
+    }
+
+    @Test
+    public void relightsWithinAFrameAreCoalesced() throws Exception {
+        CountingTextView first = new CountingTextView(myActivity);
+        CountingTextView second = new CountingTextView(myActivity);
+
+        first.relight();
+        first.relight();
+        second.relight();
+        first.relight();
+        Assert.assertEquals(0, first.mRelights);
+
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        Assert.assertEquals(1, first.mRelights);
+        Assert.assertEquals(1, second.mRelights);
+
+        second.relight();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        Assert.assertEquals(1, first.mRelights);
+        Assert.assertEquals(2, second.mRelights);
+    }
+
+    @Test
+    public void inlineValuesAreNeverBlanked() throws Exception {
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+        EssenceModel model = EssenceController.getModel();
+        model.internUnitCode("kg");
+        String unitDisplay = model.getHumanReadableUnitString("kg");
+
+        RecordingTextView view = new RecordingTextView(myActivity);
+        view.setUnitString("kg");
+        view.setProperty("weight");
+        view.setAccuracy(1);
+        view.setFormat("%1$s %2$s");
+
+        view.setObservationDSTU3(createObservation(72.5, "kg"));
+        view.setObservationDSTU3(createObservation(80, "kg"));
+        view.relight();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        List<String> expected = new ArrayList<>();
+        expected.add("72.5 " + unitDisplay);
+        expected.add("80.0 " + unitDisplay);
+        expected.add("80.0 " + unitDisplay);
+        Assert.assertEquals(expected, view.mTexts);
+    }
+
+    @Test
+    public void conversionsOfAFrameAreSubmittedAsOneBatch() throws Exception {
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+        for (int i = 0; i < VIEWS; i++) {
+            createPoundsView().setObservationDSTU3(createObservation(i, "kg"));
+        }
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        awaitPool();
+
+        int batches = 0;
+        for (ShadowLog.LogItem item : ShadowLog.getLogsForTag(RelightScheduler.TAG)) {
+            if (item.msg.startsWith("Submitting ")) {
+                Assert.assertTrue(item.msg, item.msg.startsWith("Submitting " + VIEWS + " conversions"));
+                batches++;
+            }
+        }
+        Assert.assertEquals(1, batches);
+    }
+
+    @Test
+    public void resultsOfABatchAreAppliedInOneCallback() throws Exception {
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+        List<RecordingTextView> views = new ArrayList<>();
+        for (int i = 0; i < VIEWS; i++) {
+            RecordingTextView view = createPoundsView();
+            view.setObservationDSTU3(createObservation(i, "kg"));
+            views.add(view);
+        }
+
+        long deadline = System.currentTimeMillis() + 30000;
+        int displayed = 0;
+        while (displayed < VIEWS) {
+            Assert.assertTrue("Conversions were not displayed", System.currentTimeMillis() < deadline);
+            awaitPool();
+            ShadowLooper.runMainLooperOneTask();
+            displayed = 0;
+            for (RecordingTextView view : views) {
+                if (view.getText().length() > 0) {
+                    displayed++;
+                }
+            }
+            // Either none of the values are displayed yet, or all of them at once.
+            Assert.assertTrue(displayed + " of " + VIEWS + " displayed", (displayed == 0) || (displayed == VIEWS));
+        }
+    }
+
+    @Test
+    public void supersededResultsAreDropped() throws Exception {
+        EssenceController.setEssenceFile(ESSENCE_FILE, myActivity);
+        RecordingTextView view = createPoundsView();
+
+        // Superseded within the frame.
+        view.setObservationDSTU3(createObservation(1, "kg"));
+        view.setObservationDSTU3(createObservation(2, "kg"));
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        // Superseded once converted, before being displayed.
+        awaitPool();
+        view.setObservationDSTU3(createObservation(3, "kg"));
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        awaitPool();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        Assert.assertFalse(view.mTexts.contains(expectedPounds(1)));
+        Assert.assertFalse(view.mTexts.contains(expectedPounds(2)));
+        Assert.assertEquals(expectedPounds(3), view.getText().toString());
+    }
+
+    /**
+     * Creates a view displaying kilograms in pounds, which always converts on the pool.
+     */
+    private RecordingTextView createPoundsView() {
+        RecordingTextView view = new RecordingTextView(myActivity);
+        view.setUnitString("[lb_av]");
+        view.setProperty("weight");
+        view.setAccuracy(2);
+        view.setRoundingMode(RoundingMode.HALF_UP);
+        view.setFormat(TEMPLATE);
+        return view;
+    }
+
+    private static String expectedPounds(double kilograms) {
+        EssenceModel model = EssenceController.getModel();
+        return DisplayTemplate.compile(TEMPLATE).format(
+                ConvertUnitThread.convertValue(model, new ObservationPair(createObservation(kilograms, "kg")),
+                        "[lb_av]", 2, RoundingMode.HALF_UP),
+                model.getHumanReadableUnitString("[lb_av]"));
+    }
+
+    private static void awaitPool() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (CustomThreadPoolManager.getsInstance().getInFlightCount() > 0) {
+            Assert.assertTrue("Conversions did not finish", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static Observation createObservation(double value, String unit) {
+        return new Observation().setValue(new Quantity().setCode(unit).setValue(value));
+    }
+
+    /**
+     * Records every text set after construction.
+     */
+    private static class RecordingTextView extends CharcoalTextView {
+
+        private List<String> mTexts;
+
+        RecordingTextView(Context context) {
+            super(context);
+            mTexts = new ArrayList<>();
+        }
+
+        @Override
+        public void setText(CharSequence text, BufferType type) {
+            super.setText(text, type);
+            if (mTexts != null) {
+                mTexts.add(String.valueOf(text));
+            }
+        }
+    }
+
+    private static class CountingTextView extends CharcoalTextView {
+
+        private int mRelights;
+
+        CountingTextView(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void relightNow() {
+            mRelights++;
+            super.relightNow();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.markiantorno.charcoal.loader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that {@link CustomThreadPoolManager} runs work on all of its threads. See
+ * {@link RelightBatchBenchmark} for how conversion throughput scales with the number of threads.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ThreadPoolScalingTest {
+
+    @Test
+    public void poolRunsTasksInParallel() throws Exception {
+        int parallelism = 4;
+        CustomThreadPoolManager pool = new CustomThreadPoolManager(parallelism);
+        CountDownLatch started = new CountDownLatch(parallelism);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                pool.execute(() -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            // Only completes if every task runs at the same time, on its own thread.
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+}